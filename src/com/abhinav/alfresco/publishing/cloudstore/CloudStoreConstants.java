@@ -36,4 +36,232 @@ public class CloudStoreConstants {
 	
 	/** The bucket. */
 	public static final String BUCKET = "s3.bucketName";
+
+	/** The object metadata holding the hex encoded SHA-256 of the content. */
+	public static final String META_SHA256 = "sha256";
+
+	/** Comma separated replica buckets, the objects of s3.bucketName are copied to them. */
+	public static final String REPLICA_BUCKETS = "s3.replica.bucketNames";
+
+	/** Number of concurrent replication operations. */
+	public static final String REPLICA_THREADS = "s3.replica.threads";
+
+	/** Maximum number of attempts of a replication operation. */
+	public static final String REPLICA_MAX_ATTEMPTS = "s3.replica.maxAttempts";
+
+	/** Enables hedged GET requests. */
+	public static final String HEDGE_ENABLED = "s3.hedge.enabled";
+
+	/** Percentile of the first byte latency after which a GET is hedged. */
+	public static final String HEDGE_PERCENTILE = "s3.hedge.percentile";
+
+	/** Lower bound of the hedging delay. */
+	public static final String HEDGE_MIN_DELAY_MS = "s3.hedge.minDelayMs";
+
+	/** Upper bound of the hedging delay, also used until enough samples are known. */
+	public static final String HEDGE_MAX_DELAY_MS = "s3.hedge.maxDelayMs";
+
+	/** Maximum share of the GET requests which may be hedged, in percent. */
+	public static final String HEDGE_BUDGET_PERCENT = "s3.hedge.budgetPercent";
+
+	/** Maximum number of concurrent hedged GET requests. */
+	public static final String HEDGE_MAX_THREADS = "s3.hedge.maxThreads";
+
+	/** Number of directories migrated concurrently by the S3ContentStoreMigrator. */
+	public static final String MIGRATION_THREADS = "s3.migration.threads";
+
+	/** Part size of the multipart uploads of the migration. */
+	public static final String MIGRATION_PART_SIZE_MB = "s3.migration.partSizeMB";
+
+	/** Files from this size on are migrated as multipart uploads. */
+	public static final String MIGRATION_MULTIPART_THRESHOLD_MB = "s3.migration.multipartThresholdMB";
+
+	/** Bandwidth cap of the migration, 0 for unlimited. */
+	public static final String MIGRATION_MAX_MB_PER_SECOND = "s3.migration.maxMBPerSecond";
+
+	/** Enables the local (hot) tier in front of S3. */
+	public static final String TIERING_ENABLED = "s3.tiering.enabled";
+
+	/** Uploads tier content when written and keeps the local file as a cache, required on a cluster. */
+	public static final String TIERING_WRITE_THROUGH = "s3.tiering.writeThrough";
+
+	/** Root directory of the local tier. */
+	public static final String TIERING_ROOT = "s3.tiering.rootDirectory";
+
+	/** Content older than this is moved to S3 regardless of access. */
+	public static final String TIERING_MAX_AGE_MINUTES = "s3.tiering.maxAgeMinutes";
+
+	/** Content not read for this long is moved to S3. */
+	public static final String TIERING_MAX_IDLE_MINUTES = "s3.tiering.maxIdleMinutes";
+
+	/** Content larger than this is moved to S3 on the next mover run. */
+	public static final String TIERING_MAX_LOCAL_SIZE_MB = "s3.tiering.maxLocalFileSizeMB";
+
+	/** Number of concurrent uploads of the mover. */
+	public static final String TIERING_MOVER_THREADS = "s3.tiering.moverThreads";
+
+	/** Delay between two mover runs. */
+	public static final String TIERING_MOVER_INTERVAL_SECONDS = "s3.tiering.moverIntervalSeconds";
+
+	/** Maximum number of items moved per mover run. */
+	public static final String TIERING_MOVER_BATCH_SIZE = "s3.tiering.moverBatchSize";
+
+	/** Number of concurrent prefetches into the local tier. */
+	public static final String PREFETCH_THREADS = "s3.prefetch.threads";
+
+	/** Maximum number of queued prefetch requests. */
+	public static final String PREFETCH_MAX_QUEUED = "s3.prefetch.maxQueued";
+
+	/** Objects larger than this are not prefetched. */
+	public static final String PREFETCH_MAX_OBJECT_SIZE_MB = "s3.prefetch.maxObjectSizeMB";
+
+	/** Number of repository urls sorted in memory by the S3ConsistencyChecker before spilling to disk. */
+	public static final String CONSISTENCY_SORT_CHUNK_SIZE = "s3.consistency.sortChunkSize";
+
+	/** Runs the blocking S3 operations on virtual threads when the JVM supports them. */
+	public static final String EXECUTOR_VIRTUAL_THREADS = "s3.executor.virtualThreads";
+
+	/** Max number of concurrent asynchronous operations of the S3ContentStore. */
+	public static final String ASYNC_MAX_CONCURRENCY = "s3.async.maxConcurrency";
+
+	/** Max number of cached existence checks. */
+	public static final String EXISTS_CACHE_MAX_ENTRIES = "s3.existsCache.maxEntries";
+
+	/** Time to live of a cached "exists" outcome. */
+	public static final String EXISTS_CACHE_POSITIVE_TTL_SECONDS = "s3.existsCache.positiveTtlSeconds";
+
+	/** Time to live of a cached "missing" outcome. */
+	public static final String EXISTS_CACHE_NEGATIVE_TTL_SECONDS = "s3.existsCache.negativeTtlSeconds";
+
+	/** Enables the local index of the bucket keys, used by exists(). */
+	public static final String KEY_INDEX_ENABLED = "s3.keyIndex.enabled";
+
+	/** Directory of the key index files. */
+	public static final String KEY_INDEX_DIRECTORY = "s3.keyIndex.directory";
+
+	/** False positive rate of the bloom filter of the key index. */
+	public static final String KEY_INDEX_FALSE_POSITIVE_RATE = "s3.keyIndex.falsePositiveRate";
+
+	/** Number of journaled puts/deletes which triggers a compaction of the key index. */
+	public static final String KEY_INDEX_MAX_JOURNAL_ENTRIES = "s3.keyIndex.maxJournalEntries";
+
+	/** Number of keys sorted in memory at once while building the key index. */
+	public static final String KEY_INDEX_SORT_CHUNK_SIZE = "s3.keyIndex.sortChunkSize";
+
+	/** The key index is rebuilt from a bucket listing once it gets this old, 0 to disable. */
+	public static final String KEY_INDEX_REBUILD_HOURS = "s3.keyIndex.rebuildHours";
+
+	/** Past this age the key index no longer rules keys out, 0 for no limit. */
+	public static final String KEY_INDEX_MAX_AGE_HOURS = "s3.keyIndex.maxAgeHours";
+
+	/** Memory budget of the cache of object headers/trailers read by S3ContentReader, 0 to disable. */
+	public static final String FRAGMENT_CACHE_MAX_MB = "s3.fragmentCache.maxMB";
+
+	/** Written content from this size on is uploaded as a tuned multipart upload. */
+	public static final String UPLOAD_MULTIPART_THRESHOLD_MB = "s3.upload.multipartThresholdMB";
+
+	/** Parts sent concurrently per upload before the tuner has measured anything. */
+	public static final String UPLOAD_INITIAL_PARALLELISM = "s3.upload.initialParallelism";
+
+	/** Max parts sent concurrently per upload. */
+	public static final String UPLOAD_MAX_PARALLELISM = "s3.upload.maxParallelism";
+
+	/** Max parts sent concurrently over all the uploads. */
+	public static final String UPLOAD_MAX_CONCURRENT_PARTS = "s3.upload.maxConcurrentParts";
+
+	/** Enables the traffic classes (interactive/background/bulk) of the S3 requests. */
+	public static final String TRAFFIC_ENABLED = "s3.traffic.enabled";
+
+	/** Max concurrent S3 requests over all the traffic classes. */
+	public static final String TRAFFIC_MAX_CONNECTIONS = "s3.traffic.maxConnections";
+
+	/** Concurrent S3 requests kept free for the interactive class. */
+	public static final String TRAFFIC_INTERACTIVE_RESERVE = "s3.traffic.interactiveReserve";
+
+	/** Prefix of the per class settings, followed by the lower case class name. */
+	public static final String TRAFFIC_PREFIX = "s3.traffic.";
+
+	/** Suffix of the max concurrent requests of a traffic class. */
+	public static final String TRAFFIC_MAX_CONCURRENCY_SUFFIX = ".maxConcurrency";
+
+	/** Suffix of the max bandwidth of a traffic class, 0 for unlimited. */
+	public static final String TRAFFIC_MAX_MB_PER_SECOND_SUFFIX = ".maxMBPerSecond";
+
+	/** Cache-Control header of the uploaded objects, empty to leave it unset. */
+	public static final String UPLOAD_CACHE_CONTROL = "s3.upload.cacheControl";
+
+	/** Written content up to this size is held in memory and uploaded without a temp file, 0 to disable. */
+	public static final String WRITER_MEMORY_THRESHOLD_KB = "s3.writer.memoryThresholdKB";
+
+	/** Memory kept in the pool of the write buffers once released. */
+	public static final String WRITER_BUFFER_POOL_MB = "s3.writer.bufferPoolMB";
+
+	/** Share of the content operations traced, between 0 (off) and 1. */
+	public static final String TRACING_SAMPLE_RATE = "s3.tracing.sampleRate";
+
+	/** Number of the slowest traced operations kept for the JMX dump. */
+	public static final String TRACING_SLOWEST_COUNT = "s3.tracing.slowestCount";
+
+	/** Enables the access statistics and the moves of cold objects to cheaper storage classes. */
+	public static final String LIFECYCLE_ENABLED = "s3.lifecycle.enabled";
+
+	/** Directory the per object access statistics of the nodes are saved to, shared by a cluster. */
+	public static final String LIFECYCLE_STATISTICS_DIR = "s3.lifecycle.statisticsDir";
+
+	/** Name of the statistics file of this node, the host name when empty. */
+	public static final String LIFECYCLE_NODE_NAME = "s3.lifecycle.nodeName";
+
+	/** True on the single node of a cluster which runs the moves. */
+	public static final String LIFECYCLE_RUNNER = "s3.lifecycle.runner";
+
+	/** Delay between two saves of the access statistics. */
+	public static final String LIFECYCLE_SAVE_MINUTES = "s3.lifecycle.saveMinutes";
+
+	/** Days without write or read before an object moves to STANDARD_IA, 0 to disable. */
+	public static final String LIFECYCLE_INFREQUENT_ACCESS_DAYS = "s3.lifecycle.infrequentAccessDays";
+
+	/** Days without write or read before an object moves to GLACIER, 0 to disable. */
+	public static final String LIFECYCLE_ARCHIVE_DAYS = "s3.lifecycle.archiveDays";
+
+	/** Objects smaller than this are never moved. */
+	public static final String LIFECYCLE_MIN_OBJECT_SIZE_KB = "s3.lifecycle.minObjectSizeKB";
+
+	/** Max objects moved per lifecycle run. */
+	public static final String LIFECYCLE_MAX_OBJECTS_PER_RUN = "s3.lifecycle.maxObjectsPerRun";
+
+	/** Max bytes moved per lifecycle run. */
+	public static final String LIFECYCLE_MAX_GB_PER_RUN = "s3.lifecycle.maxGBPerRun";
+
+	/** Max concurrent copies of a lifecycle run. */
+	public static final String LIFECYCLE_COPY_CONCURRENCY = "s3.lifecycle.copyConcurrency";
+
+	/** Delay between two lifecycle runs. */
+	public static final String LIFECYCLE_INTERVAL_MINUTES = "s3.lifecycle.intervalMinutes";
+
+	/** Days a restored copy of an archived object is kept. */
+	public static final String RESTORE_DAYS = "s3.restore.days";
+
+	/** Max restores of archived objects in progress. */
+	public static final String RESTORE_MAX_PENDING = "s3.restore.maxPending";
+
+	/** Max concurrent restore requests. */
+	public static final String RESTORE_MAX_CONCURRENCY = "s3.restore.maxConcurrency";
+
+	/** Default validity of the signed GET urls. */
+	public static final String SIGNED_URL_EXPIRY_SECONDS = "s3.signedUrl.expirySeconds";
+
+	/** Max validity of the signed GET urls, longer requests are capped. */
+	public static final String SIGNED_URL_MAX_EXPIRY_SECONDS = "s3.signedUrl.maxExpirySeconds";
+
+	/** Part size of the uploads sent straight to S3, raised for content of more than 1000 parts. */
+	public static final String DIRECT_UPLOAD_PART_SIZE_MB = "s3.directUpload.partSizeMB";
+
+	/** Max size of a content uploaded straight to S3. */
+	public static final String DIRECT_UPLOAD_MAX_SIZE_GB = "s3.directUpload.maxSizeGB";
+
+	/** Validity of the signed urls of the uploads sent straight to S3. */
+	public static final String DIRECT_UPLOAD_EXPIRY_SECONDS = "s3.directUpload.expirySeconds";
+
+	/** Max uploads sent straight to S3 issued and not completed. */
+	public static final String DIRECT_UPLOAD_MAX_TICKETS = "s3.directUpload.maxTickets";
 }
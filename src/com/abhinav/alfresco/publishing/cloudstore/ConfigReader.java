@@ -84,4 +84,60 @@ public final class ConfigReader {
 	public Properties getKeys() {
 		return KEYS;
 	}
+
+	/**
+	 * Gets the property value, or the default value if the key is not mapped.
+	 *
+	 * @param key the key
+	 * @param defaultValue the default value
+	 * @return the property
+	 */
+	public String getProperty(final String key, final String defaultValue) {
+		final String value = KEYS.getProperty(key);
+		return (value == null || value.trim().length() == 0) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Gets the property value as boolean.
+	 *
+	 * @param key the key
+	 * @param defaultValue the default value
+	 * @return the boolean property
+	 */
+	public boolean getBooleanProperty(final String key, final boolean defaultValue) {
+		return Boolean.parseBoolean(getProperty(key, String.valueOf(defaultValue)));
+	}
+
+	/**
+	 * Gets the property value as int.
+	 *
+	 * @param key the key
+	 * @param defaultValue the default value
+	 * @return the int property
+	 */
+	public int getIntProperty(final String key, final int defaultValue) {
+		return (int) getLongProperty(key, defaultValue);
+	}
+
+	/**
+	 * Gets the property value as long.
+	 *
+	 * @param key the key
+	 * @param defaultValue the default value
+	 * @return the long property
+	 */
+	public long getLongProperty(final String key, final long defaultValue) {
+		final String value = getProperty(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException nfex) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Invalid value '" + value + "' for " + key + ", using default: " + defaultValue);
+			}
+			return defaultValue;
+		}
+	}
 }
@@ -22,11 +22,12 @@ import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Properties;
 
+import org.alfresco.repo.content.cloudstore.S3ShapedRestService;
+import org.alfresco.repo.content.cloudstore.S3TrafficClass;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.StorageService;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.StorageBucket;
 import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.security.AWSCredentials;
@@ -81,7 +82,8 @@ public class S3RESTService {
 
 		// Instantiate S3 Service and create necessary bucket.
 		try {
-			s3Service = new RestS3Service(new AWSCredentials(accessKey,secretKey));
+			s3Service = new S3ShapedRestService(new AWSCredentials(accessKey,secretKey),
+					S3TrafficClass.BACKGROUND);
 			bucket = s3Service.getOrCreateBucket(bucketName);
 			if (LOG.isInfoEnabled()) {
 				LOG.info("S3RESTService connected to : bucket: " + bucketName);
@@ -124,8 +126,8 @@ public class S3RESTService {
 
 		// Instantiate S3 Service and create necessary bucket.
 		try {
-			s3Service = new RestS3Service(new AWSCredentials(accessKey,
-					secretKey));
+			s3Service = new S3ShapedRestService(new AWSCredentials(accessKey,
+					secretKey), S3TrafficClass.BACKGROUND);
 			if (LOG.isInfoEnabled()) {
 				LOG.info("S3RESTService connected to : bucket: " + bucketName);
 			}
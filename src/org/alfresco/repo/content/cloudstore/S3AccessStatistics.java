@@ -0,0 +1,305 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The Class S3AccessStatistics.<br/>
+ * Per object read statistics: the day of the last read and a saturating read
+ * count, keyed by the 64-bit fingerprint of the content url. The entries are
+ * kept in open addressing tables of primitive arrays, split in segments with
+ * their own lock, so an object costs about 20 bytes and a read takes no
+ * global lock. The statistics can be saved and merged back from a file.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3AccessStatistics {
+
+	/** The number of segments, a power of two. */
+	private static final int SEGMENTS = 64;
+
+	/** The initial capacity of a segment, a power of two. */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** The file format marker. */
+	private static final int MAGIC = 0x53334153;
+
+	/** The millis of a day. */
+	private static final long DAY_MS = 24L * 60L * 60L * 1000L;
+
+	/** The segments. */
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/**
+	 * Instantiates empty statistics.
+	 */
+	public S3AccessStatistics() {
+		for (int index = 0; index < SEGMENTS; index++) {
+			segments[index] = new Segment();
+		}
+	}
+
+	/**
+	 * Records a read of an object.
+	 *
+	 * @param contentUrl the content url
+	 */
+	public void recordAccess(final String contentUrl) {
+		final long key = keyOf(contentUrl);
+		segmentOf(key).merge(key, today(), 1);
+	}
+
+	/**
+	 * Gets the day of the last read of an object.
+	 *
+	 * @param contentUrl the content url
+	 * @return the day since the epoch, or -1 if no read was recorded
+	 */
+	public int getLastAccessDay(final String contentUrl) {
+		final long key = keyOf(contentUrl);
+		return segmentOf(key).getDay(key);
+	}
+
+	/**
+	 * Gets the number of reads of an object.
+	 *
+	 * @param contentUrl the content url
+	 * @return the read count, saturated at Integer.MAX_VALUE
+	 */
+	public int getAccessCount(final String contentUrl) {
+		final long key = keyOf(contentUrl);
+		return segmentOf(key).getCount(key);
+	}
+
+	/**
+	 * Gets the number of objects with statistics.
+	 *
+	 * @return the object count
+	 */
+	public long size() {
+		long size = 0;
+		for (final Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Saves the statistics, replacing the file once completely written.
+	 *
+	 * @param file the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void save(final File file) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+			out.writeInt(MAGIC);
+			for (final Segment segment : segments) {
+				segment.writeTo(out);
+			}
+		}
+		if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+			throw new IOException("Failed to replace " + file);
+		}
+	}
+
+	/**
+	 * Merges the statistics saved in a file: the latest read day and the sum
+	 * of the counts are kept.
+	 *
+	 * @param file the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void load(final File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not an access statistics file: " + file);
+			}
+			while (true) {
+				final long key;
+				try {
+					key = in.readLong();
+				} catch (EOFException eofExcp) {
+					return;
+				}
+				final int day = in.readInt();
+				segmentOf(key).merge(key, day, in.readInt());
+			}
+		}
+	}
+
+	/**
+	 * Gets the current day.
+	 *
+	 * @return the day since the epoch
+	 */
+	public static int today() {
+		return (int) (System.currentTimeMillis() / DAY_MS);
+	}
+
+	/**
+	 * Gets the table key of a url, never 0 which marks free slots.
+	 *
+	 * @param contentUrl the content url
+	 * @return the key
+	 */
+	private static long keyOf(final String contentUrl) {
+		final long fingerprint = S3KeyIndex.fingerprint(contentUrl);
+		return fingerprint == 0L ? 1L : fingerprint;
+	}
+
+	/**
+	 * Gets the segment of a key.
+	 *
+	 * @param key the key
+	 * @return the segment
+	 */
+	private Segment segmentOf(final long key) {
+		return segments[(int) (key >>> 58) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * An open addressing table with linear probing.
+	 */
+	private static final class Segment {
+
+		/** The keys, 0 for a free slot. */
+		private long[] keys = new long[INITIAL_CAPACITY];
+
+		/** The last read days. */
+		private int[] days = new int[INITIAL_CAPACITY];
+
+		/** The read counts. */
+		private int[] counts = new int[INITIAL_CAPACITY];
+
+		/** The number of entries. */
+		private int size;
+
+		/**
+		 * Merges reads into an entry.
+		 *
+		 * @param key the key
+		 * @param day the day of the last read
+		 * @param count the number of reads
+		 */
+		private synchronized void merge(final long key, final int day, final int count) {
+			if ((size + 1) * 4 > keys.length * 3) {
+				resize();
+			}
+			final int slot = slotOf(keys, key);
+			if (keys[slot] == 0L) {
+				keys[slot] = key;
+				size++;
+			}
+			days[slot] = Math.max(days[slot], day);
+			counts[slot] = (int) Math.min(Integer.MAX_VALUE, (long) counts[slot] + count);
+		}
+
+		/**
+		 * Gets the last read day of an entry.
+		 *
+		 * @param key the key
+		 * @return the day, or -1 if absent
+		 */
+		private synchronized int getDay(final long key) {
+			final int slot = slotOf(keys, key);
+			return keys[slot] == 0L ? -1 : days[slot];
+		}
+
+		/**
+		 * Gets the read count of an entry.
+		 *
+		 * @param key the key
+		 * @return the count, 0 if absent
+		 */
+		private synchronized int getCount(final long key) {
+			final int slot = slotOf(keys, key);
+			return keys[slot] == 0L ? 0 : counts[slot];
+		}
+
+		/**
+		 * Gets the number of entries.
+		 *
+		 * @return the size
+		 */
+		private synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Writes the entries.
+		 *
+		 * @param out the output
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private synchronized void writeTo(final DataOutputStream out) throws IOException {
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != 0L) {
+					out.writeLong(keys[slot]);
+					out.writeInt(days[slot]);
+					out.writeInt(counts[slot]);
+				}
+			}
+		}
+
+		/**
+		 * Doubles the capacity, the lock is held.
+		 */
+		private void resize() {
+			final long[] oldKeys = keys;
+			final int[] oldDays = days;
+			final int[] oldCounts = counts;
+			keys = new long[oldKeys.length * 2];
+			days = new int[keys.length];
+			counts = new int[keys.length];
+			for (int slot = 0; slot < oldKeys.length; slot++) {
+				if (oldKeys[slot] != 0L) {
+					final int newSlot = slotOf(keys, oldKeys[slot]);
+					keys[newSlot] = oldKeys[slot];
+					days[newSlot] = oldDays[slot];
+					counts[newSlot] = oldCounts[slot];
+				}
+			}
+		}
+
+		/**
+		 * Finds the slot of a key, or the free slot where it belongs.
+		 *
+		 * @param table the keys
+		 * @param key the key
+		 * @return the slot
+		 */
+		private static int slotOf(final long[] table, final long key) {
+			final int mask = table.length - 1;
+			int slot = (int) (key ^ (key >>> 32)) & mask;
+			while (table[slot] != 0L && table[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.ServiceException;
+
+/**
+ * The Class S3ArchiveRestorer.<br/>
+ * Restores archived objects when they are read. A read of an object in an
+ * archive storage class fails with InvalidObjectState; the restorer then
+ * sends a restore request in the background and the reader reports a
+ * transient failure until the restored copy is readable. A url is restored
+ * once per retry interval, and the number of restores in progress and of
+ * concurrent restore requests are bounded.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ArchiveRestorer {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3ArchiveRestorer.class);
+
+	/** The error code of a read of an archived object. */
+	private static final String INVALID_OBJECT_STATE = "InvalidObjectState";
+
+	/** The error code of a restore already in progress. */
+	private static final String RESTORE_IN_PROGRESS = "RestoreAlreadyInProgress";
+
+	/** The delay before a url is restored again, restores take hours. */
+	private static final long RETRY_INTERVAL_MS = 60L * 60L * 1000L;
+
+	/** The s3 service. */
+	private final S3ShapedRestService s3Service;
+
+	/** The days the restored copies are kept. */
+	private final int days;
+
+	/** The max number of restores in progress. */
+	private final int maxPending;
+
+	/** The restores in progress, by bucket and key, with their request time. */
+	private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+	/** The executor sending the restore requests. */
+	private final S3TaskExecutor executor;
+
+	/** The restore count. */
+	private final AtomicLong restores = new AtomicLong();
+
+	/**
+	 * Instantiates a new archive restorer.
+	 *
+	 * @param s3Service the s3 service
+	 * @param days the days the restored copies are kept
+	 * @param maxPending the max number of restores in progress
+	 * @param maxConcurrency the max number of concurrent restore requests
+	 */
+	public S3ArchiveRestorer(final S3ShapedRestService s3Service, final int days, final int maxPending,
+			final int maxConcurrency) {
+		this.s3Service = s3Service;
+		this.days = Math.max(1, days);
+		this.maxPending = Math.max(1, maxPending);
+		this.executor = new S3TaskExecutor("S3Restore", maxConcurrency, S3TrafficClass.BACKGROUND);
+	}
+
+	/**
+	 * Checks if a failed read was caused by an archived object.
+	 *
+	 * @param excp the failure of the read
+	 * @return true, if the object is archived
+	 */
+	public static boolean isArchived(final ServiceException excp) {
+		return excp.getResponseCode() == 403 && INVALID_OBJECT_STATE.equals(excp.getErrorCode());
+	}
+
+	/**
+	 * Starts the restore of an archived object, unless one was recently
+	 * started or too many are in progress.
+	 *
+	 * @param bucketName the bucket name
+	 * @param key the key
+	 * @return true, if a restore is in progress
+	 */
+	public boolean restore(final String bucketName, final String key) {
+		final String id = bucketName + '/' + key;
+		final long now = System.currentTimeMillis();
+		final Long requested = pending.get(id);
+		if (requested != null && now - requested.longValue() < RETRY_INTERVAL_MS) {
+			return true;
+		}
+		if (requested == null && pending.size() >= maxPending) {
+			expire(now);
+			if (pending.size() >= maxPending) {
+				if (LOG.isWarnEnabled()) {
+					LOG.warn("S3ArchiveRestorer Too many restores in progress, not restoring " + id);
+				}
+				return false;
+			}
+		}
+		final Long claim = Long.valueOf(now);
+		if (requested == null ? pending.putIfAbsent(id, claim) != null : !pending.replace(id, requested, claim)) {
+			// Another reader claimed it
+			return true;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					sendRestore(id, bucketName, key);
+				}
+			});
+		} catch (RejectedExecutionException rejExcp) {
+			pending.remove(id);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a restore request.
+	 *
+	 * @param id the id of the restore
+	 * @param bucketName the bucket name
+	 * @param key the key
+	 */
+	private void sendRestore(final String id, final String bucketName, final String key) {
+		try {
+			if (s3Service.restoreObject(bucketName, key, days)) {
+				restores.incrementAndGet();
+				if (LOG.isInfoEnabled()) {
+					LOG.info("S3ArchiveRestorer Restoring " + id + " for " + days + " days");
+				}
+			} else {
+				// Already readable, the next read succeeds
+				pending.remove(id);
+			}
+		} catch (ServiceException servExcp) {
+			if (!RESTORE_IN_PROGRESS.equals(servExcp.getErrorCode())) {
+				pending.remove(id);
+				if (LOG.isErrorEnabled()) {
+					LOG.error("S3ArchiveRestorer Failed to restore " + id + ": " + servExcp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets a restore once its object could be read.
+	 *
+	 * @param bucketName the bucket name
+	 * @param key the key
+	 */
+	public void restored(final String bucketName, final String key) {
+		if (!pending.isEmpty()) {
+			pending.remove(bucketName + '/' + key);
+		}
+	}
+
+	/**
+	 * Forgets the restores requested before the retry interval.
+	 *
+	 * @param now the current time
+	 */
+	private void expire(final long now) {
+		for (final Map.Entry<String, Long> entry : pending.entrySet()) {
+			if (now - entry.getValue().longValue() >= RETRY_INTERVAL_MS) {
+				pending.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of restores in progress.
+	 *
+	 * @return the pending count
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Gets the number of restores started.
+	 *
+	 * @return the restore count
+	 */
+	public long getRestoreCount() {
+		return restores.get();
+	}
+
+	/**
+	 * Stops the restorer.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
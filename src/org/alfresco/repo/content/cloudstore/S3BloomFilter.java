@@ -0,0 +1,187 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The Class S3BloomFilter.<br/>
+ * Bloom filter of 64-bit key fingerprints, stored in a memory-mapped file so
+ * it lives off the heap and survives restarts. The bit positions are derived
+ * from the fingerprint by double hashing. Files larger than 2 GB are mapped
+ * in several segments.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3BloomFilter {
+
+	/** The log2 of the number of bits per mapped segment (1 GB). */
+	private static final int SEGMENT_SHIFT = 33;
+
+	/** The mask of the bit offset within a segment. */
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	/** The number of bits. */
+	private final long numBits;
+
+	/** The number of hash functions. */
+	private final int numHashes;
+
+	/** The mapped segments. */
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * Instantiates a new bloom filter over mapped segments.
+	 *
+	 * @param numBits the number of bits
+	 * @param numHashes the number of hash functions
+	 * @param segments the segments
+	 */
+	private S3BloomFilter(final long numBits, final int numHashes, final MappedByteBuffer[] segments) {
+		this.numBits = numBits;
+		this.numHashes = numHashes;
+		this.segments = segments;
+	}
+
+	/**
+	 * Creates an empty filter sized for the expected number of keys.
+	 *
+	 * @param file the file, overwritten
+	 * @param expectedKeys the expected number of keys
+	 * @param falsePositiveRate the target false positive rate
+	 * @return the filter
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static S3BloomFilter create(final File file, final long expectedKeys, final double falsePositiveRate)
+			throws IOException {
+		final long keys = Math.max(1L, expectedKeys);
+		final double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (ln2 * ln2));
+		bits = Math.max(64L, (bits + 63L) & ~63L);
+		final int hashes = Math.max(1, (int) Math.round((double) bits / keys * ln2));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0L);
+			raf.setLength(bits / 8L);
+			return new S3BloomFilter(bits, hashes, map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, bits / 8L));
+		}
+	}
+
+	/**
+	 * Opens an existing filter, read only.
+	 *
+	 * @param file the file
+	 * @param numHashes the number of hash functions it was built with
+	 * @return the filter
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static S3BloomFilter open(final File file, final int numHashes) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final long bytes = raf.length();
+			return new S3BloomFilter(bytes * 8L, numHashes, map(raf.getChannel(), FileChannel.MapMode.READ_ONLY, bytes));
+		}
+	}
+
+	/**
+	 * Maps a file in segments.
+	 *
+	 * @param channel the channel
+	 * @param mode the mode
+	 * @param bytes the file size
+	 * @return the segments
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static MappedByteBuffer[] map(final FileChannel channel, final FileChannel.MapMode mode,
+			final long bytes) throws IOException {
+		final long segmentBytes = 1L << (SEGMENT_SHIFT - 3);
+		final MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((bytes + segmentBytes - 1) / segmentBytes)];
+		for (int index = 0; index < segments.length; index++) {
+			final long offset = index * segmentBytes;
+			segments[index] = channel.map(mode, offset, Math.min(segmentBytes, bytes - offset));
+		}
+		return segments;
+	}
+
+	/**
+	 * Adds a fingerprint. Not thread safe, filters are filled by one thread.
+	 *
+	 * @param fingerprint the fingerprint
+	 */
+	public void put(final long fingerprint) {
+		final long step = stepOf(fingerprint);
+		long combined = fingerprint;
+		for (int hash = 0; hash < numHashes; hash++) {
+			final long bit = (combined & Long.MAX_VALUE) % numBits;
+			final MappedByteBuffer segment = segments[(int) (bit >>> SEGMENT_SHIFT)];
+			final int position = (int) ((bit & SEGMENT_MASK) >>> 3);
+			segment.put(position, (byte) (segment.get(position) | (1 << (bit & 7))));
+			combined += step;
+		}
+	}
+
+	/**
+	 * Checks if a fingerprint may have been added.
+	 *
+	 * @param fingerprint the fingerprint
+	 * @return false if it certainly was not added
+	 */
+	public boolean mightContain(final long fingerprint) {
+		final long step = stepOf(fingerprint);
+		long combined = fingerprint;
+		for (int hash = 0; hash < numHashes; hash++) {
+			final long bit = (combined & Long.MAX_VALUE) % numBits;
+			final MappedByteBuffer segment = segments[(int) (bit >>> SEGMENT_SHIFT)];
+			if ((segment.get((int) ((bit & SEGMENT_MASK) >>> 3)) & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+			combined += step;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the changes to the file.
+	 */
+	public void force() {
+		for (final MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * Gets the number of hash functions.
+	 *
+	 * @return the number of hashes
+	 */
+	public int getNumHashes() {
+		return numHashes;
+	}
+
+	/**
+	 * Derives the second hash of a fingerprint, odd so it cycles all bits.
+	 *
+	 * @param fingerprint the fingerprint
+	 * @return the step
+	 */
+	private static long stepOf(final long fingerprint) {
+		return S3KeyIndex.mix(fingerprint ^ 0x9E3779B97F4A7C15L) | 1L;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * The Class S3BucketListing.<br/>
+ * Streams the keys of a bucket, one listing page at a time, so the listing of
+ * a bucket of any size holds a single page in memory. S3 returns the keys in
+ * ascending order of their UTF-8 bytes, i.e. in code point order.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3BucketListing implements Iterator<StorageObject> {
+
+	/** The number of keys per page. */
+	private static final long PAGE_SIZE = 1000L;
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The bucket name. */
+	private final String bucketName;
+
+	/** The prefix. */
+	private final String prefix;
+
+	/** The current page. */
+	private StorageObject[] page = new StorageObject[0];
+
+	/** The position in the page. */
+	private int position;
+
+	/** The last key of the previous page, null before the first page. */
+	private String priorLastKey;
+
+	/** The complete flag. */
+	private boolean complete;
+
+	/**
+	 * Instantiates a new bucket listing.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucketName the bucket name
+	 * @param prefix the key prefix, may be null
+	 */
+	public S3BucketListing(final S3Service s3Service, final String bucketName, final String prefix) {
+		this.s3Service = s3Service;
+		this.bucketName = bucketName;
+		this.prefix = prefix;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#hasNext()
+	 */
+	public boolean hasNext() {
+		while (position >= page.length && !complete) {
+			fetchPage();
+		}
+		return position < page.length;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#next()
+	 */
+	public StorageObject next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page[position++];
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#remove()
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Fetches the next page.
+	 */
+	private void fetchPage() {
+		try {
+			final StorageObjectsChunk chunk = s3Service.listObjectsChunked(bucketName, prefix, null,
+					PAGE_SIZE, priorLastKey);
+			page = chunk.getObjects();
+			position = 0;
+			complete = chunk.isListingComplete() || page.length == 0;
+			if (page.length > 0) {
+				priorLastKey = page[page.length - 1].getKey();
+			}
+		} catch (ServiceException servExcp) {
+			throw new IllegalStateException("Failed to list bucket " + bucketName + " after " + priorLastKey,
+					servExcp);
+		}
+	}
+}
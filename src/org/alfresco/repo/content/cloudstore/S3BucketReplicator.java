@@ -0,0 +1,281 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * The Class S3BucketReplicator.<br/>
+ * Asynchronously copies the objects written to the primary bucket to the
+ * replica buckets, using server side copies, and propagates the deletes.
+ * Failed operations are retried with a growing delay. Objects over the 5 GB
+ * limit of a single copy are copied in parts.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3BucketReplicator {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3BucketReplicator.class);
+
+	/** The delay before the first retry, doubled on each attempt. */
+	private static final long RETRY_DELAY_MS = 1000L;
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The primary bucket. */
+	private final S3Bucket primaryBucket;
+
+	/** The replica buckets. */
+	private final List<S3Bucket> replicaBuckets;
+
+	/** The max number of attempts per operation. */
+	private final int maxAttempts;
+
+	/** The executor. */
+	private final ExecutorService executor;
+
+	/** The scheduler of the retries. */
+	private final ScheduledExecutorService retryScheduler;
+
+	/** The pending operations count. */
+	private final AtomicLong pending = new AtomicLong();
+
+	/** The failed operations count. */
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Instantiates a new bucket replicator.
+	 *
+	 * @param s3Service the s3 service
+	 * @param primaryBucket the primary bucket
+	 * @param replicaBuckets the replica buckets
+	 * @param threads the number of concurrent operations
+	 * @param maxAttempts the max number of attempts per operation
+	 */
+	public S3BucketReplicator(final S3Service s3Service, final S3Bucket primaryBucket,
+			final List<S3Bucket> replicaBuckets, final int threads, final int maxAttempts) {
+		this.s3Service = s3Service;
+		this.primaryBucket = primaryBucket;
+		this.replicaBuckets = replicaBuckets;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.executor = new S3TaskExecutor("S3Replicator", threads, S3TrafficClass.BACKGROUND);
+		this.retryScheduler = Executors.newSingleThreadScheduledExecutor(
+				S3LocalContentTier.newThreadFactory("S3ReplicatorRetry"));
+	}
+
+	/**
+	 * Copies an object of the primary bucket to the replicas.
+	 *
+	 * @param contentUrl the content url
+	 */
+	public void replicate(final String contentUrl) {
+		for (final S3Bucket replica : replicaBuckets) {
+			submit(contentUrl, replica, false);
+		}
+	}
+
+	/**
+	 * Deletes an object from the replicas.
+	 *
+	 * @param contentUrl the content url
+	 */
+	public void delete(final String contentUrl) {
+		for (final S3Bucket replica : replicaBuckets) {
+			submit(contentUrl, replica, true);
+		}
+	}
+
+	/**
+	 * Submits an operation against a replica.
+	 *
+	 * @param contentUrl the content url
+	 * @param replica the replica
+	 * @param delete true to delete, false to copy
+	 */
+	private void submit(final String contentUrl, final S3Bucket replica, final boolean delete) {
+		pending.incrementAndGet();
+		attempt(contentUrl, replica, delete, 1);
+	}
+
+	/**
+	 * Runs an attempt of an operation on the executor.
+	 *
+	 * @param contentUrl the content url
+	 * @param replica the replica
+	 * @param delete true to delete, false to copy
+	 * @param attempt the attempt number, from 1
+	 */
+	private void attempt(final String contentUrl, final S3Bucket replica, final boolean delete, final int attempt) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					execute(contentUrl, replica, delete, attempt);
+				}
+			});
+		} catch (RejectedExecutionException rejExcp) {
+			// Shut down, the operation is dropped
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Executes an attempt of an operation against a replica. A failed attempt
+	 * is rescheduled after a growing delay, so that the backoff does not hold
+	 * an executor permit.
+	 *
+	 * @param contentUrl the content url
+	 * @param replica the replica
+	 * @param delete true to delete, false to copy
+	 * @param attempt the attempt number, from 1
+	 */
+	private void execute(final String contentUrl, final S3Bucket replica, final boolean delete, final int attempt) {
+		try {
+			if (delete) {
+				s3Service.deleteObject(replica, contentUrl);
+			} else {
+				copy(contentUrl, replica);
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("S3BucketReplicator " + (delete ? "Deleted" : "Copied") + ": contentUrl="
+						+ contentUrl + " bucket=" + replica.getName());
+			}
+			pending.decrementAndGet();
+		} catch (TooLargeException tooLarge) {
+			fail(contentUrl, replica, delete, tooLarge);
+		} catch (Exception excp) {
+			if (attempt >= maxAttempts) {
+				fail(contentUrl, replica, delete, excp);
+				return;
+			}
+			try {
+				retryScheduler.schedule(new Runnable() {
+					public void run() {
+						attempt(contentUrl, replica, delete, attempt + 1);
+					}
+				}, RETRY_DELAY_MS << (attempt - 1), TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException rejExcp) {
+				pending.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Records an operation which will not be retried.
+	 *
+	 * @param contentUrl the content url
+	 * @param replica the replica
+	 * @param delete true to delete, false to copy
+	 * @param excp the failure
+	 */
+	private void fail(final String contentUrl, final S3Bucket replica, final boolean delete, final Exception excp) {
+		failures.incrementAndGet();
+		pending.decrementAndGet();
+		if (LOG.isErrorEnabled()) {
+			LOG.error("S3BucketReplicator Failed to " + (delete ? "delete " : "copy ") + contentUrl
+					+ " in bucket " + replica.getName() + ": " + excp);
+		}
+	}
+
+	/**
+	 * Copies an object to a replica. A single copy is limited to 5 GB, larger
+	 * objects are copied in parts with a multipart upload.
+	 *
+	 * @param contentUrl the content url
+	 * @param replica the replica
+	 * @throws ServiceException if the copy failed
+	 */
+	private void copy(final String contentUrl, final S3Bucket replica) throws ServiceException {
+		final StorageObject details = s3Service.getObjectDetails(primaryBucket.getName(), contentUrl);
+		final long size = details.getContentLength();
+		if (size <= S3ShapedRestService.MAX_COPY_SIZE) {
+			s3Service.copyObject(primaryBucket.getName(), contentUrl, replica.getName(),
+					new S3Object(contentUrl), false);
+			return;
+		}
+		if (!(s3Service instanceof S3ShapedRestService)) {
+			throw new TooLargeException(contentUrl + " is " + size
+					+ " bytes, above the 5 GB limit of a copy, and the service does not support part copies");
+		}
+		final S3Object destination = new S3Object(contentUrl);
+		destination.setContentType(details.getContentType());
+		destination.addAllMetadata(details.getModifiableMetadata());
+		((S3ShapedRestService) s3Service).copyObjectInParts(primaryBucket.getName(), contentUrl, replica.getName(),
+				destination, size);
+	}
+
+	/**
+	 * An object which cannot be copied, it is not retried.
+	 */
+	private static final class TooLargeException extends RuntimeException {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Instantiates a new too large exception.
+		 *
+		 * @param message the message
+		 */
+		private TooLargeException(final String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Gets the number of pending operations.
+	 *
+	 * @return the pending count
+	 */
+	public long getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * Gets the number of operations which failed after all attempts.
+	 *
+	 * @return the failure count
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * Stops the replicator, running operations are completed and the
+	 * operations waiting for a retry are dropped.
+	 */
+	public void shutdown() {
+		retryScheduler.shutdownNow();
+		executor.shutdown();
+	}
+}
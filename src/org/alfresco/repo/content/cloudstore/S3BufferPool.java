@@ -0,0 +1,91 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class S3BufferPool.<br/>
+ * Pool of fixed size memory segments used to hold small written contents
+ * until they are uploaded. Released segments are kept up to the configured
+ * memory budget and reused, segments beyond it are left to the garbage
+ * collector.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3BufferPool {
+
+	/** The size of a segment. */
+	public static final int SEGMENT_SIZE = 16 * 1024;
+
+	/** The free segments. */
+	private final Queue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+
+	/** The max number of free segments kept. */
+	private final int maxPooled;
+
+	/** The number of free segments. */
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Instantiates a new buffer pool.
+	 *
+	 * @param maxBytes the max bytes kept in free segments
+	 */
+	public S3BufferPool(final long maxBytes) {
+		this.maxPooled = (int) Math.min(Integer.MAX_VALUE, Math.max(0L, maxBytes / SEGMENT_SIZE));
+	}
+
+	/**
+	 * Takes a segment, reused if one is free.
+	 *
+	 * @return the segment
+	 */
+	public byte[] allocate() {
+		final byte[] segment = free.poll();
+		if (segment == null) {
+			return new byte[SEGMENT_SIZE];
+		}
+		pooled.decrementAndGet();
+		return segment;
+	}
+
+	/**
+	 * Gives a segment back to the pool.
+	 *
+	 * @param segment the segment
+	 */
+	public void release(final byte[] segment) {
+		if (segment.length == SEGMENT_SIZE && pooled.incrementAndGet() <= maxPooled) {
+			free.add(segment);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the number of free segments.
+	 *
+	 * @return the free segment count
+	 */
+	public int getPooledCount() {
+		return pooled.get();
+	}
+}
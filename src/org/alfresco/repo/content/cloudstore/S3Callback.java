@@ -0,0 +1,45 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+/**
+ * The Interface S3Callback.<br/>
+ * Receives the outcome of an asynchronous operation of the
+ * {@link S3ContentStore}. The methods run on the thread which completed the
+ * operation, or on the registering thread if it had already completed, so
+ * they should not block.
+ *
+ * @param <T> the result type
+ * @author Abhinav Kumar Mishra
+ */
+public interface S3Callback<T> {
+
+	/**
+	 * Called when the operation succeeded.
+	 *
+	 * @param result the result
+	 */
+	void onSuccess(T result);
+
+	/**
+	 * Called when the operation failed.
+	 *
+	 * @param cause the cause
+	 */
+	void onFailure(Throwable cause);
+}
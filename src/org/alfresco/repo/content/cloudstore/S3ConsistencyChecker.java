@@ -0,0 +1,273 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.security.AWSCredentials;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+import com.abhinav.alfresco.publishing.cloudstore.ConfigReader;
+
+/**
+ * The Class S3ConsistencyChecker.<br/>
+ * Compares the content urls known to the repository with the keys of the
+ * bucket and reports the urls without object (missing) and the objects
+ * without url (orphaned). Both sides are streamed in sorted order and merge
+ * joined: the bucket listing is already sorted, the repository urls go
+ * through a {@link S3ExternalSorter} which spills to disk, so the heap use
+ * does not depend on the number of keys.
+ * <p>
+ * The repository urls are read from a file with one url per line, e.g. the
+ * output of <code>select content_url from alf_content_url</code>. Content
+ * written or deleted while the check runs, and content still held by the
+ * local tier, may be reported, so the reports are candidates to be
+ * confirmed, not a delete list.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ConsistencyChecker {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3ConsistencyChecker.class);
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The number of keys between two progress messages. */
+	private static final long PROGRESS_INTERVAL = 1000000L;
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The bucket. */
+	private final S3Bucket bucket;
+
+	/** The sorter of the repository urls. */
+	private final S3ExternalSorter sorter;
+
+	/**
+	 * Instantiates a new consistency checker.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucket the bucket
+	 * @param workDirectory the directory of the sort files
+	 * @param sortChunkSize the number of urls sorted in memory at once
+	 */
+	public S3ConsistencyChecker(final S3Service s3Service, final S3Bucket bucket,
+			final File workDirectory, final int sortChunkSize) {
+		this.s3Service = s3Service;
+		this.bucket = bucket;
+		this.sorter = new S3ExternalSorter(workDirectory, sortChunkSize);
+	}
+
+	/**
+	 * Runs the check.
+	 *
+	 * @param repositoryUrls the content urls of the repository, in any order
+	 * @param missing receives the urls without object, one per line
+	 * @param orphaned receives the keys without url, one per line
+	 * @return the result
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Result check(final Iterator<String> repositoryUrls, final Writer missing, final Writer orphaned)
+			throws IOException {
+		final Result result = new Result();
+		final long start = System.currentTimeMillis();
+		final S3TrafficClass previousClass = S3TrafficShaper.setCurrentClass(S3TrafficClass.BULK);
+		try (S3ExternalSorter.SortedStrings urls = sorter.sort(repositoryUrls)) {
+			if (LOG.isInfoEnabled()) {
+				LOG.info("S3ConsistencyChecker Sorted repository urls in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			}
+			final S3BucketListing listing = new S3BucketListing(s3Service, bucket.getName(), null);
+			String url = urls.hasNext() ? urls.next() : null;
+			String key = listing.hasNext() ? listing.next().getKey() : null;
+			while (url != null || key != null) {
+				final int cmp = url == null ? 1 : key == null ? -1 : S3ExternalSorter.CODE_POINT_ORDER.compare(url, key);
+				if (cmp == 0) {
+					result.matched++;
+				} else if (cmp < 0) {
+					result.missing++;
+					missing.write(url);
+					missing.write('\n');
+				} else {
+					result.orphaned++;
+					orphaned.write(key);
+					orphaned.write('\n');
+				}
+				if (cmp <= 0) {
+					url = urls.hasNext() ? urls.next() : null;
+				}
+				if (cmp >= 0) {
+					key = listing.hasNext() ? listing.next().getKey() : null;
+				}
+				if (LOG.isInfoEnabled() && (result.matched + result.missing + result.orphaned) % PROGRESS_INTERVAL == 0) {
+					LOG.info("S3ConsistencyChecker Progress: " + result);
+				}
+			}
+		} finally {
+			S3TrafficShaper.setCurrentClass(previousClass);
+		}
+		missing.flush();
+		orphaned.flush();
+		if (LOG.isInfoEnabled()) {
+			LOG.info("S3ConsistencyChecker Completed in " + (System.currentTimeMillis() - start) + " ms: " + result);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the lines of a file lazily. The file is closed at its end.
+	 *
+	 * @param file the file
+	 * @return the non blank lines, trimmed
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Iterator<String> readLines(final File file) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8),
+				65536);
+		return new Iterator<String>() {
+			private String next;
+
+			public boolean hasNext() {
+				try {
+					while (next == null) {
+						final String line = reader.readLine();
+						if (line == null) {
+							reader.close();
+							return false;
+						}
+						if (line.trim().length() > 0) {
+							next = line.trim();
+						}
+					}
+					return true;
+				} catch (IOException ioex) {
+					throw new IllegalStateException("Failed to read " + file, ioex);
+				}
+			}
+
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final String line = next;
+				next = null;
+				return line;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * The result of a check.
+	 */
+	public static final class Result {
+
+		/** The matched count. */
+		private long matched;
+
+		/** The missing count. */
+		private long missing;
+
+		/** The orphaned count. */
+		private long orphaned;
+
+		/**
+		 * Gets the number of urls with an object.
+		 *
+		 * @return the matched count
+		 */
+		public long getMatched() {
+			return matched;
+		}
+
+		/**
+		 * Gets the number of urls without object.
+		 *
+		 * @return the missing count
+		 */
+		public long getMissing() {
+			return missing;
+		}
+
+		/**
+		 * Gets the number of objects without url.
+		 *
+		 * @return the orphaned count
+		 */
+		public long getOrphaned() {
+			return orphaned;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "matched=" + matched + " missing=" + missing + " orphaned=" + orphaned;
+		}
+	}
+
+	/**
+	 * Runs a check from the command line.
+	 *
+	 * @param args the arguments
+	 * @throws Exception the exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: S3ConsistencyChecker <content url file> [output directory]");
+			System.exit(2);
+		}
+		final ConfigReader config = ConfigReader.getInstance();
+		final S3Service s3Service = new S3ShapedRestService(new AWSCredentials(
+				config.getProperty(CloudStoreConstants.ACCESSKEY, null),
+				config.getProperty(CloudStoreConstants.SECRETKEY, null)), S3TrafficClass.BULK);
+		final S3Bucket bucket = new S3Bucket(config.getProperty(CloudStoreConstants.BUCKET, null));
+		final File outputDir = new File(args.length > 1 ? args[1] : ".");
+		outputDir.mkdirs();
+		final S3ConsistencyChecker checker = new S3ConsistencyChecker(s3Service, bucket, outputDir,
+				config.getIntProperty(CloudStoreConstants.CONSISTENCY_SORT_CHUNK_SIZE, 500000));
+		try (Writer missing = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(outputDir, "missing.txt")), UTF8));
+				Writer orphaned = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(new File(outputDir, "orphaned.txt")), UTF8))) {
+			System.out.println(checker.check(readLines(new File(args[0])), missing, orphaned));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * The Class S3ContentHeaders.<br/>
+ * The HTTP headers stored with an object so it can be served straight from
+ * S3, e.g. through a signed url, with the right Content-Type and caching.
+ * The content urls are never rewritten, so the objects can be cached for
+ * long.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public final class S3ContentHeaders {
+
+	/** The content type used when the mimetype is unknown. */
+	public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	/** The headers of content without a mimetype. */
+	public static final S3ContentHeaders DEFAULT = new S3ContentHeaders(null, null, null);
+
+	/** The content type. */
+	private final String contentType;
+
+	/** The cache control, null to leave it unset. */
+	private final String cacheControl;
+
+	/**
+	 * Instantiates new content headers.
+	 *
+	 * @param mimetype the mimetype, or null if unknown
+	 * @param encoding the encoding, or null if unknown
+	 * @param cacheControl the cache control, or null to leave it unset
+	 */
+	public S3ContentHeaders(final String mimetype, final String encoding, final String cacheControl) {
+		this.contentType = toContentType(mimetype, encoding);
+		this.cacheControl = cacheControl == null || cacheControl.trim().isEmpty() ? null : cacheControl.trim();
+	}
+
+	/**
+	 * Builds the content type, the charset is only added to textual types.
+	 *
+	 * @param mimetype the mimetype
+	 * @param encoding the encoding
+	 * @return the content type
+	 */
+	private static String toContentType(final String mimetype, final String encoding) {
+		if (mimetype == null || mimetype.trim().isEmpty()) {
+			return DEFAULT_CONTENT_TYPE;
+		}
+		final String type = mimetype.trim();
+		if (encoding == null || encoding.trim().isEmpty() || type.contains(";")) {
+			return type;
+		}
+		final boolean textual = type.startsWith("text/") || type.endsWith("xml") || type.endsWith("json")
+				|| type.endsWith("javascript");
+		return textual ? type + ";charset=" + encoding.trim() : type;
+	}
+
+	/**
+	 * Sets the headers on an object to upload.
+	 *
+	 * @param object the object
+	 */
+	public void applyTo(final StorageObject object) {
+		object.setContentType(contentType);
+		if (cacheControl != null) {
+			// jets3t sends this metadata name as the HTTP header
+			object.addMetadata("Cache-Control", cacheControl);
+		}
+	}
+
+	/**
+	 * Gets the content type.
+	 *
+	 * @return the content type
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Gets the cache control.
+	 *
+	 * @return the cache control, or null if unset
+	 */
+	public String getCacheControl() {
+		return cacheControl;
+	}
+}
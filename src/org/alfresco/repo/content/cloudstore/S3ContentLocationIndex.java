@@ -0,0 +1,134 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Class S3ContentLocationIndex.<br/>
+ * In-memory index of the content urls held by the local tier. Any url which
+ * is not in the index lives in S3, so only the (small) hot working set is
+ * kept in memory. Each entry is a single long holding the last access time.
+ * Urls which are also present in S3 (e.g. prefetched copies) are flagged as
+ * clean, they can be dropped locally without an upload.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ContentLocationIndex {
+
+	/** The local urls mapped to their last access time. */
+	private final ConcurrentHashMap<String, Long> localUrls = new ConcurrentHashMap<String, Long>();
+
+	/** The local urls which already have an identical copy in S3. */
+	private final Set<String> cleanUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Registers a url as held by the local tier.
+	 *
+	 * @param contentUrl the content url
+	 * @param lastAccess the last access time
+	 */
+	public void register(final String contentUrl, final long lastAccess) {
+		cleanUrls.remove(contentUrl);
+		localUrls.put(contentUrl, Long.valueOf(lastAccess));
+	}
+
+	/**
+	 * Registers a url as held by the local tier and already stored in S3.
+	 *
+	 * @param contentUrl the content url
+	 * @param lastAccess the last access time
+	 */
+	public void registerClean(final String contentUrl, final long lastAccess) {
+		cleanUrls.add(contentUrl);
+		localUrls.put(contentUrl, Long.valueOf(lastAccess));
+	}
+
+	/**
+	 * Checks if the local copy of the url is also stored in S3.
+	 *
+	 * @param contentUrl the content url
+	 * @return true, if clean
+	 */
+	public boolean isClean(final String contentUrl) {
+		return cleanUrls.contains(contentUrl);
+	}
+
+	/**
+	 * Removes a url from the index, it will be resolved against S3 afterwards.
+	 *
+	 * @param contentUrl the content url
+	 * @return true, if the url was held locally
+	 */
+	public boolean remove(final String contentUrl) {
+		cleanUrls.remove(contentUrl);
+		return localUrls.remove(contentUrl) != null;
+	}
+
+	/**
+	 * Checks if the url is held by the local tier.
+	 *
+	 * @param contentUrl the content url
+	 * @return true, if local
+	 */
+	public boolean isLocal(final String contentUrl) {
+		return localUrls.containsKey(contentUrl);
+	}
+
+	/**
+	 * Records a read of a local url.
+	 *
+	 * @param contentUrl the content url
+	 * @return true, if the url is held locally
+	 */
+	public boolean touch(final String contentUrl) {
+		return localUrls.replace(contentUrl, Long.valueOf(System.currentTimeMillis())) != null;
+	}
+
+	/**
+	 * Gets the last access time of a local url.
+	 *
+	 * @param contentUrl the content url
+	 * @return the last access, or -1 if the url is not local
+	 */
+	public long getLastAccess(final String contentUrl) {
+		final Long lastAccess = localUrls.get(contentUrl);
+		return lastAccess == null ? -1L : lastAccess.longValue();
+	}
+
+	/**
+	 * Gets a weakly consistent view of the local entries.
+	 *
+	 * @return the entries
+	 */
+	public Set<Map.Entry<String, Long>> entries() {
+		return localUrls.entrySet();
+	}
+
+	/**
+	 * Gets the number of local urls.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return localUrls.size();
+	}
+}
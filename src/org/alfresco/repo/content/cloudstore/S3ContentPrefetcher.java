@@ -0,0 +1,262 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The Class S3ContentPrefetcher.<br/>
+ * Warms the local tier with S3 content which is about to be read, e.g. the
+ * thumbnails of a folder opened in Share. Requests are queued by priority and
+ * fetched by a bounded number of concurrent tasks, each task takes the most
+ * urgent request when it starts. Once the queue is half full LOW
+ * requests are refused, and once it is full queued requests of a lower
+ * priority are cancelled to make room.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ContentPrefetcher {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3ContentPrefetcher.class);
+
+	/** The local tier. */
+	private final S3LocalContentTier localTier;
+
+	/** The max number of queued requests. */
+	private final int maxQueued;
+
+	/** The max size of a prefetched object. */
+	private final long maxObjectSize;
+
+	/** The queue. */
+	private final PriorityBlockingQueue<PrefetchTask> queue = new PriorityBlockingQueue<PrefetchTask>();
+
+	/** The executor. */
+	private final S3TaskExecutor executor;
+
+	/** Runs the most urgent queued request, submitted once per queued request. */
+	private final Runnable dispatcher = new Runnable() {
+		public void run() {
+			final PrefetchTask task = queue.poll();
+			if (task != null) {
+				task.run();
+			}
+		}
+	};
+
+	/** The urls queued or being fetched. */
+	private final Set<String> pendingUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** The request sequence, keeps FIFO order within a priority. */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** The fetched count. */
+	private final AtomicLong fetched = new AtomicLong();
+
+	/** The cancelled count. */
+	private final AtomicLong cancelled = new AtomicLong();
+
+	/**
+	 * Instantiates a new content prefetcher.
+	 *
+	 * @param localTier the local tier
+	 * @param threads the number of concurrent fetches
+	 * @param maxQueued the max number of queued requests
+	 * @param maxObjectSize the max size of a prefetched object
+	 */
+	public S3ContentPrefetcher(final S3LocalContentTier localTier, final int threads,
+			final int maxQueued, final long maxObjectSize) {
+		this.localTier = localTier;
+		this.maxQueued = Math.max(1, maxQueued);
+		this.maxObjectSize = maxObjectSize;
+		this.executor = new S3TaskExecutor("S3Prefetch", threads, S3TrafficClass.BACKGROUND);
+	}
+
+	/**
+	 * Queues a batch of content urls for prefetch.
+	 *
+	 * @param contentUrls the content urls
+	 * @param priority the priority
+	 * @return the number of urls accepted
+	 */
+	public int prefetch(final Collection<String> contentUrls, final S3PrefetchPriority priority) {
+		int accepted = 0;
+		for (final String contentUrl : contentUrls) {
+			if (localTier.isLocal(contentUrl) || !pendingUrls.add(contentUrl)) {
+				continue;
+			}
+			if (!admit(priority)) {
+				pendingUrls.remove(contentUrl);
+				cancelled.incrementAndGet();
+				continue;
+			}
+			queue.add(new PrefetchTask(contentUrl, priority, sequence.incrementAndGet()));
+			executor.execute(dispatcher);
+			accepted++;
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("S3ContentPrefetcher Queued: accepted=" + accepted + " requested="
+					+ contentUrls.size() + " priority=" + priority + " queued=" + queue.size());
+		}
+		return accepted;
+	}
+
+	/**
+	 * Cancels the queued requests of the given priority and lower.
+	 *
+	 * @param priority the highest priority to cancel
+	 * @return the number of cancelled requests
+	 */
+	public int cancel(final S3PrefetchPriority priority) {
+		int count = 0;
+		for (final PrefetchTask task : queue) {
+			if (task.priority.ordinal() >= priority.ordinal() && queue.remove(task)) {
+				pendingUrls.remove(task.contentUrl);
+				count++;
+			}
+		}
+		cancelled.addAndGet(count);
+		return count;
+	}
+
+	/**
+	 * Decides if a request of the given priority can be queued, evicting a
+	 * lower priority request if the queue is full.
+	 *
+	 * @param priority the priority
+	 * @return true, if admitted
+	 */
+	private boolean admit(final S3PrefetchPriority priority) {
+		final int queued = queue.size();
+		if (queued < maxQueued) {
+			return priority != S3PrefetchPriority.LOW || queued < maxQueued / 2;
+		}
+		PrefetchTask victim = null;
+		for (final PrefetchTask task : queue) {
+			if (task.priority.ordinal() > priority.ordinal()
+					&& (victim == null || task.compareTo(victim) > 0)) {
+				victim = task;
+			}
+		}
+		if (victim != null && queue.remove(victim)) {
+			pendingUrls.remove(victim.contentUrl);
+			cancelled.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of fetched objects.
+	 *
+	 * @return the fetched count
+	 */
+	public long getFetchedCount() {
+		return fetched.get();
+	}
+
+	/**
+	 * Gets the number of refused or cancelled requests.
+	 *
+	 * @return the cancelled count
+	 */
+	public long getCancelledCount() {
+		return cancelled.get();
+	}
+
+	/**
+	 * Gets the number of queued requests.
+	 *
+	 * @return the queued count
+	 */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops the prefetcher, queued requests are discarded.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		queue.clear();
+	}
+
+	/**
+	 * A queued prefetch, ordered by priority then by arrival.
+	 */
+	private final class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+
+		/** The content url. */
+		private final String contentUrl;
+
+		/** The priority. */
+		private final S3PrefetchPriority priority;
+
+		/** The sequence. */
+		private final long seq;
+
+		/**
+		 * Instantiates a new prefetch task.
+		 *
+		 * @param contentUrl the content url
+		 * @param priority the priority
+		 * @param seq the sequence
+		 */
+		private PrefetchTask(final String contentUrl, final S3PrefetchPriority priority, final long seq) {
+			this.contentUrl = contentUrl;
+			this.priority = priority;
+			this.seq = seq;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			try {
+				if (localTier.fetchFromS3(contentUrl, maxObjectSize)) {
+					fetched.incrementAndGet();
+				}
+			} catch (Exception excp) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("S3ContentPrefetcher Failed to Prefetch: contentUrl=" + contentUrl + " " + excp);
+				}
+			} finally {
+				pendingUrls.remove(contentUrl);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		public int compareTo(final PrefetchTask other) {
+			if (priority != other.priority) {
+				return priority.ordinal() - other.priority.ordinal();
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+	}
+}
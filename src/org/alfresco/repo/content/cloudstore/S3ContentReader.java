@@ -19,22 +19,32 @@
 
 package org.alfresco.repo.content.cloudstore;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 
 import org.alfresco.repo.content.AbstractContentReader;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentServiceTransientException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
 
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+
 /**
- * Provides READ services against an S3 content store.
+ * Provides READ services against an S3 content store. When the store is
+ * replicated, the object is read from the fastest bucket which holds it.
  *
  * @author Luis Sala
  * @author Updated by - Abhinav Kumar Mishra
@@ -62,9 +72,12 @@ public class S3ContentReader extends AbstractContentReader {
 	/** The s3Service. */
 	private S3Service s3Service;
 
-	/** The bucket. */
+	/** The bucket holding the object. */
 	private S3Bucket bucket;
 
+	/** The read router. */
+	private final S3ReadRouter router;
+
 	/**
 	 * Constructor that builds a URL based on the absolute path of the file.
 	 *
@@ -74,10 +87,21 @@ public class S3ContentReader extends AbstractContentReader {
 	 */
 	public S3ContentReader(final String nodeUrl, final S3Service s3Sevice,
 			final S3Bucket bucket) {
+		this(nodeUrl, new S3ReadRouter(s3Sevice, bucket));
+	}
+
+	/**
+	 * Constructor for a reader routed across the buckets of the store.
+	 *
+	 * @param nodeUrl url of the content node.
+	 * @param router the read router
+	 */
+	public S3ContentReader(final String nodeUrl, final S3ReadRouter router) {
 		super(nodeUrl);
 		this.nodeUrl = nodeUrl;
-		this.s3Service = s3Sevice;
-		this.bucket = bucket;
+		this.router = router;
+		this.s3Service = router.getS3Service();
+		this.bucket = router.getPrimaryBucket();
 		getDetails();
 	}
 
@@ -89,7 +113,7 @@ public class S3ContentReader extends AbstractContentReader {
 		if(LOG.isDebugEnabled()){
 			LOG.debug("S3ContentReader.createReader() invoked for contentUrl="+nodeUrl);
 		}
-		return new S3ContentReader(nodeUrl, s3Service, bucket);
+		return new S3ContentReader(nodeUrl, router);
 	}
 
 	/* (non-Javadoc)
@@ -106,14 +130,36 @@ public class S3ContentReader extends AbstractContentReader {
 				LOG.debug("S3ContentReader Obtaining Input Stream: nodeUrl="+nodeUrl);
 			}
 			// Get the object and retrieve the input stream
-			final S3Object object = s3Service.getObject(bucket, nodeUrl);
+			final S3Object object;
+			final S3TraceSpan span = S3Tracer.start("GET").setContentUrl(nodeUrl);
+			try {
+				object = getObject(span);
+				span.setBucketName(object.getBucketName()).setSize(object.getContentLength());
+			} catch (Exception excp) {
+				span.setError(excp);
+				throw excp;
+			} finally {
+				span.end();
+			}
+			if (router.getAccessStatistics() != null) {
+				router.getAccessStatistics().recordAccess(nodeUrl);
+			}
+			if (router.getArchiveRestorer() != null) {
+				router.getArchiveRestorer().restored(object.getBucketName(), nodeUrl);
+			}
 			ReadableByteChannel channel = null;
 			final InputStream is = object.getDataInputStream();
 			channel = Channels.newChannel(is);
+			final Object sha256 = object.getMetadata(CloudStoreConstants.META_SHA256);
+			if (sha256 != null) {
+				channel = new S3VerifyingReadableChannel(channel, nodeUrl, sha256.toString());
+			}
 			if(LOG.isDebugEnabled()){
 				LOG.debug("S3ContentReader Success Obtaining Input Stream: nodeUrl="+nodeUrl);
 			}
 			return channel;
+		} catch (ContentIOException ciex) {
+			throw ciex;
 		} catch (Exception excp) {
 			throw new ContentIOException("Failed to open channel: " + this, excp);
 		}
@@ -155,6 +201,151 @@ public class S3ContentReader extends AbstractContentReader {
 	}
 
 
+	/**
+	 * Gets the first bytes of the content with a ranged GET, for the
+	 * metadata extractors and mimetype detectors which only sniff the
+	 * header. Fragments are served from the fragment cache when possible.
+	 *
+	 * @param length the number of bytes
+	 * @return the first bytes, fewer if the content is shorter
+	 * @throws ContentIOException if the content could not be read
+	 */
+	public byte[] getHeader(final int length) throws ContentIOException {
+		return getFragments(length, 0)[0];
+	}
+
+	/**
+	 * Gets the last bytes of the content with a ranged GET, e.g. the central
+	 * directory of a zip based document.
+	 *
+	 * @param length the number of bytes
+	 * @return the last bytes, fewer if the content is shorter
+	 * @throws ContentIOException if the content could not be read
+	 */
+	public byte[] getTrailer(final int length) throws ContentIOException {
+		return getFragments(0, length)[1];
+	}
+
+	/**
+	 * Gets the first and the last bytes of the content. When they overlap
+	 * the whole content is read with a single GET, otherwise each fragment
+	 * takes a ranged GET, as S3 does not serve multiple ranges at once.
+	 *
+	 * @param headerLength the number of leading bytes
+	 * @param trailerLength the number of trailing bytes
+	 * @return the header and the trailer
+	 * @throws ContentIOException if the content could not be read
+	 */
+	public byte[][] getFragments(final int headerLength, final int trailerLength) throws ContentIOException {
+		if (!exists()) {
+			throw new ContentIOException("Content object does not exist: " + nodeUrl);
+		}
+		final long size = getSize();
+		final int header = (int) Math.min(Math.max(0, headerLength), size);
+		final int trailer = (int) Math.min(Math.max(0, trailerLength), size);
+		final S3FragmentCache cache = router.getFragmentCache();
+		final String eTag = objectDetails.getETag();
+		byte[] headerBytes = cache == null ? null : cache.get(nodeUrl, eTag, true, header);
+		byte[] trailerBytes = cache == null ? null : cache.get(nodeUrl, eTag, false, trailer);
+		try {
+			if (headerBytes == null && trailerBytes == null && (long) header + trailer >= size
+					&& size <= Integer.MAX_VALUE) {
+				final byte[] whole = getRange(0L, (int) size);
+				headerBytes = Arrays.copyOf(whole, header);
+				trailerBytes = Arrays.copyOfRange(whole, whole.length - trailer, whole.length);
+			}
+			if (headerBytes == null) {
+				headerBytes = getRange(0L, header);
+			}
+			if (trailerBytes == null) {
+				trailerBytes = getRange(size - trailer, trailer);
+			}
+		} catch (ContentIOException ciex) {
+			throw ciex;
+		} catch (Exception excp) {
+			throw new ContentIOException("Failed to read fragments of: " + this, excp);
+		}
+		if (cache != null) {
+			cache.put(nodeUrl, eTag, true, headerBytes);
+			cache.put(nodeUrl, eTag, false, trailerBytes);
+		}
+		return new byte[][] {headerBytes, trailerBytes};
+	}
+
+	/**
+	 * Reads a range of the object, from the bucket which answered the
+	 * details first and failing over to the other buckets. A replica must
+	 * hold the same sha256 as the details.
+	 *
+	 * @param offset the offset
+	 * @param length the number of bytes
+	 * @return the bytes
+	 * @throws ServiceException if no bucket could serve the range
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private byte[] getRange(final long offset, final int length) throws ServiceException, IOException {
+		final byte[] bytes = new byte[length];
+		if (length == 0) {
+			return bytes;
+		}
+		final S3TraceSpan span = S3Tracer.start("GET_RANGE").setContentUrl(nodeUrl).setSize(length);
+		S3ServiceException lastExcp = null;
+		int attempts = 0;
+		try {
+			for (final S3Bucket candidate : getCandidates()) {
+				span.setBucketName(candidate.getName()).setRetries(attempts++);
+				final long start = System.currentTimeMillis();
+				// The ETag condition keeps the range consistent with the details. A
+				// replica is a copy whose ETag differs once it was copied in parts,
+				// so it is matched on the sha256 of the content instead.
+				final boolean detailsBucket = candidate == bucket;
+				final S3Object object;
+				try {
+					object = s3Service.getObject(candidate, nodeUrl, null, null,
+							detailsBucket ? new String[] {objectDetails.getETag()} : null, null,
+							Long.valueOf(offset), Long.valueOf(offset + length - 1));
+				} catch (S3ServiceException s3ServExcp) {
+					router.getLatencyTracker().recordFailure(candidate.getName());
+					lastExcp = s3ServExcp;
+					continue;
+				}
+				router.getLatencyTracker().record(candidate.getName(), System.currentTimeMillis() - start);
+				if (!detailsBucket && !isSameContent(object)) {
+					object.closeDataInputStream();
+					lastExcp = new S3ServiceException("Replica " + candidate.getName() + " holds other content for "
+							+ nodeUrl);
+					continue;
+				}
+				try (DataInputStream inStream = new DataInputStream(object.getDataInputStream())) {
+					inStream.readFully(bytes);
+				}
+				if(LOG.isDebugEnabled()){
+					LOG.debug("S3ContentReader Read range: nodeUrl=" + nodeUrl + " offset=" + offset
+							+ " length=" + length);
+				}
+				return bytes;
+			}
+			span.setError(lastExcp);
+			checkArchived(lastExcp);
+			throw lastExcp;
+		} finally {
+			span.end();
+		}
+	}
+
+	/**
+	 * Checks that an object read from a replica has the content described by
+	 * the details, by its sha256. Content written without a sha256 is
+	 * trusted, content urls are never rewritten.
+	 *
+	 * @param object the object read from a replica
+	 * @return true, if the content is the same
+	 */
+	private boolean isSameContent(final S3Object object) {
+		final Object expected = objectDetails.getMetadata(CloudStoreConstants.META_SHA256);
+		return expected == null || expected.equals(object.getMetadata(CloudStoreConstants.META_SHA256));
+	}
+
 	/**
 	 * Gets information on a stream. Returns headers from the response.
 	 *
@@ -165,17 +356,124 @@ public class S3ContentReader extends AbstractContentReader {
 			// Info already fetched, so don't do this again.
 			return;
 		}
+		S3ServiceException lastExcp = null;
+		final S3TraceSpan span = S3Tracer.start("HEAD").setContentUrl(nodeUrl);
+		int attempts = 0;
 		try {
-			objectDetails = s3Service.getObjectDetails(bucket, nodeUrl);
-		} catch (S3ServiceException s3ServExcp) {
-			if(LOG.isErrorEnabled()){
-				LOG.error("S3ContentReader Failed to get Object Details: " + s3ServExcp);
+			// Replicas may not hold the object yet, so try each bucket in turn.
+			for (final S3Bucket candidate : router.getOrderedBuckets()) {
+				span.setBucketName(candidate.getName()).setRetries(attempts++);
+				final long start = System.currentTimeMillis();
+				try {
+					objectDetails = s3Service.getObjectDetails(candidate, nodeUrl);
+					router.getLatencyTracker().record(candidate.getName(), System.currentTimeMillis() - start);
+					span.setSize(objectDetails.getContentLength());
+					bucket = candidate;
+					return;
+				} catch (S3ServiceException s3ServExcp) {
+					if (s3ServExcp.getResponseCode() == 404) {
+						router.getLatencyTracker().record(candidate.getName(), System.currentTimeMillis() - start);
+					} else {
+						router.getLatencyTracker().recordFailure(candidate.getName());
+					}
+					lastExcp = s3ServExcp;
+				}
 			}
+			if (lastExcp != null && lastExcp.getResponseCode() == 404) {
+				// A missing object is an expected answer, e.g. to exists()
+				if(LOG.isDebugEnabled()){
+					LOG.debug("S3ContentReader Object not found: nodeUrl=" + nodeUrl);
+				}
+			} else if(lastExcp != null && LOG.isErrorEnabled()){
+				LOG.error("S3ContentReader Failed to get Object Details: " + lastExcp);
+			}
+			span.setError(lastExcp);
 		} finally {
+			span.end();
 			cleanup();
 		}
 	} 
+
+	/**
+	 * Gets the object, from the bucket which answered the details first and
+	 * failing over to the other buckets.
+	 *
+	 * @param span the span of the read, tagged with the retries
+	 * @return the object
+	 * @throws S3ServiceException if no bucket could serve the object
+	 * @throws InterruptedException if interrupted while waiting for a hedged read
+	 */
+	private S3Object getObject(final S3TraceSpan span) throws S3ServiceException, InterruptedException {
+		final List<S3Bucket> candidates = getCandidates();
+		if (router.getReadHedger() != null) {
+			try {
+				return router.getReadHedger().getObject(candidates, nodeUrl);
+			} catch (S3ServiceException s3ServExcp) {
+				checkArchived(s3ServExcp);
+				throw s3ServExcp;
+			}
+		}
+		S3ServiceException lastExcp = null;
+		int attempts = 0;
+		for (final S3Bucket candidate : candidates) {
+			span.setRetries(attempts++);
+			final long start = System.currentTimeMillis();
+			try {
+				final S3Object object = s3Service.getObject(candidate, nodeUrl);
+				router.getLatencyTracker().record(candidate.getName(), System.currentTimeMillis() - start);
+				return object;
+			} catch (S3ServiceException s3ServExcp) {
+				router.getLatencyTracker().recordFailure(candidate.getName());
+				lastExcp = s3ServExcp;
+				if(LOG.isWarnEnabled()){
+					LOG.warn("S3ContentReader Failed to get Object from bucket " + candidate.getName()
+							+ ": " + s3ServExcp);
+				}
+			}
+		}
+		checkArchived(lastExcp);
+		throw lastExcp;
+	}
+
+	/**
+	 * Checks if a read failed because the object is archived. The restore of
+	 * the object is then started and the failure reported as transient, the
+	 * read can be retried once the object is restored. Replicas are tried
+	 * before, so this is only reached when no bucket could serve the object.
+	 *
+	 * @param s3ServExcp the last failure of the read
+	 * @throws ContentServiceTransientException if the object is archived
+	 */
+	private void checkArchived(final S3ServiceException s3ServExcp) {
+		final S3ArchiveRestorer restorer = router.getArchiveRestorer();
+		if (restorer == null || s3ServExcp == null || !S3ArchiveRestorer.isArchived(s3ServExcp)) {
+			return;
+		}
+		if (restorer.restore(bucket.getName(), nodeUrl)) {
+			throw new ContentServiceTransientException("Content is being restored from the archive: "
+					+ nodeUrl, s3ServExcp);
+		}
+		throw new ContentServiceTransientException("Content is archived and too many restores are in progress: "
+				+ nodeUrl, s3ServExcp);
+	}
 	
+	/**
+	 * Gets the buckets to read from: the one which answered the details,
+	 * then the others in the order of the router.
+	 *
+	 * @return the candidates
+	 */
+	private List<S3Bucket> getCandidates() {
+		final List<S3Bucket> candidates = new ArrayList<S3Bucket>();
+		candidates.add(bucket);
+		for (final S3Bucket candidate : router.getOrderedBuckets()) {
+			if (candidate != bucket) {
+				candidates.add(candidate);
+			}
+		}
+		return candidates;
+	}
+
 	/**
 	 * Cleanup.
 	 */
@@ -19,24 +19,37 @@
 
 package org.alfresco.repo.content.cloudstore;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
 import java.util.GregorianCalendar;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import org.alfresco.repo.content.AbstractContentStore;
+import org.alfresco.repo.content.ContentContext;
 import org.alfresco.repo.content.ContentStore;
 import org.alfresco.repo.content.filestore.FileContentStore;
+import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentStreamListener;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.util.GUID;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.security.AWSCredentials;
+import org.jets3t.service.utils.RestUtils;
 
 import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
 import com.abhinav.alfresco.publishing.cloudstore.ConfigReader;
@@ -65,6 +78,58 @@ public class S3ContentStore extends AbstractContentStore {
 	/** The bucket. */
 	private S3Bucket bucket;
 
+	/** The read router. */
+	private S3ReadRouter readRouter;
+
+	/** The read hedger, null unless hedging is enabled. */
+	private S3ReadHedger readHedger;
+
+	/** The replicator, null unless replica buckets are configured. */
+	private S3BucketReplicator replicator;
+
+	/** The cache of the existence checks. */
+	private final S3ExistenceCache existenceCache = new S3ExistenceCache(
+			ConfigReader.getInstance().getIntProperty(CloudStoreConstants.EXISTS_CACHE_MAX_ENTRIES, 100000),
+			ConfigReader.getInstance().getLongProperty(CloudStoreConstants.EXISTS_CACHE_POSITIVE_TTL_SECONDS, 300L) * 1000L,
+			ConfigReader.getInstance().getLongProperty(CloudStoreConstants.EXISTS_CACHE_NEGATIVE_TTL_SECONDS, 10L) * 1000L);
+
+	/** The filter of the keys which may exist, null if none. */
+	private S3KeyFilter keyFilter;
+
+	/** The local index of the bucket keys, null unless enabled. */
+	private S3KeyIndex keyIndex;
+
+	/** The uploader of the written content, null until initialized. */
+	private S3MultipartUploader uploader;
+
+	/** The issuer of the uploads sent straight to S3, null until initialized. */
+	private S3DirectUploader directUploader;
+
+	/** The pool of the memory buffers of small written contents. */
+	private S3BufferPool bufferPool;
+
+	/** The max size of a written content held in memory, 0 to always use a temp file. */
+	private long writerMemoryThreshold;
+
+	/** The cache control of the uploaded objects, null to leave it unset. */
+	private String uploadCacheControl;
+
+	/** The executor of the asynchronous operations. */
+	private final S3TaskExecutor asyncExecutor = new S3TaskExecutor("S3Async",
+			ConfigReader.getInstance().getIntProperty(CloudStoreConstants.ASYNC_MAX_CONCURRENCY, 64));
+
+	/** The local tier, null unless tiering is enabled. */
+	private S3LocalContentTier localTier;
+
+	/** The restorer of archived objects, null if the service cannot restore. */
+	private S3ArchiveRestorer archiveRestorer;
+
+	/** The lifecycle manager, null unless enabled. */
+	private S3LifecycleManager lifecycleManager;
+
+	/** The prefetcher, null unless tiering is enabled. */
+	private S3ContentPrefetcher prefetcher;
+
 	/** The Constant logger. */
 	private static final Log LOG = LogFactory.getLog(S3ContentStore.class);
 	
@@ -91,12 +156,18 @@ public class S3ContentStore extends AbstractContentStore {
 
 		// Instantiate S3 Service and create necessary bucket.
 		try {
-			s3Service = new RestS3Service(new AWSCredentials(accessKey, secretKey));
+			s3Service = new S3ShapedRestService(new AWSCredentials(accessKey, secretKey));
 			if(LOG.isInfoEnabled()){
 				LOG.info("S3ContentStore Creating Bucket: bucketName="+ bucketName);
 			}
 			bucket = s3Service.getOrCreateBucket(bucketName);
 			
+			S3MBeanRegistry.register("S3Tracer", S3Tracer.getInstance());
+			initReplication();
+			initUploads();
+			initTiering();
+			initKeyIndex();
+			initLifecycle();
 			if(LOG.isInfoEnabled()){
 				LOG.info("S3ContentStore Initialization Complete");
 			}
@@ -130,7 +201,7 @@ public class S3ContentStore extends AbstractContentStore {
 
 		// Instantiate S3 Service and create necessary bucket.
 		try {
-			s3Service = new RestS3Service(new AWSCredentials(accessKey, secretKey));
+			s3Service = new S3ShapedRestService(new AWSCredentials(accessKey, secretKey));
 			if(LOG.isInfoEnabled()){
 				LOG.info("S3ContentStore Creating Bucket: bucketName="+ bucketName);
 			}
@@ -138,6 +209,12 @@ public class S3ContentStore extends AbstractContentStore {
 			// System.out.println("S3ContentStore Creating Bucket: bucketName="+bucketName);
 			bucket = s3Service.getOrCreateBucket(bucketName);
 			
+			S3MBeanRegistry.register("S3Tracer", S3Tracer.getInstance());
+			initReplication();
+			initUploads();
+			initTiering();
+			initKeyIndex();
+			initLifecycle();
 			if(LOG.isInfoEnabled()){
 				LOG.info("S3ContentStore Initialization Complete");
 			}
@@ -170,7 +247,16 @@ public class S3ContentStore extends AbstractContentStore {
 	public ContentReader getReader(final String contentUrl)
 			throws ContentIOException {
 		try {
-			return new S3ContentReader(contentUrl, s3Service, bucket);
+			if (localTier != null) {
+				final ContentReader localReader = localTier.getReader(contentUrl);
+				if (localReader != null) {
+					if (readRouter.getAccessStatistics() != null) {
+						readRouter.getAccessStatistics().recordAccess(contentUrl);
+					}
+					return localReader;
+				}
+			}
+			return new S3ContentReader(contentUrl, readRouter);
 		} catch (Exception globalExcp) {
 			throw new ContentIOException(
 					"S3ContentStore Failed to get reader for URL: "+ contentUrl, globalExcp);
@@ -191,7 +277,43 @@ public class S3ContentStore extends AbstractContentStore {
 			} else {
 				contentUrl = newContentUrl;
 			}
-			return new S3ContentWriter(contentUrl, existingContentReader, s3Service,bucket);
+			final String writtenUrl = contentUrl;
+			final ContentWriter writer;
+			final S3ContentWriter s3Writer;
+			if (localTier != null) {
+				writer = localTier.getWriter(existingContentReader, contentUrl);
+				s3Writer = null;
+			} else {
+				s3Writer = new S3ContentWriter(contentUrl, existingContentReader, s3Service,bucket);
+				s3Writer.setUploader(uploader);
+				s3Writer.setBufferPool(bufferPool, writerMemoryThreshold);
+				s3Writer.setCacheControl(uploadCacheControl);
+				writer = s3Writer;
+				if (replicator != null) {
+					// Runs after the S3StreamListener has uploaded the content
+					writer.addListener(new ContentStreamListener() {
+						public void contentStreamClosed() throws ContentIOException {
+							if (s3Writer.isUploaded()) {
+								replicator.replicate(writtenUrl);
+							}
+						}
+					});
+				}
+			}
+			existenceCache.invalidate(contentUrl);
+			writer.addListener(new ContentStreamListener() {
+				public void contentStreamClosed() throws ContentIOException {
+					if (s3Writer != null && !s3Writer.isUploaded()) {
+						// Nothing was stored, the url must not be reported present
+						return;
+					}
+					existenceCache.put(writtenUrl, true);
+					if (keyIndex != null) {
+						keyIndex.recordPut(writtenUrl);
+					}
+				}
+			});
+			return writer;
 		}catch (Exception globalExcp) {
 			if(LOG.isErrorEnabled()){
 				LOG.error("S3ContentStore.getWriterInternal(): Failed to get writer. "+ globalExcp);
@@ -209,7 +331,18 @@ public class S3ContentStore extends AbstractContentStore {
 			if(LOG.isDebugEnabled()){
 				LOG.debug("S3ContentStore Deleting Object: contentUrl="+ contentUrl);
 			}
+			if (localTier != null) {
+				localTier.delete(contentUrl);
+			}
+			if (replicator != null) {
+				replicator.delete(contentUrl);
+			}
+			existenceCache.invalidate(contentUrl);
 			s3Service.deleteObject(bucket, contentUrl);
+			existenceCache.put(contentUrl, false);
+			if (keyIndex != null) {
+				keyIndex.recordDelete(contentUrl);
+			}
 			return true;
 		} catch (S3ServiceException s3ServExcp) {
 			if(LOG.isErrorEnabled()){
@@ -221,6 +354,61 @@ public class S3ContentStore extends AbstractContentStore {
 		return false;
 	} 
 	
+	/**
+	 * Checks if content exists, without building a reader. The local tier,
+	 * the existence cache and the key filter are consulted first, and only
+	 * then a HEAD request is sent to the primary bucket. A missing object is
+	 * not an error here.
+	 *
+	 * @param contentUrl the content url
+	 * @return true, if the content exists
+	 */
+	@Override
+	public boolean exists(final String contentUrl) {
+		if (localTier != null && localTier.isLocal(contentUrl)) {
+			return true;
+		}
+		final Boolean cached = existenceCache.get(contentUrl);
+		if (cached != null) {
+			return cached.booleanValue();
+		}
+		if (keyFilter != null && !keyFilter.mightContain(contentUrl)) {
+			return false;
+		}
+		final long start = System.currentTimeMillis();
+		final S3TraceSpan span = S3Tracer.start("EXISTS").setContentUrl(contentUrl).setBucketName(bucket.getName());
+		boolean exists;
+		try {
+			span.setSize(s3Service.getObjectDetails(bucket, contentUrl).getContentLength());
+			exists = true;
+		} catch (S3ServiceException s3ServExcp) {
+			if (s3ServExcp.getResponseCode() != 404) {
+				readRouter.getLatencyTracker().recordFailure(bucket.getName());
+				span.setError(s3ServExcp);
+				throw new ContentIOException("S3ContentStore Failed to check existence of " + contentUrl, s3ServExcp);
+			}
+			exists = false;
+		} finally {
+			span.end();
+		}
+		readRouter.getLatencyTracker().record(bucket.getName(), System.currentTimeMillis() - start);
+		existenceCache.put(contentUrl, exists);
+		if(LOG.isDebugEnabled()){
+			LOG.debug("S3ContentStore Exists: contentUrl=" + contentUrl + " exists=" + exists);
+		}
+		return exists;
+	}
+
+	/**
+	 * Sets the filter of the keys which may exist. When set, the keys it
+	 * rules out are reported missing without a request to S3.
+	 *
+	 * @param keyFilter the new key filter, or null for none
+	 */
+	public void setKeyFilter(final S3KeyFilter keyFilter) {
+		this.keyFilter = keyFilter;
+	}
+
 	/**
 	 * Cleanup, connections, buckets, etc. at some point in the future.
 	 */
@@ -228,6 +416,437 @@ public class S3ContentStore extends AbstractContentStore {
 		//TODO::
 	} 
 
+	/**
+	 * Stops the background work of the store.
+	 */
+	public void destroy() {
+		if (prefetcher != null) {
+			prefetcher.shutdown();
+		}
+		if (localTier != null) {
+			localTier.shutdown();
+		}
+		if (replicator != null) {
+			replicator.shutdown();
+		}
+		if (readHedger != null) {
+			readHedger.shutdown();
+		}
+		asyncExecutor.shutdown();
+		if (directUploader != null) {
+			directUploader.shutdown();
+		}
+		if (uploader != null) {
+			uploader.shutdown();
+			S3MBeanRegistry.unregister("S3UploadTuner");
+		}
+		if (keyIndex != null) {
+			keyIndex.close();
+		}
+		if (lifecycleManager != null) {
+			lifecycleManager.shutdown();
+		}
+		if (archiveRestorer != null) {
+			archiveRestorer.shutdown();
+		}
+		S3MBeanRegistry.unregister("S3Tracer");
+	}
+
+	/**
+	 * Gets a reader without blocking the caller. The object details are
+	 * fetched before the future completes.
+	 *
+	 * @param contentUrl the content url
+	 * @return the future reader
+	 */
+	public S3Future<ContentReader> getReaderAsync(final String contentUrl) {
+		return submit(new Callable<ContentReader>() {
+			public ContentReader call() {
+				return getReader(contentUrl);
+			}
+		});
+	}
+
+	/**
+	 * Writes the content of a file without blocking the caller. The content
+	 * goes through the same path as a {@link ContentWriter} of this store,
+	 * i.e. the url checks, the local tier, checksums and replication. An
+	 * existing content url is rejected, content is never overwritten.
+	 *
+	 * @param contentUrl the content url, or null to create a new one
+	 * @param file the file
+	 * @param mimetype the mimetype, or null
+	 * @param encoding the encoding, or null
+	 * @return the future content url
+	 */
+	public S3Future<String> putAsync(final String contentUrl, final File file, final String mimetype,
+			final String encoding) {
+		return submit(new Callable<String>() {
+			public String call() {
+				final ContentWriter writer = getWriter(new ContentContext(null, contentUrl));
+				writer.setMimetype(mimetype);
+				writer.setEncoding(encoding);
+				writer.putContent(file);
+				return writer.getContentUrl();
+			}
+		});
+	}
+
+	/**
+	 * Deletes content without blocking the caller.
+	 *
+	 * @param contentUrl the content url
+	 * @return the future outcome, as {@link #delete(String)}
+	 */
+	public S3Future<Boolean> deleteAsync(final String contentUrl) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return Boolean.valueOf(delete(contentUrl));
+			}
+		});
+	}
+
+	/**
+	 * Checks if content exists without blocking the caller.
+	 *
+	 * @param contentUrl the content url
+	 * @return the future outcome
+	 */
+	public S3Future<Boolean> existsAsync(final String contentUrl) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return Boolean.valueOf(exists(contentUrl));
+			}
+		});
+	}
+
+	/**
+	 * Runs an operation on the async executor.
+	 *
+	 * @param <T> the result type
+	 * @param operation the operation
+	 * @return the future
+	 */
+	private <T> S3Future<T> submit(final Callable<T> operation) {
+		final S3Future<T> future = new S3Future<T>(operation);
+		asyncExecutor.execute(future);
+		return future;
+	}
+
+	/**
+	 * Fetches a batch of content urls into the local tier ahead of the reads,
+	 * e.g. the children of a folder being browsed. Urls already held locally
+	 * are skipped. This is a no-op unless tiering is enabled.
+	 *
+	 * @param contentUrls the content urls
+	 * @param priority the priority
+	 * @return the number of urls queued
+	 */
+	public int prefetch(final Collection<String> contentUrls, final S3PrefetchPriority priority) {
+		if (prefetcher == null) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("S3ContentStore Prefetch ignored, tiering is disabled");
+			}
+			return 0;
+		}
+		return prefetcher.prefetch(contentUrls, priority);
+	}
+
+	/**
+	 * Cancels the queued prefetches of the given priority and lower.
+	 *
+	 * @param priority the highest priority to cancel
+	 * @return the number of cancelled prefetches
+	 */
+	public int cancelPrefetch(final S3PrefetchPriority priority) {
+		return prefetcher == null ? 0 : prefetcher.cancel(priority);
+	}
+
+	/**
+	 * Issues the ticket of an upload sent by the client straight to S3, for a
+	 * new content url. The client PUTs the content to the signed url, or each
+	 * part to the url given by {@link #signUploadPart(String, int, String)},
+	 * and then calls {@link #completeUpload(String)} with the id of the
+	 * ticket. The repository holds no thread, temp file or socket during the
+	 * transfer.
+	 *
+	 * @param size the size of the content
+	 * @param md5Hex the md5 of the content in hex, required unless the
+	 *        content is uploaded in parts
+	 * @param mimetype the mimetype, or null if unknown
+	 * @param encoding the encoding, or null if unknown
+	 * @return the upload ticket
+	 * @throws ContentIOException if the upload could not be issued
+	 */
+	public S3UploadTicket createUploadTicket(final long size, final String md5Hex, final String mimetype,
+			final String encoding) throws ContentIOException {
+		return directUploader.createTicket(size, md5Hex, mimetype, encoding);
+	}
+
+	/**
+	 * Signs the url of a part of an upload sent straight to S3, for the md5
+	 * of the part which S3 checks.
+	 *
+	 * @param ticketId the id of the ticket
+	 * @param partNumber the part number, from 1
+	 * @param md5Hex the md5 of the part in hex
+	 * @return the signed url of the part
+	 * @throws ContentIOException if the ticket or the part is not valid
+	 */
+	public String signUploadPart(final String ticketId, final int partNumber, final String md5Hex)
+			throws ContentIOException {
+		return directUploader.signPart(ticketId, partNumber, md5Hex);
+	}
+
+	/**
+	 * Completes an upload sent straight to S3. The size and the checksum of
+	 * the object are checked with a HEAD; the returned content data is set on
+	 * the content property of the node. The ticket can be completed once.
+	 *
+	 * @param ticketId the id of the ticket
+	 * @return the content data of the uploaded content
+	 * @throws ContentIOException if the ticket is not valid or the content does not match it
+	 */
+	public ContentData completeUpload(final String ticketId) throws ContentIOException {
+		final ContentData contentData = directUploader.complete(ticketId);
+		final String contentUrl = contentData.getContentUrl();
+		existenceCache.put(contentUrl, true);
+		if (keyIndex != null) {
+			keyIndex.recordPut(contentUrl);
+		}
+		if (replicator != null) {
+			replicator.replicate(contentUrl);
+		}
+		return contentData;
+	}
+
+	/**
+	 * Cancels an upload sent straight to S3 which will not be completed.
+	 *
+	 * @param ticketId the id of the ticket
+	 * @throws ContentIOException if the ticket is unknown or already completed
+	 */
+	public void abortUpload(final String ticketId) throws ContentIOException {
+		directUploader.abort(ticketId);
+	}
+
+	/**
+	 * Creates a signed GET url of a content, valid for the default expiry, so
+	 * the content can be downloaded from S3 directly.
+	 *
+	 * @param contentUrl the content url
+	 * @return the signed url, or null if the content is held in the local tier
+	 * @throws ContentIOException if the url could not be signed
+	 */
+	public String createSignedGetUrl(final String contentUrl) throws ContentIOException {
+		return createSignedGetUrl(contentUrl, ConfigReader.getInstance().getIntProperty(
+				CloudStoreConstants.SIGNED_URL_EXPIRY_SECONDS, 300), null, false);
+	}
+
+	/**
+	 * Creates a signed GET url of a content, so the content can be downloaded
+	 * from S3 directly, e.g. by a redirect, instead of being streamed through
+	 * the repository. The Content-Type and Cache-Control stored with the object
+	 * are served as is; the file name, if any, is sent as Content-Disposition.
+	 * The expiry is capped at the configured max.
+	 *
+	 * @param contentUrl the content url
+	 * @param expirySeconds the validity of the url in seconds
+	 * @param fileName the file name offered to the browser, or null
+	 * @param attachment true to download, false to display inline
+	 * @return the signed url, or null if the content is held in the local tier
+	 * @throws ContentIOException if the url could not be signed
+	 */
+	public String createSignedGetUrl(final String contentUrl, final int expirySeconds, final String fileName,
+			final boolean attachment) throws ContentIOException {
+		if (localTier != null && localTier.isLocal(contentUrl)) {
+			// Not in S3 yet, the content must be read through the store
+			return null;
+		}
+		final int maxExpiry = ConfigReader.getInstance().getIntProperty(
+				CloudStoreConstants.SIGNED_URL_MAX_EXPIRY_SECONDS, 86400);
+		final long expiry = (System.currentTimeMillis() / 1000L) + Math.max(1, Math.min(maxExpiry, expirySeconds));
+		try {
+			final String disposition = fileName == null ? null : "response-content-disposition="
+					+ RestUtils.encodeUrlString(toContentDisposition(fileName, attachment));
+			return s3Service.createSignedUrl("GET", bucketName, contentUrl, disposition, null, expiry,
+					false, true, false);
+		} catch (ServiceException servExcp) {
+			throw new ContentIOException("S3ContentStore Failed to sign a url for " + contentUrl, servExcp);
+		}
+	}
+
+	/**
+	 * Builds a Content-Disposition header, with an ASCII file name for the old
+	 * browsers and the UTF-8 file name of RFC 5987.
+	 *
+	 * @param fileName the file name
+	 * @param attachment true for an attachment, false for inline
+	 * @return the header value
+	 * @throws ServiceException if UTF-8 is not supported
+	 */
+	private static String toContentDisposition(final String fileName, final boolean attachment)
+			throws ServiceException {
+		final StringBuilder ascii = new StringBuilder(fileName.length());
+		for (int index = 0; index < fileName.length(); index++) {
+			final char chr = fileName.charAt(index);
+			ascii.append(chr < 0x20 || chr > 0x7e || chr == '"' || chr == '\\' ? '_' : chr);
+		}
+		return (attachment ? "attachment" : "inline") + "; filename=\"" + ascii + "\"; filename*=UTF-8''"
+				+ RestUtils.encodeUrlString(fileName);
+	}
+
+	/**
+	 * Sets up the read routing, the hedging and the replication as configured
+	 * in alfresco-global.properties.
+	 */
+	private void initReplication() {
+		final ConfigReader config = ConfigReader.getInstance();
+		final List<S3Bucket> replicas = new ArrayList<S3Bucket>();
+		for (final String replicaName : config.getProperty(CloudStoreConstants.REPLICA_BUCKETS, "").split(",")) {
+			if (replicaName.trim().length() > 0) {
+				replicas.add(new S3Bucket(replicaName.trim()));
+			}
+		}
+		final S3LatencyTracker latencyTracker = new S3LatencyTracker();
+		readRouter = new S3ReadRouter(s3Service, bucket, replicas, latencyTracker);
+		final long fragmentCacheMB = config.getLongProperty(CloudStoreConstants.FRAGMENT_CACHE_MAX_MB, 32L);
+		if (fragmentCacheMB > 0) {
+			readRouter.setFragmentCache(new S3FragmentCache(fragmentCacheMB * 1024L * 1024L));
+		}
+		if (config.getBooleanProperty(CloudStoreConstants.HEDGE_ENABLED, false)) {
+			readHedger = new S3ReadHedger(s3Service, latencyTracker,
+					config.getIntProperty(CloudStoreConstants.HEDGE_PERCENTILE, 95),
+					config.getLongProperty(CloudStoreConstants.HEDGE_MIN_DELAY_MS, 20L),
+					config.getLongProperty(CloudStoreConstants.HEDGE_MAX_DELAY_MS, 1000L),
+					config.getIntProperty(CloudStoreConstants.HEDGE_BUDGET_PERCENT, 5),
+					config.getIntProperty(CloudStoreConstants.HEDGE_MAX_THREADS, 64));
+			readRouter.setReadHedger(readHedger);
+		}
+		if (!replicas.isEmpty()) {
+			replicator = new S3BucketReplicator(s3Service, bucket, replicas,
+					config.getIntProperty(CloudStoreConstants.REPLICA_THREADS, 4),
+					config.getIntProperty(CloudStoreConstants.REPLICA_MAX_ATTEMPTS, 5));
+			if(LOG.isInfoEnabled()){
+				LOG.info("S3ContentStore Replicating to: " + config.getProperty(CloudStoreConstants.REPLICA_BUCKETS, ""));
+			}
+		}
+	}
+
+	/**
+	 * Sets up the uploader of the written content, tuned per upload, and
+	 * exposes the tuner over JMX, the memory buffers of small contents, the
+	 * headers of the uploaded objects and the uploads sent straight to S3.
+	 */
+	private void initUploads() {
+		final ConfigReader config = ConfigReader.getInstance();
+		final S3UploadTuner tuner = new S3UploadTuner(
+				config.getLongProperty(CloudStoreConstants.UPLOAD_MULTIPART_THRESHOLD_MB, 32L) * 1024L * 1024L,
+				config.getIntProperty(CloudStoreConstants.UPLOAD_INITIAL_PARALLELISM, 4),
+				config.getIntProperty(CloudStoreConstants.UPLOAD_MAX_PARALLELISM, 16));
+		uploader = new S3MultipartUploader(s3Service, tuner.getPartSize(), 0L,
+				config.getIntProperty(CloudStoreConstants.UPLOAD_MAX_CONCURRENT_PARTS, 64), new S3RateLimiter(0L), tuner);
+		S3MBeanRegistry.register("S3UploadTuner", tuner);
+		writerMemoryThreshold = config.getLongProperty(CloudStoreConstants.WRITER_MEMORY_THRESHOLD_KB, 256L) * 1024L;
+		bufferPool = new S3BufferPool(config.getLongProperty(CloudStoreConstants.WRITER_BUFFER_POOL_MB, 32L) * 1024L * 1024L);
+		uploadCacheControl = config.getProperty(CloudStoreConstants.UPLOAD_CACHE_CONTROL, "");
+		directUploader = new S3DirectUploader(s3Service, bucket,
+				config.getLongProperty(CloudStoreConstants.UPLOAD_MULTIPART_THRESHOLD_MB, 32L) * 1024L * 1024L,
+				config.getLongProperty(CloudStoreConstants.DIRECT_UPLOAD_PART_SIZE_MB, 16L) * 1024L * 1024L,
+				config.getLongProperty(CloudStoreConstants.DIRECT_UPLOAD_MAX_SIZE_GB, 1024L) * 1024L * 1024L * 1024L,
+				config.getIntProperty(CloudStoreConstants.DIRECT_UPLOAD_EXPIRY_SECONDS, 3600), uploadCacheControl,
+				config.getIntProperty(CloudStoreConstants.DIRECT_UPLOAD_MAX_TICKETS, 10000));
+	}
+
+	/**
+	 * Sets up the local tier when it is enabled in alfresco-global.properties.
+	 */
+	private void initTiering() {
+		final ConfigReader config = ConfigReader.getInstance();
+		if (config.getBooleanProperty(CloudStoreConstants.TIERING_ENABLED, false)) {
+			localTier = new S3LocalContentTier(s3Service, bucket, replicator);
+			prefetcher = new S3ContentPrefetcher(localTier,
+					config.getIntProperty(CloudStoreConstants.PREFETCH_THREADS, 8),
+					config.getIntProperty(CloudStoreConstants.PREFETCH_MAX_QUEUED, 1000),
+					config.getLongProperty(CloudStoreConstants.PREFETCH_MAX_OBJECT_SIZE_MB, 16L) * 1024L * 1024L);
+		}
+	}
+
+	/**
+	 * Sets up the key index when it is enabled in alfresco-global.properties.
+	 * A persisted index is loaded, otherwise it is built in the background
+	 * and filters nothing until then.
+	 */
+	private void initKeyIndex() {
+		final ConfigReader config = ConfigReader.getInstance();
+		if (!config.getBooleanProperty(CloudStoreConstants.KEY_INDEX_ENABLED, false)) {
+			return;
+		}
+		keyIndex = new S3KeyIndex(
+				new File(config.getProperty(CloudStoreConstants.KEY_INDEX_DIRECTORY, "./alf_data/s3keyindex")),
+				Double.parseDouble(config.getProperty(CloudStoreConstants.KEY_INDEX_FALSE_POSITIVE_RATE, "0.01")),
+				config.getIntProperty(CloudStoreConstants.KEY_INDEX_MAX_JOURNAL_ENTRIES, 1000000),
+				config.getIntProperty(CloudStoreConstants.KEY_INDEX_SORT_CHUNK_SIZE, 8000000));
+		final long rebuildInterval = config.getLongProperty(CloudStoreConstants.KEY_INDEX_REBUILD_HOURS, 24L) * 3600000L;
+		keyIndex.setMaxAge(config.getLongProperty(CloudStoreConstants.KEY_INDEX_MAX_AGE_HOURS, 48L) * 3600000L);
+		try {
+			if (!keyIndex.load() || (rebuildInterval > 0 && keyIndex.getAge() >= rebuildInterval)) {
+				keyIndex.rebuildInBackground(s3Service, bucketName);
+			}
+		} catch (IOException ioex) {
+			if(LOG.isWarnEnabled()){
+				LOG.warn("S3ContentStore Failed to load key index, rebuilding: " + ioex);
+			}
+			keyIndex.rebuildInBackground(s3Service, bucketName);
+		}
+		keyIndex.scheduleRebuilds(s3Service, bucketName, rebuildInterval);
+		setKeyFilter(keyIndex);
+	}
+
+	/**
+	 * Sets up the restore of archived objects on read and, when enabled in
+	 * alfresco-global.properties, the access statistics and the scheduled
+	 * moves of cold objects to cheaper storage classes.
+	 */
+	private void initLifecycle() {
+		final ConfigReader config = ConfigReader.getInstance();
+		if (s3Service instanceof S3ShapedRestService) {
+			archiveRestorer = new S3ArchiveRestorer((S3ShapedRestService) s3Service,
+					config.getIntProperty(CloudStoreConstants.RESTORE_DAYS, 7),
+					config.getIntProperty(CloudStoreConstants.RESTORE_MAX_PENDING, 1000),
+					config.getIntProperty(CloudStoreConstants.RESTORE_MAX_CONCURRENCY, 4));
+			readRouter.setArchiveRestorer(archiveRestorer);
+		}
+		if (!config.getBooleanProperty(CloudStoreConstants.LIFECYCLE_ENABLED, false)) {
+			return;
+		}
+		final S3AccessStatistics statistics = new S3AccessStatistics();
+		final File statisticsDir = new File(config.getProperty(CloudStoreConstants.LIFECYCLE_STATISTICS_DIR,
+				"./alf_data/s3access"));
+		statisticsDir.mkdirs();
+		String nodeName = config.getProperty(CloudStoreConstants.LIFECYCLE_NODE_NAME, "");
+		if (nodeName.trim().isEmpty()) {
+			try {
+				nodeName = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException unhExcp) {
+				throw new ContentIOException("S3ContentStore Set " + CloudStoreConstants.LIFECYCLE_NODE_NAME
+						+ ", the host name is unknown", unhExcp);
+			}
+		}
+		readRouter.setAccessStatistics(statistics);
+		lifecycleManager = new S3LifecycleManager(s3Service, bucket, statistics, statisticsDir, nodeName.trim(),
+				config.getIntProperty(CloudStoreConstants.LIFECYCLE_INFREQUENT_ACCESS_DAYS, 90),
+				config.getIntProperty(CloudStoreConstants.LIFECYCLE_ARCHIVE_DAYS, 0),
+				config.getLongProperty(CloudStoreConstants.LIFECYCLE_MIN_OBJECT_SIZE_KB, 128L) * 1024L,
+				config.getLongProperty(CloudStoreConstants.LIFECYCLE_MAX_OBJECTS_PER_RUN, 10000L),
+				config.getLongProperty(CloudStoreConstants.LIFECYCLE_MAX_GB_PER_RUN, 100L) * 1024L * 1024L * 1024L,
+				config.getIntProperty(CloudStoreConstants.LIFECYCLE_COPY_CONCURRENCY, 8));
+		lifecycleManager.loadStatistics();
+		lifecycleManager.start(config.getLongProperty(CloudStoreConstants.LIFECYCLE_INTERVAL_MINUTES, 1440L),
+				config.getLongProperty(CloudStoreConstants.LIFECYCLE_SAVE_MINUTES, 15L),
+				config.getBooleanProperty(CloudStoreConstants.LIFECYCLE_RUNNER, false));
+	}
+
 	/* (non-Javadoc)
 	 * @see org.alfresco.repo.content.ContentStore#isWriteSupported()
 	 */
@@ -0,0 +1,514 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.filestore.FileContentStore;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.security.AWSCredentials;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+import com.abhinav.alfresco.publishing.cloudstore.ConfigReader;
+
+/**
+ * The Class S3ContentStoreMigrator.<br/>
+ * Moves the content of an existing {@link FileContentStore} directory to the
+ * bucket of the {@link S3ContentStore}, keeping the store:// urls unchanged.
+ * <ul>
+ * <li>The directory tree is walked in order and each directory is handed to
+ * the workers as it is found, only the directories in flight are held in
+ * memory; a parallel scan counts the totals meanwhile.</li>
+ * <li>Directories are migrated concurrently, large files as multipart uploads.</li>
+ * <li>Objects already in the bucket with the same size and checksum are skipped.</li>
+ * <li>Completed minute directories of the store layout are appended to a
+ * checkpoint file, a restarted migration resumes after them. A directory is
+ * only checkpointed once its minute and its files are older than a quiet
+ * period, as it may still receive content.</li>
+ * <li>Throughput and ETA are logged periodically, and the bandwidth can be
+ * capped (and changed while running) through the rate limiter.</li>
+ * </ul>
+ * The source store stays online, content written during the migration is
+ * picked up by running the migration again.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ContentStoreMigrator {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3ContentStoreMigrator.class);
+
+	/** The url prefix of the migrated content. */
+	private static final String URL_PREFIX = FileContentStore.STORE_PROTOCOL + ContentStore.PROTOCOL_DELIMITER;
+
+	/** The Constant MB. */
+	private static final long MB = 1024L * 1024L;
+
+	/** Time a directory and its files must have been left alone before it is checkpointed. */
+	private static final long QUIET_PERIOD_MS = 10L * 60L * 1000L;
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The bucket. */
+	private final S3Bucket bucket;
+
+	/** The source root. */
+	private final File sourceRoot;
+
+	/** The checkpoint file. */
+	private final File checkpointFile;
+
+	/** The number of directories migrated concurrently. */
+	private final int threads;
+
+	/** The uploader. */
+	private final S3MultipartUploader uploader;
+
+	/** The rate limiter. */
+	private final S3RateLimiter rateLimiter;
+
+	/** The bytes to migrate. */
+	private final AtomicLong totalBytes = new AtomicLong();
+
+	/** The bytes done, uploaded or skipped. */
+	private final AtomicLong doneBytes = new AtomicLong();
+
+	/** The uploaded files. */
+	private final AtomicLong uploadedFiles = new AtomicLong();
+
+	/** The skipped files. */
+	private final AtomicLong skippedFiles = new AtomicLong();
+
+	/** The failed files. */
+	private final AtomicLong failedFiles = new AtomicLong();
+
+	/** Whether the totals are known. */
+	private volatile boolean scanned;
+
+	/** The directories completed by the previous runs. */
+	private Set<String> completed;
+
+	/** The checkpoint writer. */
+	private Writer checkpointWriter;
+
+	/** The start time. */
+	private long startTime;
+
+	/**
+	 * Instantiates a new migrator.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucket the bucket
+	 * @param sourceRoot the root of the file content store
+	 * @param checkpointFile the checkpoint file
+	 * @param threads the number of directories migrated concurrently
+	 * @param partSize the multipart part size
+	 * @param multipartThreshold the size from which multipart is used
+	 * @param bytesPerSecond the bandwidth cap, 0 for unlimited
+	 */
+	public S3ContentStoreMigrator(final S3Service s3Service, final S3Bucket bucket, final File sourceRoot,
+			final File checkpointFile, final int threads, final long partSize, final long multipartThreshold,
+			final long bytesPerSecond) {
+		this.s3Service = s3Service;
+		this.bucket = bucket;
+		this.sourceRoot = sourceRoot;
+		this.checkpointFile = checkpointFile;
+		this.threads = Math.max(1, threads);
+		this.rateLimiter = new S3RateLimiter(bytesPerSecond);
+		this.uploader = new S3MultipartUploader(s3Service, partSize, multipartThreshold, this.threads, rateLimiter);
+	}
+
+	/**
+	 * Runs the migration.
+	 *
+	 * @return true, if every file was migrated
+	 * @throws IOException if the checkpoint could not be read or written
+	 * @throws InterruptedException if interrupted
+	 */
+	public boolean migrate() throws IOException, InterruptedException {
+		startTime = System.currentTimeMillis();
+		completed = readCheckpoint();
+		if (LOG.isInfoEnabled()) {
+			LOG.info("S3ContentStoreMigrator Starting: source=" + sourceRoot + " bucket=" + bucket.getName()
+					+ " completedDirectories=" + completed.size());
+		}
+
+		// The totals are only needed for the ETA, the migration does not wait for them
+		final ForkJoinPool scanPool = new ForkJoinPool(threads);
+		final ScanTask scan = new ScanTask(sourceRoot) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Long compute() {
+				final Long bytes = super.compute();
+				totalBytes.set(bytes.longValue());
+				scanned = true;
+				return bytes;
+			}
+		};
+		scanPool.execute(scan);
+		final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+				S3LocalContentTier.newThreadFactory("S3MigrationReport"));
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				logProgress();
+			}
+		}, 30L, 30L, TimeUnit.SECONDS);
+		final ExecutorService workers = new S3TaskExecutor("S3Migration", threads, S3TrafficClass.BULK);
+		final Semaphore inFlight = new Semaphore(threads * 2);
+		checkpointWriter = new FileWriter(checkpointFile, true);
+		try {
+			walk(sourceRoot, workers, inFlight);
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} finally {
+			workers.shutdownNow();
+			scanPool.shutdownNow();
+			reporter.shutdownNow();
+			uploader.shutdown();
+			checkpointWriter.close();
+		}
+		logProgress();
+		return failedFiles.get() == 0;
+	}
+
+	/**
+	 * Walks a directory tree in order and hands each directory holding files
+	 * to the workers, waiting while too many directories are in flight.
+	 *
+	 * @param directory the directory
+	 * @param workers the workers
+	 * @param inFlight the permits of the directories in flight
+	 * @throws InterruptedException if interrupted
+	 */
+	private void walk(final File directory, final ExecutorService workers, final Semaphore inFlight)
+			throws InterruptedException {
+		final File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		final String relativePath = toRelativePath(directory);
+		final List<File> files = new ArrayList<File>();
+		for (final File child : children) {
+			if (child.isDirectory()) {
+				walk(child, workers, inFlight);
+			} else if (!completed.contains(relativePath)) {
+				files.add(child);
+			}
+		}
+		if (files.isEmpty()) {
+			return;
+		}
+		inFlight.acquire();
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					migrateDirectory(relativePath, files);
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Migrates the files of a directory, and checkpoints it if they all
+	 * succeed and it no longer receives content.
+	 *
+	 * @param relativePath the relative path of the directory
+	 * @param files the files
+	 */
+	private void migrateDirectory(final String relativePath, final List<File> files) {
+		boolean success = true;
+		boolean quiet = true;
+		final long quietSince = System.currentTimeMillis() - QUIET_PERIOD_MS;
+		for (final File file : files) {
+			final String fileRelativePath = relativePath.length() == 0 ? file.getName()
+					: relativePath + "/" + file.getName();
+			try {
+				quiet &= file.lastModified() < quietSince;
+				migrateFile(URL_PREFIX + fileRelativePath, file);
+			} catch (Exception excp) {
+				success = false;
+				failedFiles.incrementAndGet();
+				if (LOG.isErrorEnabled()) {
+					LOG.error("S3ContentStoreMigrator Failed to migrate " + file + ": " + excp);
+				}
+			}
+		}
+		if (success && quiet && isClosedMinute(relativePath, quietSince)) {
+			checkpoint(relativePath);
+		}
+	}
+
+	/**
+	 * Checks if a directory is a minute directory of the store layout,
+	 * year/month/day/hour/minute, whose minute ended before a time. Only such
+	 * directories no longer receive new content.
+	 *
+	 * @param relativePath the relative path
+	 * @param time the time in millis
+	 * @return true, if the minute of the directory is closed
+	 */
+	static boolean isClosedMinute(final String relativePath, final long time) {
+		final String[] segments = relativePath.split("/");
+		if (segments.length != 5) {
+			return false;
+		}
+		try {
+			final Calendar minute = new GregorianCalendar(Integer.parseInt(segments[0]),
+					Integer.parseInt(segments[1]) - 1, Integer.parseInt(segments[2]),
+					Integer.parseInt(segments[3]), Integer.parseInt(segments[4]));
+			minute.add(Calendar.MINUTE, 1);
+			return minute.getTimeInMillis() <= time;
+		} catch (NumberFormatException numExcp) {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the path of a directory relative to the source root.
+	 *
+	 * @param directory the directory
+	 * @return the relative path, '/' separated, empty for the root
+	 */
+	private String toRelativePath(final File directory) {
+		return directory.equals(sourceRoot) ? "" : directory.getAbsolutePath()
+				.substring(sourceRoot.getAbsolutePath().length() + 1).replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Migrates a file, unless the bucket already holds an identical object.
+	 *
+	 * @param key the key
+	 * @param file the file
+	 * @throws Exception if the upload failed
+	 */
+	private void migrateFile(final String key, final File file) throws Exception {
+		final long length = file.length();
+		final S3Object existing = getDetails(key);
+		final S3FileDigests digests = S3FileDigests.of(file);
+		if (existing != null && existing.getContentLength() == length && isSameContent(existing, digests)) {
+			skippedFiles.incrementAndGet();
+		} else {
+			uploader.upload(bucket, key, file, digests);
+			uploadedFiles.incrementAndGet();
+		}
+		doneBytes.addAndGet(length);
+	}
+
+	/**
+	 * Checks the checksums of an existing object against the file.
+	 *
+	 * @param existing the existing object
+	 * @param digests the digests of the file
+	 * @return true, if the content is the same
+	 */
+	private boolean isSameContent(final S3Object existing, final S3FileDigests digests) {
+		final Object sha256 = existing.getMetadata(CloudStoreConstants.META_SHA256);
+		if (sha256 != null) {
+			return digests.getSha256Hex().equalsIgnoreCase(sha256.toString());
+		}
+		// Single part uploads without our metadata, the ETag is the md5.
+		return digests.getMd5Hex().equalsIgnoreCase(existing.getETag());
+	}
+
+	/**
+	 * Gets the details of an object.
+	 *
+	 * @param key the key
+	 * @return the details, or null if the object does not exist
+	 * @throws S3ServiceException the s3 service exception
+	 */
+	private S3Object getDetails(final String key) throws S3ServiceException {
+		try {
+			return s3Service.getObjectDetails(bucket, key);
+		} catch (S3ServiceException s3ServExcp) {
+			if (s3ServExcp.getResponseCode() == 404) {
+				return null;
+			}
+			throw s3ServExcp;
+		}
+	}
+
+	/**
+	 * Appends a completed directory to the checkpoint.
+	 *
+	 * @param relativePath the relative path
+	 */
+	private synchronized void checkpoint(final String relativePath) {
+		try {
+			checkpointWriter.write(relativePath);
+			checkpointWriter.write('\n');
+			checkpointWriter.flush();
+		} catch (IOException ioex) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3ContentStoreMigrator Failed to checkpoint " + relativePath + ": " + ioex);
+			}
+		}
+	}
+
+	/**
+	 * Reads the directories completed by the previous runs.
+	 *
+	 * @return the completed directories
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private Set<String> readCheckpoint() throws IOException {
+		final Set<String> completed = new HashSet<String>();
+		if (checkpointFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(new FileReader(checkpointFile))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					completed.add(line);
+				}
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * Logs the progress, throughput and ETA.
+	 */
+	private void logProgress() {
+		if (!LOG.isInfoEnabled()) {
+			return;
+		}
+		final long elapsedSeconds = Math.max(1L, (System.currentTimeMillis() - startTime) / 1000L);
+		final long done = doneBytes.get();
+		final long bytesPerSecond = done / elapsedSeconds;
+		final String eta = !scanned ? "scanning" : bytesPerSecond == 0 ? "unknown"
+				: (Math.max(0L, totalBytes.get() - done) / bytesPerSecond) + "s";
+		LOG.info("S3ContentStoreMigrator Progress: " + (done / MB) + "/" + (totalBytes.get() / MB) + " MB"
+				+ " uploaded=" + uploadedFiles.get() + " skipped=" + skippedFiles.get()
+				+ " failed=" + failedFiles.get() + " throughput=" + (bytesPerSecond / MB) + " MB/s eta=" + eta);
+	}
+
+	/**
+	 * Gets the rate limiter, e.g. to change the bandwidth cap while running.
+	 *
+	 * @return the rate limiter
+	 */
+	public S3RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Runs a migration with the settings of alfresco-global.properties.<br/>
+	 * Usage: S3ContentStoreMigrator &lt;contentstore root&gt; [checkpoint file]
+	 *
+	 * @param args the arguments
+	 * @throws Exception the exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: S3ContentStoreMigrator <contentstore root> [checkpoint file]");
+			System.exit(2);
+		}
+		final ConfigReader config = ConfigReader.getInstance();
+		final S3Service s3Service = new S3ShapedRestService(new AWSCredentials(
+				config.getProperty(CloudStoreConstants.ACCESSKEY, null),
+				config.getProperty(CloudStoreConstants.SECRETKEY, null)), S3TrafficClass.BULK);
+		final S3Bucket bucket = s3Service.getOrCreateBucket(config.getProperty(CloudStoreConstants.BUCKET, null));
+		final File checkpoint = new File(args.length > 1 ? args[1] : "s3-migration.checkpoint");
+		final S3ContentStoreMigrator migrator = new S3ContentStoreMigrator(s3Service, bucket, new File(args[0]),
+				checkpoint, config.getIntProperty(CloudStoreConstants.MIGRATION_THREADS, 8),
+				config.getLongProperty(CloudStoreConstants.MIGRATION_PART_SIZE_MB, 16L) * MB,
+				config.getLongProperty(CloudStoreConstants.MIGRATION_MULTIPART_THRESHOLD_MB, 64L) * MB,
+				config.getLongProperty(CloudStoreConstants.MIGRATION_MAX_MB_PER_SECOND, 0L) * MB);
+		final boolean success = migrator.migrate();
+		s3Service.shutdown();
+		System.exit(success ? 0 : 1);
+	}
+
+	/**
+	 * Counts in parallel the bytes of the directories not completed yet.
+	 */
+	private class ScanTask extends RecursiveTask<Long> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The directory. */
+		private final File directory;
+
+		/**
+		 * Instantiates a new scan task.
+		 *
+		 * @param directory the directory
+		 */
+		private ScanTask(final File directory) {
+			this.directory = directory;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected Long compute() {
+			final File[] children = directory.listFiles();
+			if (children == null) {
+				return Long.valueOf(0L);
+			}
+			final boolean pending = !completed.contains(toRelativePath(directory));
+			final List<ScanTask> subTasks = new ArrayList<ScanTask>();
+			long bytes = 0;
+			for (final File child : children) {
+				if (child.isDirectory()) {
+					final ScanTask subTask = new ScanTask(child);
+					subTask.fork();
+					subTasks.add(subTask);
+				} else if (pending) {
+					bytes += child.length();
+				}
+			}
+			for (final ScanTask subTask : subTasks) {
+				bytes += subTask.join().longValue();
+			}
+			return Long.valueOf(bytes);
+		}
+	}
+}
@@ -55,12 +55,36 @@ public class S3ContentWriter extends AbstractContentWriter {
 	/** The size. */
 	private long size;
 
+	/** The channel holding small contents in memory, null if not buffered. */
+	private S3SpillingWritableChannel memoryChannel;
+
+	/** The pool of the memory buffers, null to always write a temp file. */
+	private S3BufferPool bufferPool;
+
+	/** The max size of a content held in memory. */
+	private long memoryThreshold;
+
+	/** The cache control of the uploaded object, null to leave it unset. */
+	private String cacheControl;
+
+	/** Whether the content was stored in S3, set once the upload succeeded. */
+	private volatile boolean uploaded;
+
+	/** The span of the writing of the content, ended once the stream is closed. */
+	private S3TraceSpan writeSpan = S3TraceSpan.NOOP;
+
+	/** The channel computing the digests of the written content. */
+	private S3DigestingWritableChannel digestingChannel;
+
 	/** The s3Service. */
 	private final S3Service s3Service;
 
 	/** The bucket. */
 	private final S3Bucket bucket;
 
+	/** The uploader, null to upload with a single PUT. */
+	private S3MultipartUploader uploader;
+
 	/** The Constant logger. */
 	private static final Log LOG = LogFactory.getLog(S3ContentWriter.class);
 
@@ -96,7 +120,17 @@ public class S3ContentWriter extends AbstractContentWriter {
 	@Override
 	protected WritableByteChannel getDirectWritableChannel()
 			throws ContentIOException {
+		writeSpan = S3Tracer.start("WRITE").setContentUrl(nodeUrl).setBucketName(bucket.getName());
 		try {
+			if (bufferPool != null && memoryThreshold > 0) {
+				// The temp file is only created if the content outgrows the threshold
+				if(LOG.isDebugEnabled()){
+					LOG.debug("S3ContentWriter Returning Memory Buffered Channel: uuid=" + uuid);
+				}
+				memoryChannel = new S3SpillingWritableChannel(bufferPool, memoryThreshold, uuid);
+				digestingChannel = new S3DigestingWritableChannel(memoryChannel);
+				return digestingChannel;
+			}
 			if(LOG.isDebugEnabled()){
 				LOG.debug("S3ContentWriter Creating Temp File: uuid=" + uuid);
 			}
@@ -105,8 +139,10 @@ public class S3ContentWriter extends AbstractContentWriter {
 			if(LOG.isDebugEnabled()){
 				LOG.debug("S3ContentWriter Returning Channel to Temp File: uuid="+ uuid);
 			}
-			return Channels.newChannel(outStream);
+			digestingChannel = new S3DigestingWritableChannel(Channels.newChannel(outStream));
+			return digestingChannel;
 		} catch (Exception excp) {
+			writeSpan.setError(excp).end();
 			throw new ContentIOException(
 					"S3ContentWriter.getDirectWritableChannel(): Failed to open channel. "
 							+ this, excp);
@@ -162,10 +198,93 @@ public class S3ContentWriter extends AbstractContentWriter {
 	/**
 	 * Gets the temp file.
 	 *
-	 * @return the temp file
+	 * @return the temp file, or null if the content is held in memory
 	 */
 	public File getTempFile() {
-		return tempFile;
+		return memoryChannel != null ? memoryChannel.getSpillFile() : tempFile;
+	}
+
+	/**
+	 * Gets the span of the writing of the content.
+	 *
+	 * @return the span, the no-op span if not traced
+	 */
+	public S3TraceSpan getWriteSpan() {
+		return writeSpan;
+	}
+
+	/**
+	 * Gets the memory buffer of the written content.
+	 *
+	 * @return the memory buffer, or null if the content was written to a temp file
+	 */
+	public S3SpillingWritableChannel getMemoryBuffer() {
+		return memoryChannel != null && memoryChannel.isInMemory() ? memoryChannel : null;
+	}
+
+	/**
+	 * Sets the pool of the memory buffers. Contents up to the threshold are
+	 * held in memory instead of a temp file.
+	 *
+	 * @param bufferPool the buffer pool
+	 * @param memoryThreshold the max size of a content held in memory
+	 */
+	public void setBufferPool(final S3BufferPool bufferPool, final long memoryThreshold) {
+		this.bufferPool = bufferPool;
+		this.memoryThreshold = memoryThreshold;
+	}
+
+	/**
+	 * Checks if the content was stored in S3. The listeners which run after
+	 * the upload only record the content when this is true.
+	 *
+	 * @return true, if the upload succeeded
+	 */
+	public boolean isUploaded() {
+		return uploaded;
+	}
+
+	/**
+	 * Records that the upload of the content succeeded.
+	 */
+	void markUploaded() {
+		uploaded = true;
+	}
+
+	/**
+	 * Gets the headers the uploaded object is served with.
+	 *
+	 * @return the content headers
+	 */
+	public S3ContentHeaders getContentHeaders() {
+		return new S3ContentHeaders(getMimetype(), getEncoding(), cacheControl);
+	}
+
+	/**
+	 * Sets the cache control of the uploaded object.
+	 *
+	 * @param cacheControl the cache control, or null to leave it unset
+	 */
+	public void setCacheControl(final String cacheControl) {
+		this.cacheControl = cacheControl;
+	}
+
+	/**
+	 * Gets the md5 digest of the written content.
+	 *
+	 * @return the md5 digest, or null if no channel was opened
+	 */
+	public byte[] getMd5Digest() {
+		return digestingChannel == null ? null : digestingChannel.getMd5Digest();
+	}
+
+	/**
+	 * Gets the sha256 digest of the written content.
+	 *
+	 * @return the sha256 digest, or null if no channel was opened
+	 */
+	public byte[] getSha256Digest() {
+		return digestingChannel == null ? null : digestingChannel.getSha256Digest();
 	}
 
 	/* (non-Javadoc)
@@ -201,4 +320,22 @@ public class S3ContentWriter extends AbstractContentWriter {
 	public S3Bucket getBucket() {
 		return bucket;
 	}
+
+	/**
+	 * Gets the uploader.
+	 *
+	 * @return the uploader, or null to upload with a single PUT
+	 */
+	public S3MultipartUploader getUploader() {
+		return uploader;
+	}
+
+	/**
+	 * Sets the uploader used once the content is written.
+	 *
+	 * @param uploader the new uploader
+	 */
+	public void setUploader(final S3MultipartUploader uploader) {
+		this.uploader = uploader;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The Class S3DigestingWritableChannel.<br/>
+ * Computes the MD5 and SHA-256 digests of the bytes as they are written, so
+ * the upload does not need a second pass over the content to get them.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3DigestingWritableChannel implements WritableByteChannel {
+
+	/** The delegate. */
+	private final WritableByteChannel delegate;
+
+	/** The md5. */
+	private final MessageDigest md5;
+
+	/** The sha256. */
+	private final MessageDigest sha256;
+
+	/** The number of bytes written. */
+	private long size;
+
+	/** The md5 digest, set once the digests are finished. */
+	private byte[] md5Digest;
+
+	/** The sha256 digest, set once the digests are finished. */
+	private byte[] sha256Digest;
+
+	/**
+	 * Instantiates a new digesting channel.
+	 *
+	 * @param delegate the delegate
+	 * @throws NoSuchAlgorithmException if the digests are not supported
+	 */
+	public S3DigestingWritableChannel(final WritableByteChannel delegate) throws NoSuchAlgorithmException {
+		this.delegate = delegate;
+		this.md5 = MessageDigest.getInstance("MD5");
+		this.sha256 = MessageDigest.getInstance("SHA-256");
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	public int write(final ByteBuffer src) throws IOException {
+		final ByteBuffer written = src.duplicate();
+		final int count = delegate.write(src);
+		if (count > 0) {
+			written.limit(written.position() + count);
+			md5.update(written.duplicate());
+			sha256.update(written);
+			size += count;
+		}
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen() {
+		return delegate.isOpen();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close() throws IOException {
+		delegate.close();
+		finish();
+	}
+
+	/**
+	 * Completes the digests, later writes are not accounted.
+	 */
+	private synchronized void finish() {
+		if (md5Digest == null) {
+			md5Digest = md5.digest();
+			sha256Digest = sha256.digest();
+		}
+	}
+
+	/**
+	 * Gets the md5 digest of the written content.
+	 *
+	 * @return the md5 digest
+	 */
+	public byte[] getMd5Digest() {
+		finish();
+		return md5Digest;
+	}
+
+	/**
+	 * Gets the sha256 digest of the written content.
+	 *
+	 * @return the sha256 digest
+	 */
+	public byte[] getSha256Digest() {
+		finish();
+		return sha256Digest;
+	}
+
+	/**
+	 * Gets the number of bytes written.
+	 *
+	 * @return the size
+	 */
+	public long getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,535 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.RestUtils;
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * The Class S3DirectUploader.<br/>
+ * Issues the tickets of the uploads sent by the clients straight to S3, so
+ * large content does not hold a repository thread, a temp file and a socket
+ * for the whole transfer. Small content gets one signed PUT url, larger
+ * content a multipart upload started on its behalf, and each part gets a url
+ * once the client has declared the md5 of the part. Every url is signed with
+ * the declared Content-MD5, so S3 rejects a corrupted body, and the
+ * completion checks the size and the ETag of the object against the declared
+ * md5s with a single HEAD before the content url is handed out.
+ * <p>
+ * The issued tickets are kept in memory by their opaque id; the clients only
+ * give the id back, so a content url can not be forged. A ticket is consumed
+ * by its completion or its abort, and a ticket which is not completed in
+ * time is aborted. The tickets are lost on restart and the completion must
+ * reach the node which issued the ticket.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3DirectUploader {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3DirectUploader.class);
+
+	/** The max number of parts, the parts are listed in a single page. */
+	private static final int MAX_PARTS = 1000;
+
+	/** The min part size accepted by S3. */
+	private static final long MIN_PART_SIZE = 5L * 1024L * 1024L;
+
+	/** Time left after the expiry of the urls for the transfers in flight to complete. */
+	private static final long COMPLETION_GRACE_MS = 15L * 60L * 1000L;
+
+	/** The random of the ticket ids. */
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The bucket. */
+	private final S3Bucket bucket;
+
+	/** The size from which the content is uploaded in parts. */
+	private final long multipartThreshold;
+
+	/** The part size. */
+	private final long partSize;
+
+	/** The max size of an uploaded content. */
+	private final long maxSize;
+
+	/** The validity of the signed urls in seconds. */
+	private final int expirySeconds;
+
+	/** The cache control of the uploaded objects, null to leave it unset. */
+	private final String cacheControl;
+
+	/** The max number of tickets issued and not completed. */
+	private final int maxTickets;
+
+	/** The issued tickets by id. */
+	private final ConcurrentHashMap<String, Issued> issued = new ConcurrentHashMap<String, Issued>();
+
+	/** The scheduler of the abort of the expired tickets. */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Instantiates a new direct uploader.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucket the bucket
+	 * @param multipartThreshold the size from which the content is uploaded in parts
+	 * @param partSize the part size, at least 5 MB
+	 * @param maxSize the max size of an uploaded content
+	 * @param expirySeconds the validity of the signed urls in seconds
+	 * @param cacheControl the cache control of the uploaded objects, or null
+	 * @param maxTickets the max number of tickets issued and not completed
+	 */
+	public S3DirectUploader(final S3Service s3Service, final S3Bucket bucket, final long multipartThreshold,
+			final long partSize, final long maxSize, final int expirySeconds, final String cacheControl,
+			final int maxTickets) {
+		this.s3Service = s3Service;
+		this.bucket = bucket;
+		this.partSize = Math.max(MIN_PART_SIZE, partSize);
+		this.multipartThreshold = Math.max(this.partSize, multipartThreshold);
+		this.maxSize = maxSize;
+		this.expirySeconds = Math.max(60, expirySeconds);
+		this.cacheControl = cacheControl;
+		this.maxTickets = Math.max(1, maxTickets);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(S3LocalContentTier.newThreadFactory("S3DirectUploadSweep"));
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				abortExpired();
+			}
+		}, 1L, 1L, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Issues the ticket of an upload to a new content url.
+	 *
+	 * @param size the size of the content
+	 * @param md5Hex the md5 of the content in hex, required for a single PUT
+	 *        and ignored for a multipart upload whose parts declare their md5
+	 * @param mimetype the mimetype, or null if unknown
+	 * @param encoding the encoding, or null if unknown
+	 * @return the upload ticket
+	 * @throws ContentIOException if the upload is not accepted or could not be started
+	 */
+	public S3UploadTicket createTicket(final long size, final String md5Hex, final String mimetype,
+			final String encoding) throws ContentIOException {
+		if (size < 0 || size > maxSize) {
+			throw new ContentIOException("S3DirectUploader Size not accepted: " + size + " (max " + maxSize + ")");
+		}
+		if (issued.size() >= maxTickets) {
+			throw new ContentIOException("S3DirectUploader Too many uploads in progress: " + issued.size());
+		}
+		final String contentUrl = S3ContentStore.createNewUrl();
+		final S3ContentHeaders headers = new S3ContentHeaders(mimetype, encoding, cacheControl);
+		final long expiry = System.currentTimeMillis() + (expirySeconds * 1000L);
+		final String id = newTicketId();
+		try {
+			final S3UploadTicket ticket;
+			if (size < multipartThreshold) {
+				ticket = createSingleTicket(id, contentUrl, size, checkMd5(md5Hex), mimetype, encoding, headers,
+						expiry);
+			} else {
+				ticket = createMultipartTicket(id, contentUrl, size, mimetype, encoding, headers, expiry);
+			}
+			issued.put(id, new Issued(ticket));
+			return ticket;
+		} catch (ServiceException servExcp) {
+			throw new ContentIOException("S3DirectUploader Failed to issue an upload ticket for " + contentUrl,
+					servExcp);
+		}
+	}
+
+	/**
+	 * Issues the ticket of a single PUT. The Content-Type and the declared
+	 * Content-MD5 are signed, so S3 rejects a different content.
+	 *
+	 * @param id the ticket id
+	 * @param contentUrl the content url
+	 * @param size the size
+	 * @param md5Hex the md5 in hex
+	 * @param mimetype the mimetype
+	 * @param encoding the encoding
+	 * @param headers the headers
+	 * @param expiry the expiry in millis
+	 * @return the ticket
+	 * @throws ServiceException if the url could not be signed
+	 */
+	private S3UploadTicket createSingleTicket(final String id, final String contentUrl, final long size,
+			final String md5Hex, final String mimetype, final String encoding, final S3ContentHeaders headers,
+			final long expiry) throws ServiceException {
+		final Map<String, String> clientHeaders = new LinkedHashMap<String, String>();
+		clientHeaders.put("Content-Type", headers.getContentType());
+		clientHeaders.put("Content-MD5", ServiceUtils.toBase64(ServiceUtils.fromHex(md5Hex)));
+		if (headers.getCacheControl() != null) {
+			clientHeaders.put("Cache-Control", headers.getCacheControl());
+		}
+		final String url = s3Service.createSignedUrl("PUT", bucket.getName(), contentUrl, null,
+				new LinkedHashMap<String, Object>(clientHeaders), expiry / 1000L, false, true, false);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("S3DirectUploader Issued PUT ticket: contentUrl=" + contentUrl + " size=" + size);
+		}
+		return new S3UploadTicket(id, contentUrl, size, md5Hex, mimetype, encoding, null, 0L, 0, url,
+				clientHeaders, expiry);
+	}
+
+	/**
+	 * Issues the ticket of a multipart upload, started with the headers of
+	 * the object.
+	 *
+	 * @param id the ticket id
+	 * @param contentUrl the content url
+	 * @param size the size
+	 * @param mimetype the mimetype
+	 * @param encoding the encoding
+	 * @param headers the headers
+	 * @param expiry the expiry in millis
+	 * @return the ticket
+	 * @throws ServiceException if the upload could not be started
+	 */
+	private S3UploadTicket createMultipartTicket(final String id, final String contentUrl, final long size,
+			final String mimetype, final String encoding, final S3ContentHeaders headers, final long expiry)
+			throws ServiceException {
+		// Round the parts up to whole MB so they stay within MAX_PARTS
+		final long minPartSize = (size + MAX_PARTS - 1) / MAX_PARTS;
+		final long mb = 1024L * 1024L;
+		final long ticketPartSize = Math.max(partSize, ((minPartSize + mb - 1) / mb) * mb);
+		final int partCount = (int) ((size + ticketPartSize - 1) / ticketPartSize);
+
+		final S3Object template = new S3Object(contentUrl);
+		headers.applyTo(template);
+		final MultipartUpload upload = s3Service.multipartStartUpload(bucket.getName(), template);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("S3DirectUploader Issued multipart ticket: contentUrl=" + contentUrl + " size=" + size
+					+ " parts=" + partCount + " partSize=" + ticketPartSize);
+		}
+		return new S3UploadTicket(id, contentUrl, size, null, mimetype, encoding, upload.getUploadId(),
+				ticketPartSize, partCount, null, Collections.<String, String> emptyMap(), expiry);
+	}
+
+	/**
+	 * Signs the url of a part of a multipart upload for the md5 of the part.
+	 * The client sends the part with the Content-MD5 header; signing a part
+	 * again replaces its declared md5.
+	 *
+	 * @param ticketId the ticket id
+	 * @param partNumber the part number, from 1
+	 * @param md5Hex the md5 of the part in hex
+	 * @return the signed url of the part
+	 * @throws ContentIOException if the ticket or the part is not valid
+	 */
+	public String signPart(final String ticketId, final int partNumber, final String md5Hex)
+			throws ContentIOException {
+		final Issued entry = issued.get(ticketId);
+		if (entry == null || !entry.ticket.isMultipart() || System.currentTimeMillis() > entry.ticket.getExpiry()) {
+			throw new ContentIOException("S3DirectUploader Unknown, completed or expired multipart ticket");
+		}
+		final S3UploadTicket ticket = entry.ticket;
+		if (partNumber < 1 || partNumber > ticket.getPartCount()) {
+			throw new ContentIOException("S3DirectUploader Part " + partNumber + " not in 1-"
+					+ ticket.getPartCount() + " for " + ticket.getContentUrl());
+		}
+		final String md5 = checkMd5(md5Hex);
+		final Map<String, Object> signedHeaders = new LinkedHashMap<String, Object>();
+		signedHeaders.put("Content-MD5", ServiceUtils.toBase64(ServiceUtils.fromHex(md5)));
+		try {
+			final String url = s3Service.createSignedUrl("PUT", bucket.getName(), ticket.getContentUrl(),
+					"partNumber=" + partNumber + "&uploadId=" + RestUtils.encodeUrlString(ticket.getUploadId()),
+					signedHeaders, ticket.getExpiry() / 1000L, false, true, false);
+			entry.partMd5s.set(partNumber - 1, md5);
+			return url;
+		} catch (ServiceException servExcp) {
+			throw new ContentIOException("S3DirectUploader Failed to sign part " + partNumber + " of "
+					+ ticket.getContentUrl(), servExcp);
+		}
+	}
+
+	/**
+	 * Completes an upload and consumes its ticket. The parts of a multipart
+	 * upload are checked against their declared md5 and assembled, then a
+	 * HEAD checks the size and the ETag of the object against the declared
+	 * md5s. A content which does not match is removed.
+	 *
+	 * @param ticketId the ticket id
+	 * @return the content data to bind to the node
+	 * @throws ContentIOException if the ticket is not valid, the content does
+	 *         not match it or the completion failed
+	 */
+	public ContentData complete(final String ticketId) throws ContentIOException {
+		final Issued entry = claim(ticketId);
+		final S3UploadTicket ticket = entry.ticket;
+		final String contentUrl = ticket.getContentUrl();
+		if (System.currentTimeMillis() > ticket.getExpiry() + COMPLETION_GRACE_MS) {
+			discard(ticket);
+			throw new ContentIOException("S3DirectUploader Expired ticket of " + contentUrl);
+		}
+		try {
+			if (ticket.isMultipart() && entry.assembledETag == null) {
+				entry.assembledETag = completeMultipart(entry);
+			}
+			final String expectedETag = ticket.isMultipart() ? entry.assembledETag : ticket.getMd5Hex();
+			final StorageObject details = s3Service.getObjectDetails(bucket, contentUrl);
+			final String etag = unquote(details.getETag());
+			if (details.getContentLength() != ticket.getSize() || !expectedETag.equalsIgnoreCase(etag)) {
+				s3Service.deleteObject(bucket, contentUrl);
+				throw new ContentIOException("S3DirectUploader Uploaded content does not match the ticket of "
+						+ contentUrl + ": size=" + details.getContentLength() + " expected=" + ticket.getSize()
+						+ " etag=" + etag + " expected=" + expectedETag);
+			}
+		} catch (ServiceException servExcp) {
+			// Nothing was checked yet, e.g. the PUT is not there, the client may retry
+			issued.put(ticketId, entry);
+			throw new ContentIOException("S3DirectUploader Failed to complete the upload of " + contentUrl,
+					servExcp);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("S3DirectUploader Completed upload: contentUrl=" + contentUrl + " size=" + ticket.getSize());
+		}
+		final String mimetype = ticket.getMimetype() == null ? S3ContentHeaders.DEFAULT_CONTENT_TYPE
+				: ticket.getMimetype();
+		return new ContentData(contentUrl, mimetype, ticket.getSize(), ticket.getEncoding());
+	}
+
+	/**
+	 * Checks the uploaded parts against their declared md5 and assembles them.
+	 *
+	 * @param entry the issued ticket
+	 * @return the ETag the assembled object must have, derived from the declared md5s
+	 * @throws ServiceException if the parts could not be listed or assembled
+	 */
+	private String completeMultipart(final Issued entry) throws ServiceException {
+		final S3UploadTicket ticket = entry.ticket;
+		final MultipartUpload upload = new MultipartUpload(ticket.getUploadId(), bucket.getName(),
+				ticket.getContentUrl());
+		final List<MultipartPart> parts = new ArrayList<MultipartPart>(s3Service.multipartListParts(upload));
+		Collections.sort(parts, new Comparator<MultipartPart>() {
+			public int compare(final MultipartPart first, final MultipartPart second) {
+				return first.getPartNumber().compareTo(second.getPartNumber());
+			}
+		});
+		final int partCount = ticket.getPartCount();
+		boolean complete = parts.size() == partCount;
+		long total = 0L;
+		for (int index = 0; complete && index < partCount; index++) {
+			final MultipartPart part = parts.get(index);
+			final String declared = entry.partMd5s.get(index);
+			complete = part.getPartNumber().intValue() == index + 1
+					&& declared != null && declared.equalsIgnoreCase(unquote(part.getEtag()))
+					&& (index == partCount - 1 || part.getSize().longValue() == ticket.getPartSize());
+			total += part.getSize().longValue();
+		}
+		if (!complete || total != ticket.getSize()) {
+			s3Service.multipartAbortUpload(upload);
+			throw new ContentIOException("S3DirectUploader Uploaded parts do not match the ticket of "
+					+ ticket.getContentUrl() + ": parts=" + parts.size() + " expected=" + partCount);
+		}
+		s3Service.multipartCompleteUpload(upload, parts);
+		final List<String> declaredMd5s = new ArrayList<String>(partCount);
+		for (int index = 0; index < partCount; index++) {
+			declaredMd5s.add(entry.partMd5s.get(index));
+		}
+		return toMultipartETag(declaredMd5s);
+	}
+
+	/**
+	 * Computes the ETag S3 gives to an assembled multipart object, the md5 of
+	 * the md5s of the parts followed by the number of parts.
+	 *
+	 * @param partMd5s the md5s of the parts in hex
+	 * @return the ETag
+	 */
+	private static String toMultipartETag(final List<String> partMd5s) {
+		try {
+			final MessageDigest md5 = MessageDigest.getInstance("MD5");
+			for (final String partMd5 : partMd5s) {
+				md5.update(ServiceUtils.fromHex(partMd5));
+			}
+			return ServiceUtils.toHex(md5.digest()) + "-" + partMd5s.size();
+		} catch (NoSuchAlgorithmException algoExcp) {
+			throw new ContentIOException("S3DirectUploader MD5 is not supported", algoExcp);
+		}
+	}
+
+	/**
+	 * Cancels an upload which will not be completed and consumes its ticket.
+	 * The parts of a multipart upload are discarded, the object of a single
+	 * PUT is removed; it was never handed out since the ticket was not completed.
+	 *
+	 * @param ticketId the ticket id
+	 * @throws ContentIOException if the ticket is unknown or already consumed
+	 */
+	public void abort(final String ticketId) throws ContentIOException {
+		discard(claim(ticketId).ticket);
+	}
+
+	/**
+	 * Aborts the tickets not completed before their expiry and the grace time.
+	 */
+	private void abortExpired() {
+		final long deadline = System.currentTimeMillis() - COMPLETION_GRACE_MS;
+		final Iterator<Map.Entry<String, Issued>> entries = issued.entrySet().iterator();
+		while (entries.hasNext()) {
+			final Map.Entry<String, Issued> entry = entries.next();
+			if (entry.getValue().ticket.getExpiry() < deadline && issued.remove(entry.getKey(), entry.getValue())) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("S3DirectUploader Aborting expired ticket of " + entry.getValue().ticket.getContentUrl());
+				}
+				discard(entry.getValue().ticket);
+			}
+		}
+	}
+
+	/**
+	 * Takes a ticket out of the issued tickets, so it is used once.
+	 *
+	 * @param ticketId the ticket id
+	 * @return the issued ticket
+	 * @throws ContentIOException if the ticket is unknown or already consumed
+	 */
+	private Issued claim(final String ticketId) throws ContentIOException {
+		final Issued entry = ticketId == null ? null : issued.remove(ticketId);
+		if (entry == null) {
+			throw new ContentIOException("S3DirectUploader Unknown or completed upload ticket");
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes what a ticket which will not be completed left in the bucket.
+	 *
+	 * @param ticket the ticket
+	 */
+	private void discard(final S3UploadTicket ticket) {
+		try {
+			if (ticket.isMultipart()) {
+				s3Service.multipartAbortUpload(new MultipartUpload(ticket.getUploadId(), bucket.getName(),
+						ticket.getContentUrl()));
+			} else {
+				s3Service.deleteObject(bucket, ticket.getContentUrl());
+			}
+		} catch (ServiceException servExcp) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3DirectUploader Failed to abort the upload of " + ticket.getContentUrl() + ": " + servExcp);
+			}
+		}
+	}
+
+	/**
+	 * Checks a declared md5.
+	 *
+	 * @param md5Hex the md5 in hex
+	 * @return the md5 in hex
+	 * @throws ContentIOException if the md5 is missing or malformed
+	 */
+	private static String checkMd5(final String md5Hex) throws ContentIOException {
+		if (md5Hex == null || !md5Hex.matches("[0-9a-fA-F]{32}")) {
+			throw new ContentIOException("S3DirectUploader A md5 of 32 hex digits is required: " + md5Hex);
+		}
+		return md5Hex;
+	}
+
+	/**
+	 * Creates an opaque ticket id.
+	 *
+	 * @return the ticket id
+	 */
+	private static String newTicketId() {
+		final byte[] bytes = new byte[16];
+		RANDOM.nextBytes(bytes);
+		return ServiceUtils.toHex(bytes);
+	}
+
+	/**
+	 * Removes the quotes around an ETag.
+	 *
+	 * @param etag the etag
+	 * @return the etag without quotes
+	 */
+	private static String unquote(final String etag) {
+		return etag == null ? null : etag.replace("\"", "");
+	}
+
+	/**
+	 * Gets the number of tickets issued and not completed.
+	 *
+	 * @return the ticket count
+	 */
+	public int getTicketCount() {
+		return issued.size();
+	}
+
+	/**
+	 * Stops the abort of the expired tickets.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * An issued ticket and the md5s declared for its parts.
+	 */
+	private static final class Issued {
+
+		/** The ticket. */
+		private final S3UploadTicket ticket;
+
+		/** The ETag of the assembled object, null until the parts are assembled. */
+		private volatile String assembledETag;
+
+		/** The declared md5 of each part, null until the part is signed. */
+		private final AtomicReferenceArray<String> partMd5s;
+
+		/**
+		 * Instantiates a new issued ticket.
+		 *
+		 * @param ticket the ticket
+		 */
+		private Issued(final S3UploadTicket ticket) {
+			this.ticket = ticket;
+			this.partMd5s = new AtomicReferenceArray<String>(ticket.getPartCount());
+		}
+	}
+}
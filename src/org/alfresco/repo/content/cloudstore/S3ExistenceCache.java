@@ -0,0 +1,120 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Class S3ExistenceCache.<br/>
+ * Bounded cache of the outcome of the existence checks against the bucket.
+ * Positive and negative outcomes have their own time to live, negative ones
+ * are kept short since another node may write the content. The least
+ * recently used entries are evicted once the cache is full. Writes and
+ * deletes through the store update the cache directly.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ExistenceCache {
+
+	/** The max number of entries. */
+	private final int maxEntries;
+
+	/** The time to live of a positive outcome, in millis. */
+	private final long positiveTtl;
+
+	/** The time to live of a negative outcome, in millis. */
+	private final long negativeTtl;
+
+	/** The entries, in access order. Each value is the expiry time, negated for negative outcomes. */
+	private final LinkedHashMap<String, Long> entries;
+
+	/**
+	 * Instantiates a new existence cache.
+	 *
+	 * @param maxEntries the max number of entries
+	 * @param positiveTtl the time to live of a positive outcome, in millis
+	 * @param negativeTtl the time to live of a negative outcome, in millis
+	 */
+	public S3ExistenceCache(final int maxEntries, final long positiveTtl, final long negativeTtl) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.positiveTtl = positiveTtl;
+		this.negativeTtl = negativeTtl;
+		this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+				return size() > S3ExistenceCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets a cached outcome.
+	 *
+	 * @param contentUrl the content url
+	 * @return the outcome, or null if unknown or expired
+	 */
+	public synchronized Boolean get(final String contentUrl) {
+		final Long value = entries.get(contentUrl);
+		if (value == null) {
+			return null;
+		}
+		final long expiry = Math.abs(value.longValue());
+		if (expiry < System.currentTimeMillis()) {
+			entries.remove(contentUrl);
+			return null;
+		}
+		return Boolean.valueOf(value.longValue() > 0);
+	}
+
+	/**
+	 * Records an outcome.
+	 *
+	 * @param contentUrl the content url
+	 * @param exists the outcome
+	 */
+	public synchronized void put(final String contentUrl, final boolean exists) {
+		final long ttl = exists ? positiveTtl : negativeTtl;
+		if (ttl <= 0) {
+			entries.remove(contentUrl);
+			return;
+		}
+		final long expiry = System.currentTimeMillis() + ttl;
+		entries.put(contentUrl, Long.valueOf(exists ? expiry : -expiry));
+	}
+
+	/**
+	 * Forgets an outcome.
+	 *
+	 * @param contentUrl the content url
+	 */
+	public synchronized void invalidate(final String contentUrl) {
+		entries.remove(contentUrl);
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+}
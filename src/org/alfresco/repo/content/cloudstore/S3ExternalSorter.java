@@ -0,0 +1,356 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * The Class S3ExternalSorter.<br/>
+ * Sorts and de-duplicates a stream of strings with a bounded heap. The strings
+ * are sorted in chunks which are spilled to temporary files, then merged. At
+ * most {@link #MAX_MERGE_FAN_IN} files are merged at once, larger inputs are
+ * merged in several passes. The order is the code point order, which is the
+ * order of the UTF-8 bytes used by the S3 listings.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ExternalSorter {
+
+	/** The max number of files merged at once. */
+	private static final int MAX_MERGE_FAN_IN = 128;
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Compares strings by code point, i.e. in UTF-8 byte order. */
+	public static final Comparator<String> CODE_POINT_ORDER = new Comparator<String>() {
+		public int compare(final String first, final String second) {
+			final int length = Math.min(first.length(), second.length());
+			for (int index = 0; index < length; index++) {
+				final char char1 = first.charAt(index);
+				final char char2 = second.charAt(index);
+				if (char1 != char2) {
+					// Surrogates encode code points above any other UTF-16 unit
+					final boolean surrogate1 = Character.isSurrogate(char1);
+					final boolean surrogate2 = Character.isSurrogate(char2);
+					if (surrogate1 != surrogate2) {
+						return surrogate1 ? 1 : -1;
+					}
+					return char1 - char2;
+				}
+			}
+			return first.length() - second.length();
+		}
+	};
+
+	/** The work directory. */
+	private final File workDirectory;
+
+	/** The max number of strings held in memory. */
+	private final int chunkSize;
+
+	/**
+	 * Instantiates a new external sorter.
+	 *
+	 * @param workDirectory the directory of the spill files
+	 * @param chunkSize the max number of strings held in memory
+	 */
+	public S3ExternalSorter(final File workDirectory, final int chunkSize) {
+		this.workDirectory = workDirectory;
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * Sorts the input. The returned iterator must be closed to delete the
+	 * spill files.
+	 *
+	 * @param input the input
+	 * @return the sorted, de-duplicated strings
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public SortedStrings sort(final Iterator<String> input) throws IOException {
+		final List<File> runs = new ArrayList<File>();
+		final List<String> chunk = new ArrayList<String>();
+		try {
+			while (input.hasNext()) {
+				chunk.add(input.next());
+				if (chunk.size() >= chunkSize) {
+					runs.add(spill(chunk));
+					chunk.clear();
+				}
+			}
+			if (runs.isEmpty()) {
+				// Everything fits in memory
+				Collections.sort(chunk, CODE_POINT_ORDER);
+				return new SortedStrings(new ArrayList<String>(chunk).iterator(), Collections.<Closeable> emptyList(),
+						runs);
+			}
+			if (!chunk.isEmpty()) {
+				runs.add(spill(chunk));
+				chunk.clear();
+			}
+			while (runs.size() > MAX_MERGE_FAN_IN) {
+				final List<File> group = new ArrayList<File>(runs.subList(0, MAX_MERGE_FAN_IN));
+				runs.subList(0, MAX_MERGE_FAN_IN).clear();
+				runs.add(mergeToFile(group));
+			}
+			return merge(runs);
+		} catch (IOException ioex) {
+			for (final File run : runs) {
+				run.delete();
+			}
+			throw ioex;
+		}
+	}
+
+	/**
+	 * Sorts a chunk and writes it to a spill file.
+	 *
+	 * @param chunk the chunk
+	 * @return the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private File spill(final List<String> chunk) throws IOException {
+		Collections.sort(chunk, CODE_POINT_ORDER);
+		final File run = File.createTempFile("s3sort", ".run", workDirectory);
+		try (Writer writer = newWriter(run)) {
+			for (final String value : chunk) {
+				writer.write(value);
+				writer.write('\n');
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * Merges a group of runs into a new run.
+	 *
+	 * @param group the group
+	 * @return the merged run
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private File mergeToFile(final List<File> group) throws IOException {
+		final File run = File.createTempFile("s3sort", ".run", workDirectory);
+		try (SortedStrings merged = merge(group); Writer writer = newWriter(run)) {
+			while (merged.hasNext()) {
+				writer.write(merged.next());
+				writer.write('\n');
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * Opens a k-way merge over runs.
+	 *
+	 * @param runs the runs
+	 * @return the merged strings
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private SortedStrings merge(final List<File> runs) throws IOException {
+		final List<Closeable> readers = new ArrayList<Closeable>();
+		final PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(Math.max(1, runs.size()));
+		try {
+			for (final File run : runs) {
+				final BufferedReader reader = new BufferedReader(
+						new InputStreamReader(new FileInputStream(run), UTF8), 65536);
+				readers.add(reader);
+				final RunCursor cursor = new RunCursor(reader);
+				if (cursor.advance()) {
+					heap.add(cursor);
+				}
+			}
+		} catch (IOException ioex) {
+			for (final Closeable reader : readers) {
+				reader.close();
+			}
+			throw ioex;
+		}
+		final Iterator<String> merged = new Iterator<String>() {
+			public boolean hasNext() {
+				return !heap.isEmpty();
+			}
+
+			public String next() {
+				final RunCursor cursor = heap.poll();
+				if (cursor == null) {
+					throw new NoSuchElementException();
+				}
+				final String value = cursor.current;
+				try {
+					if (cursor.advance()) {
+						heap.add(cursor);
+					}
+				} catch (IOException ioex) {
+					throw new IllegalStateException("Failed to read sort run", ioex);
+				}
+				return value;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		return new SortedStrings(merged, readers, runs);
+	}
+
+	/**
+	 * Creates a buffered UTF-8 writer.
+	 *
+	 * @param file the file
+	 * @return the writer
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static Writer newWriter(final File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), 65536);
+	}
+
+	/**
+	 * The head of a spill file during a merge.
+	 */
+	private static final class RunCursor implements Comparable<RunCursor> {
+
+		/** The reader. */
+		private final BufferedReader reader;
+
+		/** The current value. */
+		private String current;
+
+		/**
+		 * Instantiates a new run cursor.
+		 *
+		 * @param reader the reader
+		 */
+		private RunCursor(final BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * Moves to the next value.
+		 *
+		 * @return true, if there is a value
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private boolean advance() throws IOException {
+			current = reader.readLine();
+			return current != null;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		public int compareTo(final RunCursor other) {
+			return CODE_POINT_ORDER.compare(current, other.current);
+		}
+	}
+
+	/**
+	 * Sorted strings without duplicates. Closing deletes the spill files.
+	 */
+	public static final class SortedStrings implements Iterator<String>, Closeable {
+
+		/** The source, sorted but possibly with duplicates. */
+		private final Iterator<String> source;
+
+		/** The readers. */
+		private final List<Closeable> readers;
+
+		/** The spill files. */
+		private final List<File> runs;
+
+		/** The next value. */
+		private String next;
+
+		/** The last returned value. */
+		private String last;
+
+		/**
+		 * Instantiates new sorted strings.
+		 *
+		 * @param source the source
+		 * @param readers the readers
+		 * @param runs the runs
+		 */
+		private SortedStrings(final Iterator<String> source, final List<Closeable> readers, final List<File> runs) {
+			this.source = source;
+			this.readers = readers;
+			this.runs = runs;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		public boolean hasNext() {
+			while (next == null && source.hasNext()) {
+				final String candidate = source.next();
+				if (!candidate.equals(last)) {
+					next = candidate;
+				}
+			}
+			return next != null;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = null;
+			return last;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		public void close() throws IOException {
+			for (final Closeable reader : readers) {
+				reader.close();
+			}
+			for (final File run : runs) {
+				run.delete();
+			}
+		}
+	}
+}
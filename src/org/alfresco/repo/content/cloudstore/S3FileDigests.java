@@ -0,0 +1,111 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * The Class S3FileDigests.<br/>
+ * MD5 and SHA-256 of a file, computed in a single pass.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public final class S3FileDigests {
+
+	/** The md5. */
+	private final byte[] md5;
+
+	/** The sha256. */
+	private final byte[] sha256;
+
+	/**
+	 * Instantiates new file digests.
+	 *
+	 * @param md5 the md5
+	 * @param sha256 the sha256
+	 */
+	public S3FileDigests(final byte[] md5, final byte[] sha256) {
+		this.md5 = md5;
+		this.sha256 = sha256;
+	}
+
+	/**
+	 * Computes the digests of a file.
+	 *
+	 * @param file the file
+	 * @return the digests
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException if the digests are not supported
+	 */
+	public static S3FileDigests of(final File file) throws IOException, NoSuchAlgorithmException {
+		final MessageDigest md5 = MessageDigest.getInstance("MD5");
+		final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+		final byte[] buffer = new byte[65536];
+		try (InputStream inStream = new FileInputStream(file)) {
+			int read;
+			while ((read = inStream.read(buffer)) != -1) {
+				md5.update(buffer, 0, read);
+				sha256.update(buffer, 0, read);
+			}
+		}
+		return new S3FileDigests(md5.digest(), sha256.digest());
+	}
+
+	/**
+	 * Gets the md5.
+	 *
+	 * @return the md5
+	 */
+	public byte[] getMd5() {
+		return md5;
+	}
+
+	/**
+	 * Gets the md5 as hex.
+	 *
+	 * @return the md5 hex
+	 */
+	public String getMd5Hex() {
+		return ServiceUtils.toHex(md5);
+	}
+
+	/**
+	 * Gets the sha256.
+	 *
+	 * @return the sha256
+	 */
+	public byte[] getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * Gets the sha256 as hex.
+	 *
+	 * @return the sha256 hex
+	 */
+	public String getSha256Hex() {
+		return ServiceUtils.toHex(sha256);
+	}
+}
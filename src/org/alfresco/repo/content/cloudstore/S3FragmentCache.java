@@ -0,0 +1,112 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Class S3FragmentCache.<br/>
+ * Bounded cache of the first and last bytes of S3 objects, as read by the
+ * metadata extractors and mimetype detectors. Entries are keyed by the ETag
+ * as well as the url, so a changed object is never served from the cache.
+ * The least recently used fragments are evicted once the cache holds more
+ * than its byte budget.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3FragmentCache {
+
+	/** The byte budget. */
+	private final long maxBytes;
+
+	/** The cached bytes. */
+	private long cachedBytes;
+
+	/** The fragments, in access order. */
+	private final LinkedHashMap<String, byte[]> fragments = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	/**
+	 * Instantiates a new fragment cache.
+	 *
+	 * @param maxBytes the byte budget
+	 */
+	public S3FragmentCache(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets the first or last bytes of an object.
+	 *
+	 * @param contentUrl the content url
+	 * @param eTag the ETag of the object
+	 * @param header true for the first bytes, false for the last bytes
+	 * @param length the number of bytes
+	 * @return the bytes, or null if fewer are cached
+	 */
+	public synchronized byte[] get(final String contentUrl, final String eTag, final boolean header,
+			final int length) {
+		final byte[] cached = fragments.get(keyOf(contentUrl, eTag, header));
+		if (cached == null || cached.length < length) {
+			return null;
+		}
+		return header ? Arrays.copyOf(cached, length) : Arrays.copyOfRange(cached, cached.length - length,
+				cached.length);
+	}
+
+	/**
+	 * Caches the first or last bytes of an object, unless more are cached.
+	 *
+	 * @param contentUrl the content url
+	 * @param eTag the ETag of the object
+	 * @param header true for the first bytes, false for the last bytes
+	 * @param bytes the bytes
+	 */
+	public synchronized void put(final String contentUrl, final String eTag, final boolean header,
+			final byte[] bytes) {
+		if (bytes.length > maxBytes / 8) {
+			return;
+		}
+		final String key = keyOf(contentUrl, eTag, header);
+		final byte[] previous = fragments.get(key);
+		if (previous != null && previous.length >= bytes.length) {
+			return;
+		}
+		fragments.put(key, bytes);
+		cachedBytes += bytes.length - (previous == null ? 0 : previous.length);
+		final Iterator<Map.Entry<String, byte[]>> eldest = fragments.entrySet().iterator();
+		while (cachedBytes > maxBytes && eldest.hasNext()) {
+			cachedBytes -= eldest.next().getValue().length;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Builds the key of a fragment.
+	 *
+	 * @param contentUrl the content url
+	 * @param eTag the ETag
+	 * @param header true for the first bytes
+	 * @return the key
+	 */
+	private static String keyOf(final String contentUrl, final String eTag, final boolean header) {
+		return contentUrl + '|' + eTag + (header ? "|H" : "|T");
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The Class S3Future.<br/>
+ * The pending result of an asynchronous operation of the
+ * {@link S3ContentStore}. Besides blocking on {@link #get()}, callers can
+ * register {@link S3Callback}s, so a single thread can keep many operations
+ * in flight.
+ *
+ * @param <T> the result type
+ * @author Abhinav Kumar Mishra
+ */
+public class S3Future<T> extends FutureTask<T> {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3Future.class);
+
+	/** The callbacks, null once they have been run. */
+	private List<S3Callback<? super T>> callbacks = new ArrayList<S3Callback<? super T>>();
+
+	/**
+	 * Instantiates a new future.
+	 *
+	 * @param operation the operation
+	 */
+	public S3Future(final Callable<T> operation) {
+		super(operation);
+	}
+
+	/**
+	 * Registers a callback. It runs immediately if the operation has already
+	 * completed.
+	 *
+	 * @param callback the callback
+	 * @return this future
+	 */
+	public S3Future<T> addCallback(final S3Callback<? super T> callback) {
+		synchronized (this) {
+			if (callbacks != null) {
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		notify(callback);
+		return this;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.FutureTask#done()
+	 */
+	@Override
+	protected void done() {
+		final List<S3Callback<? super T>> registered;
+		synchronized (this) {
+			registered = callbacks;
+			callbacks = null;
+		}
+		for (final S3Callback<? super T> callback : registered) {
+			notify(callback);
+		}
+	}
+
+	/**
+	 * Passes the outcome to a callback.
+	 *
+	 * @param callback the callback
+	 */
+	private void notify(final S3Callback<? super T> callback) {
+		final T result;
+		try {
+			result = get();
+		} catch (ExecutionException execExcp) {
+			invokeFailure(callback, execExcp.getCause());
+			return;
+		} catch (CancellationException cancelExcp) {
+			invokeFailure(callback, cancelExcp);
+			return;
+		} catch (InterruptedException intrExcp) {
+			// Not reached, the operation is done
+			Thread.currentThread().interrupt();
+			return;
+		}
+		try {
+			callback.onSuccess(result);
+		} catch (RuntimeException rtExcp) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3Future Callback failed: " + rtExcp);
+			}
+		}
+	}
+
+	/**
+	 * Passes a failure to a callback.
+	 *
+	 * @param callback the callback
+	 * @param cause the cause
+	 */
+	private static void invokeFailure(final S3Callback<?> callback, final Throwable cause) {
+		try {
+			callback.onFailure(cause);
+		} catch (RuntimeException rtExcp) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3Future Callback failed: " + rtExcp);
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+/**
+ * The Interface S3KeyFilter.<br/>
+ * Tells whether a key may exist in the bucket. A filter may answer true for
+ * keys which do not exist, but never false for a key which does.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public interface S3KeyFilter {
+
+	/**
+	 * Checks if a key may exist.
+	 *
+	 * @param key the key
+	 * @return false if the key certainly does not exist
+	 */
+	boolean mightContain(String key);
+}
@@ -0,0 +1,991 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.AWSCredentials;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+import com.abhinav.alfresco.publishing.cloudstore.ConfigReader;
+
+/**
+ * The Class S3KeyIndex.<br/>
+ * Local index of the keys of the bucket, used to answer "does this key
+ * exist" without a request to S3. Keys are reduced to 64-bit fingerprints:
+ * <ul>
+ * <li>a sorted file of the fingerprints, memory-mapped and binary searched,
+ * 8 bytes per key;</li>
+ * <li>a memory-mapped {@link S3BloomFilter} in front of it, about 10 bits per
+ * key at 1% false positives, so most missing keys do not touch the sorted
+ * file;</li>
+ * <li>a journal of the puts and deletes the files do not reflect, replayed
+ * on startup and kept in memory until it is compacted into the files.</li>
+ * </ul>
+ * The files are built from a streamed bucket listing or from an S3 Inventory
+ * CSV report and persisted, so a restart only replays the journal. Both
+ * structures live off the heap; only the journal is held in memory.
+ * <p>
+ * The index only knows about the changes made through this node, not the
+ * ones made by other nodes, the migrator, restores of the bucket or while
+ * the node was down. It is rebuilt once it gets older than the rebuild
+ * interval, and past its max age it stops ruling keys out until the next
+ * build. With several nodes writing to the bucket it must not be used as a
+ * key filter.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3KeyIndex implements S3KeyFilter {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3KeyIndex.class);
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The sorted fingerprints file. */
+	private static final String SORTED_FILE = "keys.sorted";
+
+	/** The bloom filter file. */
+	private static final String BLOOM_FILE = "keys.bloom";
+
+	/** The metadata file. */
+	private static final String META_FILE = "keys.meta";
+
+	/** The journal file. */
+	private static final String JOURNAL_FILE = "keys.journal";
+
+	/** The creation time in an inventory manifest. */
+	private static final Pattern CREATION_TIMESTAMP = Pattern.compile("\"creationTimestamp\"\\s*:\\s*\"?(\\d+)");
+
+	/** The command line option of the inventory creation time. */
+	private static final String CREATED_OPTION = "--created=";
+
+	/** The log2 of the number of fingerprints per mapped segment (1 GB). */
+	private static final int SEGMENT_SHIFT = 27;
+
+	/** The directory. */
+	private final File directory;
+
+	/** The false positive rate of the bloom filter. */
+	private final double falsePositiveRate;
+
+	/** The journal size which triggers a compaction. */
+	private final int maxJournalEntries;
+
+	/** The number of fingerprints sorted in memory at once during a build. */
+	private final int sortChunkSize;
+
+	/** The puts (true) and deletes (false) the files do not reflect. */
+	private final ConcurrentHashMap<Long, Boolean> journal = new ConcurrentHashMap<Long, Boolean>();
+
+	/** The journal output. */
+	private DataOutputStream journalOut;
+
+	/** The executor of the builds and compactions. */
+	private final S3TaskExecutor maintenance = new S3TaskExecutor("S3KeyIndex", 1, S3TrafficClass.BACKGROUND);
+
+	/** True while a build or compaction is pending. */
+	private boolean maintenancePending;
+
+	/** The time of the listing or inventory the files were built from, 0 if unknown. */
+	private volatile long builtAt;
+
+	/** The age after which the index no longer rules keys out, 0 for no limit. */
+	private volatile long maxAge;
+
+	/** The scheduler of the periodic rebuilds, null until started. */
+	private ScheduledExecutorService rebuildScheduler;
+
+	/** The current files, null until built or loaded. */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Instantiates a new key index.
+	 *
+	 * @param directory the directory of the index files
+	 * @param falsePositiveRate the false positive rate of the bloom filter
+	 * @param maxJournalEntries the journal size which triggers a compaction
+	 * @param sortChunkSize the number of fingerprints sorted in memory at once
+	 */
+	public S3KeyIndex(final File directory, final double falsePositiveRate, final int maxJournalEntries,
+			final int sortChunkSize) {
+		this.directory = directory;
+		this.falsePositiveRate = falsePositiveRate;
+		this.maxJournalEntries = Math.max(1, maxJournalEntries);
+		this.sortChunkSize = Math.max(1, sortChunkSize);
+		directory.mkdirs();
+	}
+
+	/**
+	 * Loads the persisted index and replays its journal.
+	 *
+	 * @return true, if an index was found
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized boolean load() throws IOException {
+		final File metaFile = new File(directory, META_FILE);
+		if (metaFile.isFile()) {
+			final Properties meta = new Properties();
+			try (InputStream inStream = new FileInputStream(metaFile)) {
+				meta.load(inStream);
+			}
+			builtAt = Long.parseLong(meta.getProperty("built", "0"));
+			snapshot = new Snapshot(new File(directory, SORTED_FILE), Long.parseLong(meta.getProperty("keys")),
+					S3BloomFilter.open(new File(directory, BLOOM_FILE), Integer.parseInt(meta.getProperty("hashes"))));
+		}
+		final File journalFile = new File(directory, JOURNAL_FILE);
+		if (journalFile.isFile()) {
+			try (DataInputStream inStream = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+				while (true) {
+					final boolean put = inStream.readBoolean();
+					journal.put(Long.valueOf(inStream.readLong()), Boolean.valueOf(put));
+				}
+			} catch (EOFException eofExcp) {
+				// End of the journal, a torn last record is dropped
+			}
+		}
+		if (snapshot == null) {
+			return false;
+		}
+		rewriteJournal();
+		if (LOG.isInfoEnabled()) {
+			LOG.info("S3KeyIndex Loaded: keys=" + snapshot.count + " journal=" + journal.size()
+					+ " ageMinutes=" + (getAge() / 60000L));
+		}
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3KeyFilter#mightContain(java.lang.String)
+	 */
+	public boolean mightContain(final String key) {
+		final Snapshot current = snapshot;
+		if (current == null || isStale()) {
+			// Not built yet, or too old to know the keys written elsewhere
+			return true;
+		}
+		final long fingerprint = fingerprint(key);
+		final Boolean change = journal.get(Long.valueOf(fingerprint));
+		if (change != null) {
+			return change.booleanValue();
+		}
+		return current.bloom.mightContain(fingerprint) && current.contains(fingerprint);
+	}
+
+	/**
+	 * Gets the age of the index, since the listing or the inventory it was
+	 * built from. Compactions do not make it younger.
+	 *
+	 * @return the age in millis
+	 */
+	public long getAge() {
+		return System.currentTimeMillis() - builtAt;
+	}
+
+	/**
+	 * Checks if the index is older than its max age.
+	 *
+	 * @return true, if stale
+	 */
+	public boolean isStale() {
+		return maxAge > 0 && getAge() > maxAge;
+	}
+
+	/**
+	 * Sets the age after which the index no longer rules keys out.
+	 *
+	 * @param maxAge the max age in millis, 0 for no limit
+	 */
+	public void setMaxAge(final long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Rebuilds the index from a listing of the bucket whenever it gets older
+	 * than the interval. The age is checked at least hourly.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucketName the bucket name
+	 * @param interval the rebuild interval in millis
+	 */
+	public synchronized void scheduleRebuilds(final S3Service s3Service, final String bucketName,
+			final long interval) {
+		if (rebuildScheduler != null || interval <= 0) {
+			return;
+		}
+		final long check = Math.max(60000L, Math.min(interval, 3600000L));
+		rebuildScheduler = Executors.newSingleThreadScheduledExecutor(
+				S3LocalContentTier.newThreadFactory("S3KeyIndexRebuild"));
+		rebuildScheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (getAge() >= interval) {
+					rebuildInBackground(s3Service, bucketName);
+				}
+			}
+		}, check, check, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Checks if the index is built.
+	 *
+	 * @return true, if ready
+	 */
+	public boolean isReady() {
+		return snapshot != null;
+	}
+
+	/**
+	 * Records a key written to the bucket.
+	 *
+	 * @param key the key
+	 */
+	public void recordPut(final String key) {
+		record(fingerprint(key), true);
+	}
+
+	/**
+	 * Records a key deleted from the bucket.
+	 *
+	 * @param key the key
+	 */
+	public void recordDelete(final String key) {
+		record(fingerprint(key), false);
+	}
+
+	/**
+	 * Records a change in the journal, and compacts it once it is large.
+	 *
+	 * @param fingerprint the fingerprint
+	 * @param put true for a put, false for a delete
+	 */
+	private synchronized void record(final long fingerprint, final boolean put) {
+		final Long boxed = Long.valueOf(fingerprint);
+		journal.put(boxed, Boolean.valueOf(put));
+		try {
+			if (journalOut == null) {
+				journalOut = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(new File(directory, JOURNAL_FILE), true)));
+			}
+			journalOut.writeBoolean(put);
+			journalOut.writeLong(fingerprint);
+			journalOut.flush();
+		} catch (IOException ioex) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3KeyIndex Failed to write journal: " + ioex);
+			}
+		}
+		if (journal.size() >= maxJournalEntries && snapshot != null && !maintenancePending) {
+			maintenancePending = true;
+			maintenance.execute(new Runnable() {
+				public void run() {
+					try {
+						compact();
+					} catch (Exception excp) {
+						if (LOG.isErrorEnabled()) {
+							LOG.error("S3KeyIndex Compaction failed: " + excp);
+						}
+					} finally {
+						synchronized (S3KeyIndex.this) {
+							maintenancePending = false;
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Rebuilds the index from a listing of the bucket, in the background.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucketName the bucket name
+	 */
+	public synchronized void rebuildInBackground(final S3Service s3Service, final String bucketName) {
+		if (maintenancePending) {
+			return;
+		}
+		maintenancePending = true;
+		maintenance.execute(new Runnable() {
+			public void run() {
+				try {
+					buildFromListing(s3Service, bucketName);
+				} catch (Exception excp) {
+					if (LOG.isErrorEnabled()) {
+						LOG.error("S3KeyIndex Build failed: " + excp);
+					}
+				} finally {
+					synchronized (S3KeyIndex.this) {
+						maintenancePending = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Builds the index from a streamed listing of the bucket.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucketName the bucket name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void buildFromListing(final S3Service s3Service, final String bucketName) throws IOException {
+		final S3BucketListing listing = new S3BucketListing(s3Service, bucketName, null);
+		final long listedAt = System.currentTimeMillis();
+		build(new Iterator<String>() {
+			public boolean hasNext() {
+				return listing.hasNext();
+			}
+
+			public String next() {
+				final StorageObject object = listing.next();
+				return object.getKey();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}, listedAt);
+	}
+
+	/**
+	 * Builds the index from the data files of an S3 Inventory report in CSV
+	 * format, gzipped or not. The key is the second, URL encoded, column.
+	 * The index is as old as the inventory, usually a day.
+	 *
+	 * @param inventoryFiles the inventory data files
+	 * @param createdAt the creation time of the inventory, as in its manifest
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void buildFromInventory(final List<File> inventoryFiles, final long createdAt) throws IOException {
+		build(new InventoryKeys(inventoryFiles), createdAt);
+	}
+
+	/**
+	 * Reads the creation time of an S3 Inventory report from its manifest.
+	 *
+	 * @param manifest the manifest.json file
+	 * @return the creation time in millis
+	 * @throws IOException if the manifest has no creation time
+	 */
+	static long readCreationTime(final File manifest) throws IOException {
+		final String json = new String(Files.readAllBytes(manifest.toPath()), UTF8);
+		final Matcher matcher = CREATION_TIMESTAMP.matcher(json);
+		if (!matcher.find()) {
+			throw new IOException("No creationTimestamp in " + manifest);
+		}
+		return Long.parseLong(matcher.group(1));
+	}
+
+	/**
+	 * Builds the index files from a stream of keys and installs them. The
+	 * journal keeps the changes the keys do not reflect: the ones made after
+	 * the keys were listed, and the puts of content which reached the bucket
+	 * after its key was passed, e.g. moved later from the local tier. Content
+	 * urls are never reused, so a change matching the keys is covered by them.
+	 *
+	 * @param keys the keys
+	 * @param listedAt the time the keys were listed, the age of the index
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void build(final Iterator<String> keys, final long listedAt) throws IOException {
+		final long start = System.currentTimeMillis();
+		final List<File> runs = new ArrayList<File>();
+		try {
+			long[] chunk = new long[sortChunkSize];
+			int size = 0;
+			while (keys.hasNext()) {
+				chunk[size++] = fingerprint(keys.next());
+				if (size == chunk.length) {
+					runs.add(spill(chunk, size));
+					size = 0;
+				}
+			}
+			runs.add(spill(chunk, size));
+			chunk = null;
+			final File sortedTmp = new File(directory, SORTED_FILE + ".tmp");
+			final long count = mergeRuns(runs, sortedTmp);
+			synchronized (this) {
+				install(sortedTmp, count, listedAt);
+				final Snapshot built = snapshot;
+				for (final Map.Entry<Long, Boolean> change : journal.entrySet()) {
+					final long fingerprint = change.getKey().longValue();
+					final boolean listed = built.bloom.mightContain(fingerprint) && built.contains(fingerprint);
+					if (listed == change.getValue().booleanValue()) {
+						journal.remove(change.getKey(), change.getValue());
+					}
+				}
+				rewriteJournal();
+			}
+			if (LOG.isInfoEnabled()) {
+				LOG.info("S3KeyIndex Built: keys=" + count + " in " + (System.currentTimeMillis() - start) + " ms");
+			}
+		} finally {
+			for (final File run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	/**
+	 * Merges the journal into the index files, then drops the merged changes
+	 * from the journal.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void compact() throws IOException {
+		final Snapshot current = snapshot;
+		if (current == null) {
+			return;
+		}
+		final TreeMap<Long, Boolean> changes = new TreeMap<Long, Boolean>(journal);
+		final File sortedTmp = new File(directory, SORTED_FILE + ".tmp");
+		long count = 0;
+		try (DataOutputStream out = newOutput(sortedTmp)) {
+			final Iterator<Map.Entry<Long, Boolean>> changeIter = changes.entrySet().iterator();
+			Map.Entry<Long, Boolean> change = changeIter.hasNext() ? changeIter.next() : null;
+			long index = 0;
+			while (index < current.count || change != null) {
+				final long existing = index < current.count ? current.get(index) : 0L;
+				final int cmp = index >= current.count ? 1
+						: change == null ? -1 : Long.compare(existing, change.getKey().longValue());
+				if (cmp < 0) {
+					out.writeLong(existing);
+					count++;
+					index++;
+				} else {
+					if (change.getValue().booleanValue()) {
+						out.writeLong(change.getKey().longValue());
+						count++;
+					}
+					if (cmp == 0) {
+						index++;
+					}
+					change = changeIter.hasNext() ? changeIter.next() : null;
+				}
+			}
+		}
+		synchronized (this) {
+			install(sortedTmp, count, builtAt);
+			for (final Map.Entry<Long, Boolean> merged : changes.entrySet()) {
+				journal.remove(merged.getKey(), merged.getValue());
+			}
+			rewriteJournal();
+		}
+		if (LOG.isInfoEnabled()) {
+			LOG.info("S3KeyIndex Compacted: keys=" + count + " journal=" + journal.size());
+		}
+	}
+
+	/**
+	 * Builds the bloom filter of a sorted fingerprints file and makes both
+	 * the current index.
+	 *
+	 * @param sortedTmp the sorted fingerprints, renamed into place
+	 * @param count the number of fingerprints
+	 * @param listedAt the time of the listing the fingerprints come from
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void install(final File sortedTmp, final long count, final long listedAt) throws IOException {
+		final File bloomTmp = new File(directory, BLOOM_FILE + ".tmp");
+		final S3BloomFilter bloom = S3BloomFilter.create(bloomTmp, count, falsePositiveRate);
+		try (DataInputStream inStream = new DataInputStream(new BufferedInputStream(new FileInputStream(sortedTmp), 65536))) {
+			for (long index = 0; index < count; index++) {
+				bloom.put(inStream.readLong());
+			}
+		}
+		bloom.force();
+		final Properties meta = new Properties();
+		meta.setProperty("keys", String.valueOf(count));
+		meta.setProperty("hashes", String.valueOf(bloom.getNumHashes()));
+		meta.setProperty("built", String.valueOf(listedAt));
+		final File metaTmp = new File(directory, META_FILE + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(metaTmp)) {
+			meta.store(out, "S3KeyIndex");
+		}
+		final File sortedFile = new File(directory, SORTED_FILE);
+		final File bloomFile = new File(directory, BLOOM_FILE);
+		if (!sortedTmp.renameTo(sortedFile) || !bloomTmp.renameTo(bloomFile)
+				|| !metaTmp.renameTo(new File(directory, META_FILE))) {
+			throw new IOException("Failed to install the key index in " + directory);
+		}
+		snapshot = new Snapshot(sortedFile, count, S3BloomFilter.open(bloomFile, bloom.getNumHashes()));
+		builtAt = listedAt;
+	}
+
+	/**
+	 * Rewrites the journal file with the changes held in memory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void rewriteJournal() throws IOException {
+		if (journalOut != null) {
+			journalOut.close();
+			journalOut = null;
+		}
+		final File journalTmp = new File(directory, JOURNAL_FILE + ".tmp");
+		try (DataOutputStream out = newOutput(journalTmp)) {
+			for (final Map.Entry<Long, Boolean> change : journal.entrySet()) {
+				out.writeBoolean(change.getValue().booleanValue());
+				out.writeLong(change.getKey().longValue());
+			}
+		}
+		final File journalFile = new File(directory, JOURNAL_FILE);
+		journalFile.delete();
+		if (!journalTmp.renameTo(journalFile)) {
+			throw new IOException("Failed to rewrite " + journalFile);
+		}
+	}
+
+	/**
+	 * Sorts a chunk of fingerprints and writes it to a run file.
+	 *
+	 * @param chunk the chunk
+	 * @param size the number of fingerprints in the chunk
+	 * @return the run file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private File spill(final long[] chunk, final int size) throws IOException {
+		Arrays.sort(chunk, 0, size);
+		final File run = File.createTempFile("keys", ".run", directory);
+		try (DataOutputStream out = newOutput(run)) {
+			for (int index = 0; index < size; index++) {
+				out.writeLong(chunk[index]);
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * Merges sorted runs into one file, dropping duplicates.
+	 *
+	 * @param runs the runs
+	 * @param target the target file
+	 * @return the number of fingerprints written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static long mergeRuns(final List<File> runs, final File target) throws IOException {
+		final PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(Math.max(1, runs.size()));
+		final List<DataInputStream> inputs = new ArrayList<DataInputStream>();
+		long count = 0;
+		try (DataOutputStream out = newOutput(target)) {
+			for (final File run : runs) {
+				final DataInputStream inStream = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(run), 65536));
+				inputs.add(inStream);
+				final RunCursor cursor = new RunCursor(inStream, run.length() / 8L);
+				if (cursor.advance()) {
+					heap.add(cursor);
+				}
+			}
+			boolean first = true;
+			long last = 0L;
+			while (!heap.isEmpty()) {
+				final RunCursor cursor = heap.poll();
+				if (first || cursor.current != last) {
+					out.writeLong(cursor.current);
+					last = cursor.current;
+					first = false;
+					count++;
+				}
+				if (cursor.advance()) {
+					heap.add(cursor);
+				}
+			}
+		} finally {
+			for (final DataInputStream inStream : inputs) {
+				inStream.close();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Creates a buffered data output.
+	 *
+	 * @param file the file
+	 * @return the output
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static DataOutputStream newOutput(final File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+	}
+
+	/**
+	 * Computes the 64-bit fingerprint of a key: FNV-1a over its UTF-8 bytes,
+	 * then mixed.
+	 *
+	 * @param key the key
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(final String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (final byte value : key.getBytes(UTF8)) {
+			hash ^= value & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, spreads the bits of a hash.
+	 *
+	 * @param value the value
+	 * @return the mixed value
+	 */
+	static long mix(final long value) {
+		long hash = value;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Gets the number of keys in the index files.
+	 *
+	 * @return the key count, or -1 if not built
+	 */
+	public long getKeyCount() {
+		final Snapshot current = snapshot;
+		return current == null ? -1L : current.count;
+	}
+
+	/**
+	 * Gets the number of changes not yet compacted.
+	 *
+	 * @return the journal size
+	 */
+	public int getJournalSize() {
+		return journal.size();
+	}
+
+	/**
+	 * Stops the background work and closes the journal.
+	 */
+	public synchronized void close() {
+		if (rebuildScheduler != null) {
+			rebuildScheduler.shutdownNow();
+		}
+		maintenance.shutdown();
+		if (journalOut != null) {
+			try {
+				journalOut.close();
+			} catch (IOException ioex) {
+				if (LOG.isWarnEnabled()) {
+					LOG.warn("S3KeyIndex Failed to close journal: " + ioex);
+				}
+			}
+			journalOut = null;
+		}
+	}
+
+	/**
+	 * The installed index files.
+	 */
+	private static final class Snapshot {
+
+		/** The mapped segments of the sorted fingerprints. */
+		private final MappedByteBuffer[] segments;
+
+		/** The number of fingerprints. */
+		private final long count;
+
+		/** The bloom filter. */
+		private final S3BloomFilter bloom;
+
+		/**
+		 * Instantiates a new snapshot.
+		 *
+		 * @param sortedFile the sorted fingerprints file
+		 * @param count the number of fingerprints
+		 * @param bloom the bloom filter
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private Snapshot(final File sortedFile, final long count, final S3BloomFilter bloom) throws IOException {
+			this.count = count;
+			this.bloom = bloom;
+			final long perSegment = 1L << SEGMENT_SHIFT;
+			this.segments = new MappedByteBuffer[(int) ((count + perSegment - 1) / perSegment)];
+			try (RandomAccessFile raf = new RandomAccessFile(sortedFile, "r")) {
+				for (int index = 0; index < segments.length; index++) {
+					final long first = index * perSegment;
+					segments[index] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, first * 8L,
+							Math.min(perSegment, count - first) * 8L);
+				}
+			}
+		}
+
+		/**
+		 * Gets a fingerprint.
+		 *
+		 * @param index the index
+		 * @return the fingerprint
+		 */
+		private long get(final long index) {
+			return segments[(int) (index >>> SEGMENT_SHIFT)].getLong((int) (index & ((1L << SEGMENT_SHIFT) - 1)) << 3);
+		}
+
+		/**
+		 * Binary searches a fingerprint.
+		 *
+		 * @param fingerprint the fingerprint
+		 * @return true, if present
+		 */
+		private boolean contains(final long fingerprint) {
+			long low = 0;
+			long high = count - 1;
+			while (low <= high) {
+				final long middle = (low + high) >>> 1;
+				final long value = get(middle);
+				if (value < fingerprint) {
+					low = middle + 1;
+				} else if (value > fingerprint) {
+					high = middle - 1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The head of a run file during a merge.
+	 */
+	private static final class RunCursor implements Comparable<RunCursor> {
+
+		/** The input. */
+		private final DataInputStream inStream;
+
+		/** The number of fingerprints left. */
+		private long remaining;
+
+		/** The current fingerprint. */
+		private long current;
+
+		/**
+		 * Instantiates a new run cursor.
+		 *
+		 * @param inStream the input
+		 * @param count the number of fingerprints
+		 */
+		private RunCursor(final DataInputStream inStream, final long count) {
+			this.inStream = inStream;
+			this.remaining = count;
+		}
+
+		/**
+		 * Moves to the next fingerprint.
+		 *
+		 * @return true, if there is one
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private boolean advance() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			current = inStream.readLong();
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		public int compareTo(final RunCursor other) {
+			return Long.compare(current, other.current);
+		}
+	}
+
+	/**
+	 * Streams the keys of S3 Inventory CSV data files.
+	 */
+	private static final class InventoryKeys implements Iterator<String> {
+
+		/** The files left to read. */
+		private final Iterator<File> files;
+
+		/** The current reader. */
+		private BufferedReader reader;
+
+		/** The next key. */
+		private String next;
+
+		/**
+		 * Instantiates new inventory keys.
+		 *
+		 * @param inventoryFiles the inventory files
+		 */
+		private InventoryKeys(final List<File> inventoryFiles) {
+			this.files = inventoryFiles.iterator();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		public boolean hasNext() {
+			try {
+				while (next == null) {
+					if (reader == null) {
+						if (!files.hasNext()) {
+							return false;
+						}
+						final File file = files.next();
+						InputStream inStream = new BufferedInputStream(new FileInputStream(file), 65536);
+						if (file.getName().endsWith(".gz")) {
+							inStream = new GZIPInputStream(inStream, 65536);
+						}
+						reader = new BufferedReader(new InputStreamReader(inStream, UTF8));
+					}
+					final String line = reader.readLine();
+					if (line == null) {
+						reader.close();
+						reader = null;
+					} else {
+						next = parseKey(line);
+					}
+				}
+				return true;
+			} catch (IOException ioex) {
+				throw new IllegalStateException("Failed to read the inventory", ioex);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final String key = next;
+			next = null;
+			return key;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Extracts the key of an inventory line: "bucket","key",...
+		 *
+		 * @param line the line
+		 * @return the key, or null if the line has none
+		 * @throws UnsupportedEncodingException never, UTF-8 is supported
+		 */
+		private static String parseKey(final String line) throws UnsupportedEncodingException {
+			final int start = line.indexOf("\",\"");
+			if (start < 0) {
+				return null;
+			}
+			final int end = line.indexOf('"', start + 3);
+			final String encoded = end < 0 ? line.substring(start + 3) : line.substring(start + 3, end);
+			return URLDecoder.decode(encoded, "UTF-8");
+		}
+	}
+
+	/**
+	 * Builds the index offline, from inventory files or from a listing. An
+	 * inventory build takes the manifest.json of the report, or the
+	 * --created=&lt;epoch millis&gt; option, for the creation time.
+	 *
+	 * @param args the arguments
+	 * @throws Exception the exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		final ConfigReader config = ConfigReader.getInstance();
+		final S3KeyIndex index = new S3KeyIndex(
+				new File(config.getProperty(CloudStoreConstants.KEY_INDEX_DIRECTORY, "./alf_data/s3keyindex")),
+				Double.parseDouble(config.getProperty(CloudStoreConstants.KEY_INDEX_FALSE_POSITIVE_RATE, "0.01")),
+				config.getIntProperty(CloudStoreConstants.KEY_INDEX_MAX_JOURNAL_ENTRIES, 1000000),
+				config.getIntProperty(CloudStoreConstants.KEY_INDEX_SORT_CHUNK_SIZE, 8000000));
+		if (args.length > 0) {
+			final List<File> inventoryFiles = new ArrayList<File>();
+			long createdAt = -1L;
+			for (final String arg : args) {
+				if (arg.startsWith(CREATED_OPTION)) {
+					createdAt = Long.parseLong(arg.substring(CREATED_OPTION.length()));
+				} else if (arg.endsWith("manifest.json")) {
+					createdAt = readCreationTime(new File(arg));
+				} else {
+					inventoryFiles.add(new File(arg));
+				}
+			}
+			if (createdAt < 0) {
+				System.err.println("Usage: S3KeyIndex manifest.json|" + CREATED_OPTION + "<epoch millis> <csv files>");
+				index.close();
+				System.exit(1);
+			}
+			index.buildFromInventory(inventoryFiles, createdAt);
+		} else {
+			final S3Service s3Service = new S3ShapedRestService(new AWSCredentials(
+					config.getProperty(CloudStoreConstants.ACCESSKEY, null),
+					config.getProperty(CloudStoreConstants.SECRETKEY, null)), S3TrafficClass.BULK);
+			index.buildFromListing(s3Service, config.getProperty(CloudStoreConstants.BUCKET, null));
+			s3Service.shutdown();
+		}
+		index.close();
+		System.out.println("Indexed keys: " + index.getKeyCount());
+	}
+}
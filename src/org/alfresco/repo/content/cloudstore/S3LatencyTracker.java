@@ -0,0 +1,170 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Class S3LatencyTracker.<br/>
+ * Live latency measurements of the S3 requests, kept per bucket. Each bucket
+ * has an exponentially weighted moving average, used to rank the buckets, and
+ * a window of the most recent samples, used for percentiles. Failures are
+ * accounted in the average as a heavy penalty so failing buckets sink in the
+ * ranking and recover once they answer again.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3LatencyTracker {
+
+	/** The number of samples kept per bucket. */
+	private static final int WINDOW_SIZE = 128;
+
+	/** The weight of a new sample in the moving average. */
+	private static final double ALPHA = 0.2;
+
+	/** The latency accounted for a failed request, in millis. */
+	private static final long FAILURE_PENALTY_MS = 5000L;
+
+	/** The windows. */
+	private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+	/**
+	 * Records the latency of a successful request.
+	 *
+	 * @param bucketName the bucket name
+	 * @param millis the latency in millis
+	 */
+	public void record(final String bucketName, final long millis) {
+		getWindow(bucketName).add(millis, true);
+	}
+
+	/**
+	 * Records a failed request.
+	 *
+	 * @param bucketName the bucket name
+	 */
+	public void recordFailure(final String bucketName) {
+		getWindow(bucketName).add(FAILURE_PENALTY_MS, false);
+	}
+
+	/**
+	 * Gets the ranking score of a bucket, lower is faster. Buckets without
+	 * samples score 0 so they get measured.
+	 *
+	 * @param bucketName the bucket name
+	 * @return the score
+	 */
+	public double getScore(final String bucketName) {
+		final Window window = windows.get(bucketName);
+		return window == null ? 0d : window.getAverage();
+	}
+
+	/**
+	 * Gets a latency percentile of the recent successful requests.
+	 *
+	 * @param bucketName the bucket name
+	 * @param percentile the percentile, between 0 and 100
+	 * @param minSamples the min number of samples required
+	 * @return the latency in millis, or -1 if there are not enough samples
+	 */
+	public long getPercentile(final String bucketName, final double percentile, final int minSamples) {
+		final Window window = windows.get(bucketName);
+		return window == null ? -1L : window.getPercentile(percentile, minSamples);
+	}
+
+	/**
+	 * Gets the window of a bucket.
+	 *
+	 * @param bucketName the bucket name
+	 * @return the window
+	 */
+	private Window getWindow(final String bucketName) {
+		Window window = windows.get(bucketName);
+		if (window == null) {
+			final Window created = new Window();
+			window = windows.putIfAbsent(bucketName, created);
+			if (window == null) {
+				window = created;
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * The samples of one bucket.
+	 */
+	private static final class Window {
+
+		/** The samples, a ring buffer. */
+		private final long[] samples = new long[WINDOW_SIZE];
+
+		/** The next slot. */
+		private int next;
+
+		/** The number of samples. */
+		private int count;
+
+		/** The moving average. */
+		private double average = -1d;
+
+		/**
+		 * Adds a sample.
+		 *
+		 * @param millis the millis
+		 * @param success true if the request succeeded
+		 */
+		private synchronized void add(final long millis, final boolean success) {
+			average = average < 0 ? millis : (ALPHA * millis) + ((1 - ALPHA) * average);
+			if (success) {
+				samples[next] = millis;
+				next = (next + 1) % WINDOW_SIZE;
+				count = Math.min(count + 1, WINDOW_SIZE);
+			}
+		}
+
+		/**
+		 * Gets the average.
+		 *
+		 * @return the average
+		 */
+		private synchronized double getAverage() {
+			return Math.max(0d, average);
+		}
+
+		/**
+		 * Gets a percentile.
+		 *
+		 * @param percentile the percentile
+		 * @param minSamples the min samples
+		 * @return the percentile
+		 */
+		private long getPercentile(final double percentile, final int minSamples) {
+			final long[] sorted;
+			synchronized (this) {
+				if (count == 0 || count < minSamples) {
+					return -1L;
+				}
+				sorted = Arrays.copyOf(samples, count);
+			}
+			Arrays.sort(sorted);
+			final int index = (int) Math.ceil((percentile / 100d) * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+		}
+	}
+}
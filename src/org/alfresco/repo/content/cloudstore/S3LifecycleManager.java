@@ -0,0 +1,444 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.filestore.FileContentStore;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * The Class S3LifecycleManager.<br/>
+ * Moves cold objects to cheaper storage classes. An object is cold once
+ * neither written nor read for the configured number of days, reads being
+ * taken from the {@link S3AccessStatistics}. A scheduled run lists the
+ * bucket and changes the storage class of the cold objects with server side
+ * copies in place, bounded per run in objects and bytes so the copy and
+ * transition costs stay predictable. Archived objects are restored on read
+ * by the {@link S3ArchiveRestorer}.<br/>
+ * Every node records the reads it serves and saves them periodically to its
+ * own file of the statistics directory, which is shared by the nodes of a
+ * cluster. The runs take place on the single node configured as the runner,
+ * from the statistics merged from all the files, so an object read on any
+ * node stays in place.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3LifecycleManager {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3LifecycleManager.class);
+
+	/** The infrequent access storage class. */
+	public static final String STANDARD_IA = "STANDARD_IA";
+
+	/** The archive storage class. */
+	public static final String GLACIER = "GLACIER";
+
+	/** The prefix of the content urls. */
+	private static final String URL_PREFIX = FileContentStore.STORE_PROTOCOL + ContentStore.PROTOCOL_DELIMITER;
+
+	/** The millis of a day. */
+	private static final long DAY_MS = 24L * 60L * 60L * 1000L;
+
+	/** The suffix of the statistics files. */
+	private static final String STATISTICS_SUFFIX = ".stats";
+
+	/** The s3 service. */
+	private final S3Service s3Service;
+
+	/** The bucket. */
+	private final S3Bucket bucket;
+
+	/** The access statistics. */
+	private final S3AccessStatistics statistics;
+
+	/** The directory the statistics of the nodes are saved to. */
+	private final File statisticsDir;
+
+	/** The file the statistics of this node are saved to. */
+	private final File statisticsFile;
+
+	/** Idle days before the infrequent access class, 0 to disable. */
+	private final int infrequentAccessDays;
+
+	/** Idle days before the archive class, 0 to disable. */
+	private final int archiveDays;
+
+	/** The min size of a moved object. */
+	private final long minObjectSize;
+
+	/** The max objects moved per run. */
+	private final long maxObjectsPerRun;
+
+	/** The max bytes moved per run. */
+	private final long maxBytesPerRun;
+
+	/** The max number of concurrent copies. */
+	private final int concurrency;
+
+	/** The executor of the copies. */
+	private final S3TaskExecutor executor;
+
+	/** The scheduler of the runs. */
+	private final ScheduledExecutorService scheduler;
+
+	/** The moved object count. */
+	private final AtomicLong moved = new AtomicLong();
+
+	/** The failed copy count. */
+	private final AtomicLong failures = new AtomicLong();
+
+	/** The count of objects too large to be copied. */
+	private final AtomicLong tooLarge = new AtomicLong();
+
+	/**
+	 * Instantiates a new lifecycle manager.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucket the bucket
+	 * @param statistics the access statistics of this node
+	 * @param statisticsDir the directory the statistics of the nodes are saved to
+	 * @param nodeName the name of this node
+	 * @param infrequentAccessDays idle days before the infrequent access class, 0 to disable
+	 * @param archiveDays idle days before the archive class, 0 to disable
+	 * @param minObjectSize the min size of a moved object
+	 * @param maxObjectsPerRun the max objects moved per run
+	 * @param maxBytesPerRun the max bytes moved per run
+	 * @param concurrency the max number of concurrent copies
+	 */
+	public S3LifecycleManager(final S3Service s3Service, final S3Bucket bucket,
+			final S3AccessStatistics statistics, final File statisticsDir, final String nodeName,
+			final int infrequentAccessDays,
+			final int archiveDays, final long minObjectSize, final long maxObjectsPerRun,
+			final long maxBytesPerRun, final int concurrency) {
+		this.s3Service = s3Service;
+		this.bucket = bucket;
+		this.statistics = statistics;
+		this.statisticsDir = statisticsDir;
+		this.statisticsFile = new File(statisticsDir, nodeName + STATISTICS_SUFFIX);
+		this.infrequentAccessDays = Math.max(0, infrequentAccessDays);
+		this.archiveDays = Math.max(0, archiveDays);
+		this.minObjectSize = minObjectSize;
+		this.maxObjectsPerRun = maxObjectsPerRun;
+		this.maxBytesPerRun = maxBytesPerRun;
+		this.concurrency = Math.max(1, concurrency);
+		this.executor = new S3TaskExecutor("S3Lifecycle", this.concurrency, S3TrafficClass.BACKGROUND);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(S3LocalContentTier.newThreadFactory("S3LifecycleRun"));
+	}
+
+	/**
+	 * Loads the statistics saved by this node.
+	 */
+	public void loadStatistics() {
+		if (!statisticsFile.isFile()) {
+			return;
+		}
+		try {
+			statistics.load(statisticsFile);
+		} catch (IOException ioex) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3LifecycleManager Failed to load access statistics, starting empty: " + ioex);
+			}
+		}
+	}
+
+	/**
+	 * Schedules the saves of the statistics and, on the runner node, the
+	 * runs.
+	 *
+	 * @param intervalMinutes the delay between two runs
+	 * @param saveMinutes the delay between two saves of the statistics
+	 * @param runner true if this node is the one running the moves
+	 */
+	public void start(final long intervalMinutes, final long saveMinutes, final boolean runner) {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				saveStatistics();
+			}
+		}, saveMinutes, saveMinutes, TimeUnit.MINUTES);
+		if (!runner) {
+			return;
+		}
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					runOnce();
+				} catch (InterruptedException intrExcp) {
+					Thread.currentThread().interrupt();
+				} catch (Exception excp) {
+					if (LOG.isErrorEnabled()) {
+						LOG.error("S3LifecycleManager Run failed: " + excp);
+					}
+				}
+			}
+		}, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Moves the cold objects, within the budget of a run. The statistics of
+	 * this node are saved first and the reads of all the nodes are merged.
+	 *
+	 * @return the number of objects moved
+	 * @throws InterruptedException if interrupted
+	 * @throws IOException if the statistics of a node cannot be read
+	 */
+	public long runOnce() throws InterruptedException, IOException {
+		final long start = System.currentTimeMillis();
+		final long movedBefore = moved.get();
+		saveStatistics();
+		final S3AccessStatistics merged = mergeStatistics();
+		final int today = S3AccessStatistics.today();
+		final int permits = concurrency * 2;
+		final Semaphore inFlight = new Semaphore(permits);
+		final S3TrafficClass previousClass = S3TrafficShaper.setCurrentClass(S3TrafficClass.BACKGROUND);
+		long objects = 0;
+		long bytes = 0;
+		try {
+			final S3BucketListing listing = new S3BucketListing(s3Service, bucket.getName(), null);
+			while (listing.hasNext() && objects < maxObjectsPerRun && bytes < maxBytesPerRun) {
+				final StorageObject object = listing.next();
+				final String target = getTargetClass(object, merged, today);
+				if (target == null || bytes + object.getContentLength() > maxBytesPerRun) {
+					continue;
+				}
+				objects++;
+				bytes += object.getContentLength();
+				inFlight.acquire();
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							transition(object.getKey(), target, object.getContentLength());
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+		} finally {
+			inFlight.acquire(permits);
+			inFlight.release(permits);
+			S3TrafficShaper.setCurrentClass(previousClass);
+		}
+		if (LOG.isInfoEnabled()) {
+			LOG.info("S3LifecycleManager Run completed in " + (System.currentTimeMillis() - start) + " ms: moved="
+					+ (moved.get() - movedBefore) + " of " + objects + " bytes=" + bytes + " failures=" + failures.get()
+					+ " tooLarge=" + tooLarge.get());
+		}
+		return moved.get() - movedBefore;
+	}
+
+	/**
+	 * Gets the storage class an object should move to.
+	 *
+	 * @param object the listed object
+	 * @param merged the statistics of all the nodes
+	 * @param today the current day
+	 * @return the storage class, or null if the object stays
+	 */
+	private String getTargetClass(final StorageObject object, final S3AccessStatistics merged, final int today) {
+		final long size = object.getContentLength();
+		if (size < minObjectSize || object.getLastModifiedDate() == null) {
+			return null;
+		}
+		// A move resets Last-Modified, the day in the url is the write day
+		int writtenDay = getUrlDay(object.getKey());
+		if (writtenDay < 0) {
+			writtenDay = (int) (object.getLastModifiedDate().getTime() / DAY_MS);
+		}
+		final int idleDays = today - Math.max(writtenDay, merged.getLastAccessDay(object.getKey()));
+		final int rank = rankOf(object.getStorageClass());
+		if (archiveDays > 0 && idleDays >= archiveDays && rank < 2) {
+			return GLACIER;
+		}
+		if (infrequentAccessDays > 0 && idleDays >= infrequentAccessDays && rank < 1) {
+			return STANDARD_IA;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the day a content url was created, from its year/month/day path.
+	 *
+	 * @param contentUrl the content url
+	 * @return the day since the epoch, or -1 if the url has no date path
+	 */
+	static int getUrlDay(final String contentUrl) {
+		if (!contentUrl.startsWith(URL_PREFIX)) {
+			return -1;
+		}
+		final String[] segments = contentUrl.substring(URL_PREFIX.length()).split("/");
+		if (segments.length < 6) {
+			return -1;
+		}
+		try {
+			// Noon of the local day falls on the same day in UTC for any zone within 12 hours
+			final Calendar day = new GregorianCalendar(Integer.parseInt(segments[0]),
+					Integer.parseInt(segments[1]) - 1, Integer.parseInt(segments[2]), 12, 0);
+			return (int) (day.getTimeInMillis() / DAY_MS);
+		} catch (NumberFormatException numExcp) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Ranks a storage class from the hottest to the coldest.
+	 *
+	 * @param storageClass the storage class, null for STANDARD
+	 * @return 0 for standard classes, 1 for infrequent access, 2 for archives
+	 */
+	private static int rankOf(final String storageClass) {
+		if (storageClass == null) {
+			return 0;
+		}
+		if (storageClass.endsWith("_IA") || "INTELLIGENT_TIERING".equals(storageClass)) {
+			return 1;
+		}
+		if (storageClass.contains("GLACIER") || "DEEP_ARCHIVE".equals(storageClass)) {
+			return 2;
+		}
+		return 0;
+	}
+
+	/**
+	 * Changes the storage class of an object with a copy in place, the
+	 * metadata is kept. Objects over the 5 GB limit of a copy are copied in
+	 * parts.
+	 *
+	 * @param key the key
+	 * @param storageClass the new storage class
+	 * @param size the size of the object
+	 */
+	private void transition(final String key, final String storageClass, final long size) {
+		final S3Object destination = new S3Object(key);
+		destination.setStorageClass(storageClass);
+		try {
+			if (size <= S3ShapedRestService.MAX_COPY_SIZE) {
+				s3Service.copyObject(bucket.getName(), key, bucket.getName(), destination, false);
+			} else if (s3Service instanceof S3ShapedRestService) {
+				final StorageObject details = s3Service.getObjectDetails(bucket.getName(), key);
+				destination.setContentType(details.getContentType());
+				destination.addAllMetadata(details.getModifiableMetadata());
+				((S3ShapedRestService) s3Service).copyObjectInParts(bucket.getName(), key, bucket.getName(),
+						destination, size);
+			} else {
+				tooLarge.incrementAndGet();
+				if (LOG.isWarnEnabled()) {
+					LOG.warn("S3LifecycleManager Cannot move " + key + " to " + storageClass + ": " + size
+							+ " bytes is above the 5 GB limit of a copy and part copies are not supported");
+				}
+				return;
+			}
+			moved.incrementAndGet();
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("S3LifecycleManager Moved " + key + " to " + storageClass);
+			}
+		} catch (ServiceException servExcp) {
+			failures.incrementAndGet();
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3LifecycleManager Failed to move " + key + " to " + storageClass + ": " + servExcp);
+			}
+		}
+	}
+
+	/**
+	 * Merges the statistics saved by all the nodes.
+	 *
+	 * @return the merged statistics
+	 * @throws IOException if the statistics of a node cannot be read, a run
+	 *         would otherwise move the objects that node reads
+	 */
+	private S3AccessStatistics mergeStatistics() throws IOException {
+		final S3AccessStatistics merged = new S3AccessStatistics();
+		final File[] files = statisticsDir.listFiles();
+		if (files == null) {
+			throw new IOException("Failed to list " + statisticsDir);
+		}
+		for (final File file : files) {
+			if (file.getName().endsWith(STATISTICS_SUFFIX)) {
+				merged.load(file);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Saves the access statistics of this node.
+	 */
+	private void saveStatistics() {
+		try {
+			statistics.save(statisticsFile);
+		} catch (IOException ioex) {
+			if (LOG.isErrorEnabled()) {
+				LOG.error("S3LifecycleManager Failed to save access statistics: " + ioex);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of objects moved.
+	 *
+	 * @return the moved count
+	 */
+	public long getMovedCount() {
+		return moved.get();
+	}
+
+	/**
+	 * Gets the number of failed copies.
+	 *
+	 * @return the failure count
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * Gets the number of objects which could not be moved, being over the
+	 * 5 GB limit of a copy on a service without part copies.
+	 *
+	 * @return the too large count
+	 */
+	public long getTooLargeCount() {
+		return tooLarge.get();
+	}
+
+	/**
+	 * Stops the runs and saves the access statistics of this node.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		executor.shutdown();
+		saveStatistics();
+	}
+}
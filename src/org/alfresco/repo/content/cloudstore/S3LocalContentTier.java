@@ -0,0 +1,491 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.filestore.FileContentStore;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentStreamListener;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+import com.abhinav.alfresco.publishing.cloudstore.ConfigReader;
+
+/**
+ * The Class S3LocalContentTier.<br/>
+ * Local filesystem tier of the {@link S3ContentStore}. New content is written
+ * to a {@link FileContentStore} laid out exactly like the S3 keys, and a
+ * background mover uploads it to S3 once it gets old, idle or large. The tier
+ * also holds copies of S3 content fetched ahead of time by the
+ * {@link S3ContentPrefetcher}.<br/>
+ * Until it is moved, new content exists only on the disk and in the index of
+ * the node which wrote it, so the other nodes of a cluster cannot read it.
+ * On a cluster the tier must be used in write-through mode, where content is
+ * uploaded when its stream is closed and the local file is kept as a clean
+ * cached copy.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3LocalContentTier {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3LocalContentTier.class);
+
+	/** The Constant MINUTE. */
+	private static final long MINUTE = 60L * 1000L;
+
+	/** The suffix of partially fetched files. */
+	private static final String PART_SUFFIX = ".part";
+
+	/** The url prefix of the content held by the tier. */
+	private static final String URL_PREFIX = FileContentStore.STORE_PROTOCOL + ContentStore.PROTOCOL_DELIMITER;
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The bucket. */
+	private final S3Bucket bucket;
+
+	/** The replicator, null unless the store has replicas. */
+	private final S3BucketReplicator replicator;
+
+	/** The root directory. */
+	private final File rootDirectory;
+
+	/** The local store. */
+	private final FileContentStore localStore;
+
+	/** The location index. */
+	private final S3ContentLocationIndex index = new S3ContentLocationIndex();
+
+	/** Files already moved to S3, deleted on the next mover run so open readers can complete. */
+	private final ConcurrentLinkedQueue<File> pendingDeletes = new ConcurrentLinkedQueue<File>();
+
+	/** The max age in millis. */
+	private final long maxAge;
+
+	/** The max idle time in millis. */
+	private final long maxIdle;
+
+	/** The max local file size in bytes. */
+	private final long maxLocalSize;
+
+	/** True to upload content when written, the local file is a cached copy. */
+	private final boolean writeThrough;
+
+	/** The mover batch size. */
+	private final int batchSize;
+
+	/** The mover scheduler. */
+	private final ScheduledExecutorService scheduler;
+
+	/** The upload pool, bounds the number of concurrent uploads. */
+	private final ExecutorService uploadPool;
+
+	/**
+	 * Instantiates a new local content tier from the cloudstore configuration.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucket the bucket
+	 * @param replicator the replicator of the moved content, may be null
+	 */
+	public S3LocalContentTier(final S3Service s3Service, final S3Bucket bucket,
+			final S3BucketReplicator replicator) {
+		final ConfigReader config = ConfigReader.getInstance();
+		this.s3Service = s3Service;
+		this.bucket = bucket;
+		this.replicator = replicator;
+		this.rootDirectory = new File(config.getProperty(CloudStoreConstants.TIERING_ROOT, "s3tier"));
+		this.maxAge = config.getLongProperty(CloudStoreConstants.TIERING_MAX_AGE_MINUTES, 4320L) * MINUTE;
+		this.maxIdle = config.getLongProperty(CloudStoreConstants.TIERING_MAX_IDLE_MINUTES, 1440L) * MINUTE;
+		this.maxLocalSize = config.getLongProperty(CloudStoreConstants.TIERING_MAX_LOCAL_SIZE_MB, 64L) * 1024L * 1024L;
+		this.batchSize = config.getIntProperty(CloudStoreConstants.TIERING_MOVER_BATCH_SIZE, 500);
+		this.writeThrough = config.getBooleanProperty(CloudStoreConstants.TIERING_WRITE_THROUGH, false);
+		final int moverThreads = config.getIntProperty(CloudStoreConstants.TIERING_MOVER_THREADS, 4);
+		final long interval = config.getLongProperty(CloudStoreConstants.TIERING_MOVER_INTERVAL_SECONDS, 300L);
+
+		if (!rootDirectory.exists() && !rootDirectory.mkdirs()) {
+			throw new ContentIOException("S3LocalContentTier Failed to create root directory: " + rootDirectory);
+		}
+		this.localStore = new FileContentStore(rootDirectory);
+		rebuildIndex(rootDirectory);
+		if (LOG.isInfoEnabled()) {
+			LOG.info("S3LocalContentTier Initialized: root=" + rootDirectory.getAbsolutePath()
+					+ " localUrls=" + index.size());
+		}
+
+		this.uploadPool = new S3TaskExecutor("S3TierUpload", moverThreads, S3TrafficClass.BACKGROUND);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(newThreadFactory("S3TierMover"));
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				moveColdContent();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Gets a reader for a url held by the local tier.
+	 *
+	 * @param contentUrl the content url
+	 * @return the reader, or null if the url is not held locally
+	 */
+	public ContentReader getReader(final String contentUrl) {
+		if (!index.touch(contentUrl)) {
+			return null;
+		}
+		return localStore.getReader(contentUrl);
+	}
+
+	/**
+	 * Gets a writer to the local tier. The url is indexed once the stream is
+	 * closed; in write-through mode the content is uploaded first and indexed
+	 * as clean, a failed upload fails the write.
+	 *
+	 * @param existingContentReader the existing content reader
+	 * @param contentUrl the content url
+	 * @return the writer
+	 */
+	public ContentWriter getWriter(final ContentReader existingContentReader, final String contentUrl) {
+		final ContentWriter writer = localStore.getWriter(new ContentContext(existingContentReader, contentUrl));
+		writer.addListener(new ContentStreamListener() {
+			public void contentStreamClosed() throws ContentIOException {
+				if (!writeThrough) {
+					index.register(contentUrl, System.currentTimeMillis());
+					return;
+				}
+				final File file = toFile(contentUrl);
+				try {
+					upload(contentUrl, file);
+				} catch (Exception excp) {
+					file.delete();
+					throw new ContentIOException("S3LocalContentTier Failed to upload " + contentUrl, excp);
+				}
+				index.registerClean(contentUrl, System.currentTimeMillis());
+				if (replicator != null) {
+					replicator.replicate(contentUrl);
+				}
+			}
+		});
+		return writer;
+	}
+
+	/**
+	 * Deletes a url from the local tier.
+	 *
+	 * @param contentUrl the content url
+	 * @return true, if the url was held locally
+	 */
+	public boolean delete(final String contentUrl) {
+		if (!index.remove(contentUrl)) {
+			return false;
+		}
+		return localStore.delete(contentUrl);
+	}
+
+	/**
+	 * Copies a S3 object into the local tier. The copy is indexed as clean, so
+	 * the mover drops it without an upload once it is no longer read.
+	 *
+	 * @param contentUrl the content url
+	 * @param maxSize the max size of the object to copy
+	 * @return true, if the url is held locally afterwards
+	 * @throws Exception if the object could not be fetched
+	 */
+	public boolean fetchFromS3(final String contentUrl, final long maxSize) throws Exception {
+		if (index.isLocal(contentUrl)) {
+			return true;
+		}
+		// A HEAD sizes the object, so a skipped fetch costs no GET connection
+		final long size = s3Service.getObjectDetails(bucket, contentUrl).getContentLength();
+		if (size > maxSize) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("S3LocalContentTier Skipping Fetch of Large Object: contentUrl=" + contentUrl
+						+ " size=" + size);
+			}
+			return false;
+		}
+		final S3Object object = s3Service.getObject(bucket, contentUrl);
+		try {
+			final File file = toFile(contentUrl);
+			final File partFile = new File(file.getPath() + PART_SUFFIX);
+			partFile.getParentFile().mkdirs();
+			final byte[] buffer = new byte[8192];
+			try (InputStream inStream = object.getDataInputStream();
+					OutputStream outStream = new FileOutputStream(partFile)) {
+				int read;
+				while ((read = inStream.read(buffer)) != -1) {
+					outStream.write(buffer, 0, read);
+				}
+			}
+			// A local write may have won the race, it must not be replaced.
+			if (index.isLocal(contentUrl) || !partFile.renameTo(file)) {
+				partFile.delete();
+				return index.isLocal(contentUrl);
+			}
+			index.registerClean(contentUrl, System.currentTimeMillis());
+			return true;
+		} finally {
+			object.closeDataInputStream();
+		}
+	}
+
+	/**
+	 * Checks if the url is held by the local tier.
+	 *
+	 * @param contentUrl the content url
+	 * @return true, if local
+	 */
+	public boolean isLocal(final String contentUrl) {
+		return index.isLocal(contentUrl);
+	}
+
+	/**
+	 * Moves the content which is old, idle or too large to S3. Uploads run on
+	 * the bounded upload pool and the method returns once the batch is done.
+	 */
+	public void moveColdContent() {
+		File deletable;
+		while ((deletable = pendingDeletes.poll()) != null) {
+			if (!deletable.delete() && deletable.exists() && LOG.isWarnEnabled()) {
+				LOG.warn("S3LocalContentTier Failed to delete moved file: " + deletable);
+			}
+		}
+
+		final long now = System.currentTimeMillis();
+		final List<Future<?>> uploads = new ArrayList<Future<?>>();
+		for (final Map.Entry<String, Long> entry : index.entries()) {
+			if (uploads.size() >= batchSize) {
+				break;
+			}
+			final String contentUrl = entry.getKey();
+			final File file = toFile(contentUrl);
+			final boolean cold = now - file.lastModified() >= maxAge
+					|| now - entry.getValue().longValue() >= maxIdle
+					|| file.length() > maxLocalSize;
+			if (cold && index.isClean(contentUrl)) {
+				dropLocalCopy(contentUrl, file);
+			} else if (cold) {
+				uploads.add(uploadPool.submit(new Runnable() {
+					public void run() {
+						moveToS3(contentUrl, file);
+					}
+				}));
+			}
+		}
+		for (final Future<?> upload : uploads) {
+			try {
+				upload.get();
+			} catch (Exception excp) {
+				if (LOG.isErrorEnabled()) {
+					LOG.error("S3LocalContentTier Mover Failed: " + excp);
+				}
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("S3LocalContentTier Mover Run Complete: moved=" + uploads.size()
+					+ " localUrls=" + index.size());
+		}
+	}
+
+	/**
+	 * Uploads a local file to S3 and drops it from the index. A file whose
+	 * object is already in S3, e.g. a clean copy or a file moved before a
+	 * restart, is only dropped so the stored object, its headers, digests and
+	 * storage class are kept.
+	 *
+	 * @param contentUrl the content url
+	 * @param file the file
+	 */
+	private void moveToS3(final String contentUrl, final File file) {
+		if (!file.exists()) {
+			index.remove(contentUrl);
+			return;
+		}
+		if (existsInS3(contentUrl)) {
+			dropLocalCopy(contentUrl, file);
+			return;
+		}
+		try {
+			upload(contentUrl, file);
+			// Only unindex after a successful upload, later reads go to S3.
+			if (!index.remove(contentUrl)) {
+				// Deleted while uploading, the delete of the object may have run before the PUT
+				s3Service.deleteObject(bucket, contentUrl);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("S3LocalContentTier Deleted during the move: contentUrl=" + contentUrl);
+				}
+				return;
+			}
+			if (replicator != null) {
+				replicator.replicate(contentUrl);
+			}
+			pendingDeletes.add(file);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("S3LocalContentTier Moved to S3: contentUrl=" + contentUrl);
+			}
+		} catch (Exception excp) {
+			if (LOG.isErrorEnabled()) {
+				LOG.error("S3LocalContentTier Failed to Move File: " + contentUrl + " " + excp);
+			}
+		}
+	}
+
+	/**
+	 * Uploads a local file with its digests.
+	 *
+	 * @param contentUrl the content url
+	 * @param file the file
+	 * @throws Exception if the upload failed
+	 */
+	private void upload(final String contentUrl, final File file) throws Exception {
+		final S3Object object = new S3Object(contentUrl);
+		try {
+			final S3FileDigests digests = S3FileDigests.of(file);
+			object.setDataInputFile(file);
+			object.setContentLength(file.length());
+			S3ContentHeaders.DEFAULT.applyTo(object);
+			object.setMd5Hash(digests.getMd5());
+			object.addMetadata(CloudStoreConstants.META_SHA256, digests.getSha256Hex());
+			s3Service.putObject(bucket, object);
+		} finally {
+			try {
+				object.closeDataInputStream();
+			} catch (Exception excp) {
+				// Ignore, the upload result is already known
+			}
+		}
+	}
+
+	/**
+	 * Checks if the object of a url is already in S3.
+	 *
+	 * @param contentUrl the content url
+	 * @return true, if the object exists
+	 */
+	private boolean existsInS3(final String contentUrl) {
+		try {
+			s3Service.getObjectDetails(bucket, contentUrl);
+			return true;
+		} catch (S3ServiceException s3ServExcp) {
+			if (s3ServExcp.getResponseCode() != 404 && LOG.isWarnEnabled()) {
+				LOG.warn("S3LocalContentTier Failed to check " + contentUrl + ", uploading it: " + s3ServExcp);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Drops a local copy which is already present in S3.
+	 *
+	 * @param contentUrl the content url
+	 * @param file the file
+	 */
+	private void dropLocalCopy(final String contentUrl, final File file) {
+		index.remove(contentUrl);
+		pendingDeletes.add(file);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("S3LocalContentTier Dropped Local Copy: contentUrl=" + contentUrl);
+		}
+	}
+
+	/**
+	 * Maps a content url onto the local file, using the FileContentStore layout.
+	 *
+	 * @param contentUrl the content url
+	 * @return the file
+	 */
+	private File toFile(final String contentUrl) {
+		return new File(rootDirectory, contentUrl.substring(URL_PREFIX.length()));
+	}
+
+	/**
+	 * Re-indexes the content left in the local tier by a previous run. Clean
+	 * copies and moved files waiting for their delete are indexed as dirty,
+	 * the mover recognizes them by their object in S3 and drops them.
+	 *
+	 * @param directory the directory
+	 */
+	private void rebuildIndex(final File directory) {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (final File file : files) {
+			if (file.isDirectory()) {
+				rebuildIndex(file);
+			} else if (file.getName().endsWith(PART_SUFFIX)) {
+				// Interrupted fetch
+				file.delete();
+			} else {
+				final String relativePath = file.getAbsolutePath()
+						.substring(rootDirectory.getAbsolutePath().length() + 1)
+						.replace(File.separatorChar, '/');
+				index.register(URL_PREFIX + relativePath, file.lastModified());
+			}
+		}
+	}
+
+	/**
+	 * Stops the mover. Content still held locally is picked up again on restart.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		uploadPool.shutdown();
+	}
+
+	/**
+	 * Creates a thread factory for daemon threads.
+	 *
+	 * @param name the thread name prefix
+	 * @return the thread factory
+	 */
+	static ThreadFactory newThreadFactory(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
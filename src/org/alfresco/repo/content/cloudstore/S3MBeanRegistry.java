@@ -0,0 +1,99 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The Class S3MBeanRegistry.<br/>
+ * Registers the management beans of the S3 content store with the platform
+ * MBean server, under <code>Alfresco:Name=S3ContentStore,Type=...</code>.
+ * Registration problems are logged and otherwise ignored, monitoring must not
+ * prevent the store from starting.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public final class S3MBeanRegistry {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3MBeanRegistry.class);
+
+	/**
+	 * Instantiates a new registry.
+	 */
+	private S3MBeanRegistry() {
+		// Static helper
+	}
+
+	/**
+	 * Registers a management bean, replacing one of the same type.
+	 *
+	 * @param type the type
+	 * @param mbean the management bean
+	 */
+	public static void register(final String type, final Object mbean) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = nameOf(type);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(mbean, name);
+		} catch (Exception excp) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3MBeanRegistry Failed to register " + type + ": " + excp);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters a management bean.
+	 *
+	 * @param type the type
+	 */
+	public static void unregister(final String type) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = nameOf(type);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (Exception excp) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("S3MBeanRegistry Failed to unregister " + type + ": " + excp);
+			}
+		}
+	}
+
+	/**
+	 * Builds the object name of a type.
+	 *
+	 * @param type the type
+	 * @return the object name
+	 * @throws Exception if the name is invalid
+	 */
+	private static ObjectName nameOf(final String type) throws Exception {
+		return new ObjectName("Alfresco:Name=S3ContentStore,Type=" + ObjectName.quote(type));
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.io.SegmentedRepeatableFileInputStream;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+
+/**
+ * The Class S3MultipartUploader.<br/>
+ * Uploads files to S3, as a single PUT below the multipart threshold and as a
+ * multipart upload above it. The parts of all the uploads share a bounded
+ * pool, and each part is sent at the pace of an optional rate limiter. Every
+ * object gets the sha256 metadata so it can be compared later without a
+ * download. With an {@link S3UploadTuner} the part size and the number of
+ * concurrent parts are chosen per upload, otherwise they are fixed.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3MultipartUploader {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3MultipartUploader.class);
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The part size. */
+	private final long partSize;
+
+	/** The multipart threshold. */
+	private final long multipartThreshold;
+
+	/** The rate limiter. */
+	private final S3RateLimiter rateLimiter;
+
+	/** The part pool. */
+	private final ExecutorService partPool;
+
+	/** The upload tuner, null for fixed parameters. */
+	private final S3UploadTuner tuner;
+
+	/**
+	 * Instantiates a new multipart uploader.
+	 *
+	 * @param s3Service the s3 service
+	 * @param partSize the part size, at least 5 MB
+	 * @param multipartThreshold the size from which multipart is used
+	 * @param partThreads the number of concurrent part uploads
+	 * @param rateLimiter the rate limiter
+	 */
+	public S3MultipartUploader(final S3Service s3Service, final long partSize, final long multipartThreshold,
+			final int partThreads, final S3RateLimiter rateLimiter) {
+		this(s3Service, partSize, multipartThreshold, partThreads, rateLimiter, null);
+	}
+
+	/**
+	 * Instantiates a new multipart uploader.
+	 *
+	 * @param s3Service the s3 service
+	 * @param partSize the part size, at least 5 MB, when there is no tuner
+	 * @param multipartThreshold the size from which multipart is used, when there is no tuner
+	 * @param partThreads the max number of concurrent part uploads, for all the uploads
+	 * @param rateLimiter the rate limiter
+	 * @param tuner the upload tuner, or null for fixed parameters
+	 */
+	public S3MultipartUploader(final S3Service s3Service, final long partSize, final long multipartThreshold,
+			final int partThreads, final S3RateLimiter rateLimiter, final S3UploadTuner tuner) {
+		this.tuner = tuner;
+		this.s3Service = s3Service;
+		this.partSize = Math.max(5L * 1024L * 1024L, partSize);
+		this.multipartThreshold = Math.max(this.partSize, multipartThreshold);
+		this.rateLimiter = rateLimiter;
+		this.partPool = new S3TaskExecutor("S3UploadPart", partThreads);
+	}
+
+	/**
+	 * Uploads a file.
+	 *
+	 * @param bucket the bucket
+	 * @param key the key
+	 * @param file the file
+	 * @param digests the digests of the file
+	 * @throws Exception if the upload failed
+	 */
+	public void upload(final S3Bucket bucket, final String key, final File file, final S3FileDigests digests)
+			throws Exception {
+		upload(bucket, key, file, digests, S3ContentHeaders.DEFAULT);
+	}
+
+	/**
+	 * Uploads a file with the headers it is served with.
+	 *
+	 * @param bucket the bucket
+	 * @param key the key
+	 * @param file the file
+	 * @param digests the digests of the file
+	 * @param headers the headers of the object
+	 * @throws Exception if the upload failed
+	 */
+	public void upload(final S3Bucket bucket, final String key, final File file, final S3FileDigests digests,
+			final S3ContentHeaders headers) throws Exception {
+		final long length = file.length();
+		if (tuner == null) {
+			if (length < multipartThreshold) {
+				uploadSingle(bucket, key, file, digests, headers);
+			} else {
+				uploadMultipart(bucket, key, file, digests, headers, partSize, Integer.MAX_VALUE);
+			}
+			return;
+		}
+		final S3UploadTuner.Plan plan = tuner.plan(length);
+		final long start = System.currentTimeMillis();
+		if (!plan.isMultipart()) {
+			uploadSingle(bucket, key, file, digests, headers);
+			tuner.recordSingleUpload();
+			return;
+		}
+		uploadMultipart(bucket, key, file, digests, headers, plan.getPartSize(), plan.getParallelism());
+		tuner.recordUpload(length, System.currentTimeMillis() - start, plan.getParallelism());
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("S3MultipartUploader Tuned upload: key=" + key + " size=" + length + " partSize="
+					+ plan.getPartSize() + " parallelism=" + plan.getParallelism());
+		}
+	}
+
+	/**
+	 * Uploads a file with a single PUT.
+	 *
+	 * @param bucket the bucket
+	 * @param key the key
+	 * @param file the file
+	 * @param digests the digests
+	 * @param headers the headers
+	 * @throws Exception if the upload failed
+	 */
+	private void uploadSingle(final S3Bucket bucket, final String key, final File file,
+			final S3FileDigests digests, final S3ContentHeaders headers) throws Exception {
+		rateLimiter.acquire(file.length());
+		final S3Object object = new S3Object(key);
+		object.setDataInputFile(file);
+		object.setContentLength(file.length());
+		headers.applyTo(object);
+		object.setMd5Hash(digests.getMd5());
+		object.addMetadata(CloudStoreConstants.META_SHA256, digests.getSha256Hex());
+		try {
+			final long start = System.currentTimeMillis();
+			try {
+				// jets3t checks the ETag against the md5 and throws on a mismatch
+				s3Service.putObject(bucket, object);
+			} catch (Exception excp) {
+				if (tuner != null) {
+					tuner.recordFailure(excp);
+				}
+				throw excp;
+			}
+			if (tuner != null) {
+				tuner.recordRequest(file.length(), System.currentTimeMillis() - start);
+			}
+		} finally {
+			object.closeDataInputStream();
+		}
+	}
+
+	/**
+	 * Uploads a file as a multipart upload, the parts are sent concurrently.
+	 *
+	 * @param bucket the bucket
+	 * @param key the key
+	 * @param file the file
+	 * @param digests the digests
+	 * @param headers the headers
+	 * @param partSize the part size
+	 * @param parallelism the max number of parts of this upload sent at once
+	 * @throws Exception if the upload failed, the upload is aborted
+	 */
+	private void uploadMultipart(final S3Bucket bucket, final String key, final File file,
+			final S3FileDigests digests, final S3ContentHeaders headers, final long partSize,
+			final int parallelism) throws Exception {
+		final S3Object template = new S3Object(key);
+		headers.applyTo(template);
+		template.addMetadata(CloudStoreConstants.META_SHA256, digests.getSha256Hex());
+		final MultipartUpload upload = s3Service.multipartStartUpload(bucket.getName(), template);
+		final Semaphore inFlight = new Semaphore(parallelism);
+		final AtomicBoolean failed = new AtomicBoolean();
+		try {
+			final List<Future<MultipartPart>> futures = new ArrayList<Future<MultipartPart>>();
+			final long length = file.length();
+			int partNumber = 1;
+			for (long offset = 0; offset < length; offset += partSize, partNumber++) {
+				final long partOffset = offset;
+				final long partLength = Math.min(partSize, length - offset);
+				final Integer number = Integer.valueOf(partNumber);
+				inFlight.acquire();
+				if (failed.get()) {
+					// A part failed, the upload is aborted below
+					inFlight.release();
+					break;
+				}
+				futures.add(partPool.submit(new Callable<MultipartPart>() {
+					public MultipartPart call() throws Exception {
+						try {
+							return uploadPart(upload, key, number, file, partOffset, partLength);
+						} catch (Exception excp) {
+							failed.set(true);
+							throw excp;
+						} finally {
+							inFlight.release();
+						}
+					}
+				}));
+			}
+			final List<MultipartPart> parts = new ArrayList<MultipartPart>();
+			for (final Future<MultipartPart> future : futures) {
+				try {
+					parts.add(future.get());
+				} catch (ExecutionException execExcp) {
+					for (final Future<MultipartPart> pending : futures) {
+						pending.cancel(false);
+					}
+					throw execExcp.getCause() instanceof Exception ? (Exception) execExcp.getCause() : execExcp;
+				}
+			}
+			Collections.sort(parts, new Comparator<MultipartPart>() {
+				public int compare(final MultipartPart first, final MultipartPart second) {
+					return first.getPartNumber().compareTo(second.getPartNumber());
+				}
+			});
+			s3Service.multipartCompleteUpload(upload, parts);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("S3MultipartUploader Completed: key=" + key + " parts=" + parts.size());
+			}
+		} catch (Exception excp) {
+			try {
+				s3Service.multipartAbortUpload(upload);
+			} catch (Exception abortExcp) {
+				if (LOG.isWarnEnabled()) {
+					LOG.warn("S3MultipartUploader Failed to abort upload of " + key + ": " + abortExcp);
+				}
+			}
+			throw excp;
+		}
+	}
+
+	/**
+	 * Uploads one part.
+	 *
+	 * @param upload the upload
+	 * @param key the key
+	 * @param number the part number
+	 * @param file the file
+	 * @param offset the offset of the part
+	 * @param length the length of the part
+	 * @return the part
+	 * @throws Exception if the part upload failed
+	 */
+	private MultipartPart uploadPart(final MultipartUpload upload, final String key, final Integer number,
+			final File file, final long offset, final long length) throws Exception {
+		rateLimiter.acquire(length);
+		final S3Object part = new S3Object(key);
+		part.setDataInputStream(new SegmentedRepeatableFileInputStream(file, offset, length));
+		part.setContentLength(length);
+		final long start = System.currentTimeMillis();
+		try {
+			final MultipartPart uploaded = s3Service.multipartUploadPart(upload, number, part);
+			if (tuner != null) {
+				tuner.recordRequest(length, System.currentTimeMillis() - start);
+			}
+			return uploaded;
+		} catch (Exception excp) {
+			if (tuner != null) {
+				tuner.recordFailure(excp);
+			}
+			throw excp;
+		} finally {
+			part.closeDataInputStream();
+		}
+	}
+
+	/**
+	 * Gets the upload tuner.
+	 *
+	 * @return the tuner, or null for fixed parameters
+	 */
+	public S3UploadTuner getTuner() {
+		return tuner;
+	}
+
+	/**
+	 * Stops the part pool.
+	 */
+	public void shutdown() {
+		partPool.shutdown();
+	}
+}
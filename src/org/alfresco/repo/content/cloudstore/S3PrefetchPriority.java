@@ -0,0 +1,36 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+/**
+ * The Enum S3PrefetchPriority.<br/>
+ * Priority of a prefetch request, in descending order.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public enum S3PrefetchPriority {
+
+	/** Content the user is about to read, e.g. the visible page of a folder. */
+	HIGH,
+
+	/** Content which is likely to be read soon. */
+	NORMAL,
+
+	/** Speculative warm-up, the first to be dropped under load. */
+	LOW
+}
@@ -0,0 +1,104 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+/**
+ * The Class S3RateLimiter.<br/>
+ * Token bucket limiting the number of bytes per second sent to S3. The bucket
+ * holds at most one second worth of tokens, so a paused transfer can only
+ * burst for one second. A rate of 0 or less disables the limit.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3RateLimiter {
+
+	/** The bytes per second. */
+	private volatile long bytesPerSecond;
+
+	/** The available tokens. */
+	private double tokens;
+
+	/** The time of the last refill, in nanos. */
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * Instantiates a new rate limiter.
+	 *
+	 * @param bytesPerSecond the bytes per second, 0 for unlimited
+	 */
+	public S3RateLimiter(final long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.tokens = Math.max(0L, bytesPerSecond);
+	}
+
+	/**
+	 * Blocks until the given number of bytes may be sent. Requests larger than
+	 * the bucket are let through once the bucket is full, and leave the bucket
+	 * in debt.
+	 *
+	 * @param bytes the bytes
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquire(final long bytes) throws InterruptedException {
+		while (true) {
+			final long waitNanos;
+			synchronized (this) {
+				final long rate = bytesPerSecond;
+				if (rate <= 0) {
+					return;
+				}
+				refill(rate);
+				if (tokens >= Math.min(bytes, rate)) {
+					tokens -= bytes;
+					return;
+				}
+				waitNanos = (long) ((Math.min(bytes, rate) - tokens) * 1000000000d / rate);
+			}
+			Thread.sleep(Math.max(1L, waitNanos / 1000000L));
+		}
+	}
+
+	/**
+	 * Adds the tokens accrued since the last refill.
+	 *
+	 * @param rate the rate
+	 */
+	private void refill(final long rate) {
+		final long now = System.nanoTime();
+		tokens = Math.min(rate, tokens + ((now - lastRefill) * rate / 1000000000d));
+		lastRefill = now;
+	}
+
+	/**
+	 * Gets the bytes per second.
+	 *
+	 * @return the bytes per second
+	 */
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Changes the rate, e.g. to throttle a running migration.
+	 *
+	 * @param bytesPerSecond the bytes per second, 0 for unlimited
+	 */
+	public void setBytesPerSecond(final long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+/**
+ * The Class S3ReadHedger.<br/>
+ * Sends hedged GET requests. When the first byte of a GET has not arrived
+ * after the configured percentile of the recent first byte latencies, a
+ * duplicate request is sent, to the next replica if there is one, and the
+ * first request to deliver a byte wins. The losing request closes its own
+ * stream, as do all the requests of a read abandoned on interrupt. The
+ * share of hedged requests is bounded by a budget so a slow S3 does not get
+ * twice the load.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ReadHedger {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3ReadHedger.class);
+
+	/** The prefix of the first byte latency keys in the tracker. */
+	private static final String FIRST_BYTE_KEY = "firstbyte:";
+
+	/** The min number of samples before the percentile is trusted. */
+	private static final int MIN_SAMPLES = 20;
+
+	/** Hedges allowed on top of the budget, so a cold start can hedge. */
+	private static final long BUDGET_BURST = 10L;
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The latency tracker. */
+	private final S3LatencyTracker latencyTracker;
+
+	/** The percentile used as hedging delay. */
+	private final double percentile;
+
+	/** The min delay in millis. */
+	private final long minDelay;
+
+	/** The max delay in millis, used until enough samples are known. */
+	private final long maxDelay;
+
+	/** The hedging budget, in percent of the requests. */
+	private final double budgetPercent;
+
+	/** The executor. */
+	private final S3TaskExecutor executor;
+
+	/** The request count. */
+	private final AtomicLong requests = new AtomicLong();
+
+	/** The hedge count. */
+	private final AtomicLong hedges = new AtomicLong();
+
+	/** The count of hedges which won. */
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	/**
+	 * Instantiates a new read hedger.
+	 *
+	 * @param s3Service the s3 service
+	 * @param latencyTracker the latency tracker
+	 * @param percentile the percentile used as hedging delay
+	 * @param minDelay the min delay in millis
+	 * @param maxDelay the max delay in millis
+	 * @param budgetPercent the hedging budget in percent of the requests
+	 * @param maxThreads the max number of concurrent requests
+	 */
+	public S3ReadHedger(final S3Service s3Service, final S3LatencyTracker latencyTracker,
+			final double percentile, final long minDelay, final long maxDelay,
+			final double budgetPercent, final int maxThreads) {
+		this.s3Service = s3Service;
+		this.latencyTracker = latencyTracker;
+		this.percentile = percentile;
+		this.minDelay = minDelay;
+		this.maxDelay = Math.max(minDelay, maxDelay);
+		this.budgetPercent = budgetPercent;
+		this.executor = new S3TaskExecutor("S3HedgedRead", Math.max(2, maxThreads), true);
+	}
+
+	/**
+	 * Gets an object, hedging the request if the first byte is late. The
+	 * candidates are tried in order; a hedge goes to the next candidate, or
+	 * to the same bucket when there is only one.
+	 *
+	 * @param candidates the candidate buckets, in order of preference
+	 * @param key the key
+	 * @return the object, its stream positioned on the first byte
+	 * @throws S3ServiceException if no candidate could serve the object
+	 * @throws InterruptedException if the caller was interrupted
+	 */
+	public S3Object getObject(final List<S3Bucket> candidates, final String key)
+			throws S3ServiceException, InterruptedException {
+		requests.incrementAndGet();
+		final AtomicBoolean claimed = new AtomicBoolean();
+		final ExecutorCompletionService<S3Object> completion = new ExecutorCompletionService<S3Object>(executor);
+		final Future<S3Object> first = trySubmit(completion, candidates.get(0), key, claimed);
+		if (first == null) {
+			// Saturated, read on the caller thread without hedging.
+			return getObjectDirect(candidates, key);
+		}
+		Exception lastExcp = null;
+		try {
+			int next = 1;
+			int outstanding = 1;
+			Future<S3Object> hedge = null;
+			Future<S3Object> done = completion.poll(getDelay(candidates.get(0).getName()), TimeUnit.MILLISECONDS);
+			if (done == null && allowHedge()) {
+				final S3Bucket hedgeBucket = candidates.get(Math.min(next, candidates.size() - 1));
+				hedge = trySubmit(completion, hedgeBucket, key, claimed);
+				if (hedge != null) {
+					next = Math.min(next + 1, candidates.size());
+					hedges.incrementAndGet();
+					outstanding++;
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("S3ReadHedger Hedging GET: key=" + key + " bucket=" + hedgeBucket.getName());
+					}
+				}
+			}
+			while (outstanding > 0) {
+				if (done == null) {
+					done = completion.take();
+				}
+				outstanding--;
+				try {
+					final S3Object object = done.get();
+					if (object != null) {
+						if (done == hedge) {
+							hedgeWins.incrementAndGet();
+						}
+						return object;
+					}
+				} catch (ExecutionException execExcp) {
+					lastExcp = execExcp.getCause() instanceof Exception ? (Exception) execExcp.getCause() : execExcp;
+					// Fail over to the next candidate without spending the budget.
+					if (outstanding == 0 && next < candidates.size()
+							&& trySubmit(completion, candidates.get(next++), key, claimed) != null) {
+						outstanding++;
+					}
+				}
+				done = null;
+			}
+		} catch (InterruptedException intrExcp) {
+			abandon(completion, claimed, key);
+			throw intrExcp;
+		}
+		if (lastExcp instanceof S3ServiceException) {
+			throw (S3ServiceException) lastExcp;
+		}
+		throw new S3ServiceException("Failed to get object " + key, lastExcp);
+	}
+
+	/**
+	 * Gives up a read on interrupt. Claiming the flag makes the running
+	 * attempts close their own streams; if an attempt won already, its object
+	 * is waited for and closed, so the pooled connection is released.
+	 *
+	 * @param completion the completion service of the attempts
+	 * @param claimed the flag claimed by the winning attempt
+	 * @param key the key
+	 */
+	private static void abandon(final ExecutorCompletionService<S3Object> completion,
+			final AtomicBoolean claimed, final String key) {
+		if (claimed.compareAndSet(false, true)) {
+			return;
+		}
+		// The winner has its first byte and is returning, the wait is short
+		while (true) {
+			try {
+				final S3Object object = completion.take().get();
+				if (object != null) {
+					object.closeDataInputStream();
+					return;
+				}
+			} catch (InterruptedException intrExcp) {
+				// Keep waiting, the caller rethrows the interrupt
+			} catch (ExecutionException execExcp) {
+				// A losing attempt failed
+			} catch (IOException ioex) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("S3ReadHedger Failed to close abandoned GET: key=" + key + " " + ioex);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets an object on the caller thread, failing over across the candidates.
+	 *
+	 * @param candidates the candidates
+	 * @param key the key
+	 * @return the object
+	 * @throws S3ServiceException if no candidate could serve the object
+	 */
+	private S3Object getObjectDirect(final List<S3Bucket> candidates, final String key)
+			throws S3ServiceException {
+		Exception lastExcp = null;
+		for (final S3Bucket candidate : candidates) {
+			try {
+				return attempt(candidate, key, new AtomicBoolean());
+			} catch (Exception excp) {
+				lastExcp = excp;
+			}
+		}
+		if (lastExcp instanceof S3ServiceException) {
+			throw (S3ServiceException) lastExcp;
+		}
+		throw new S3ServiceException("Failed to get object " + key, lastExcp);
+	}
+
+	/**
+	 * Submits an attempt if the executor has capacity.
+	 *
+	 * @param completion the completion service
+	 * @param bucket the bucket
+	 * @param key the key
+	 * @param claimed the flag claimed by the winning attempt
+	 * @return the future of the attempt, or null if the executor is saturated
+	 */
+	private Future<S3Object> trySubmit(final ExecutorCompletionService<S3Object> completion,
+			final S3Bucket bucket, final String key, final AtomicBoolean claimed) {
+		try {
+			return completion.submit(new Callable<S3Object>() {
+				public S3Object call() throws Exception {
+					return attempt(bucket, key, claimed);
+				}
+			});
+		} catch (RejectedExecutionException rejExcp) {
+			return null;
+		}
+	}
+
+	/**
+	 * Sends one GET and waits for its first byte.
+	 *
+	 * @param bucket the bucket
+	 * @param key the key
+	 * @param claimed the flag claimed by the winning attempt, or by the
+	 *        caller when the read is abandoned
+	 * @return the object, or null if another attempt won or the read was abandoned
+	 * @throws Exception if the request failed
+	 */
+	private S3Object attempt(final S3Bucket bucket, final String key, final AtomicBoolean claimed)
+			throws Exception {
+		final long start = System.currentTimeMillis();
+		final S3Object object;
+		try {
+			object = s3Service.getObject(bucket, key);
+		} catch (S3ServiceException s3ServExcp) {
+			latencyTracker.recordFailure(bucket.getName());
+			throw s3ServExcp;
+		}
+		final InputStream inStream = new BufferedInputStream(object.getDataInputStream());
+		inStream.mark(1);
+		inStream.read();
+		inStream.reset();
+		final long firstByte = System.currentTimeMillis() - start;
+		latencyTracker.record(FIRST_BYTE_KEY + bucket.getName(), firstByte);
+		latencyTracker.record(bucket.getName(), firstByte);
+		if (!claimed.compareAndSet(false, true)) {
+			// Lost the race or abandoned, release the connection.
+			inStream.close();
+			return null;
+		}
+		object.setDataInputStream(inStream);
+		return object;
+	}
+
+	/**
+	 * Gets the hedging delay of a bucket.
+	 *
+	 * @param bucketName the bucket name
+	 * @return the delay in millis
+	 */
+	private long getDelay(final String bucketName) {
+		final long observed = latencyTracker.getPercentile(FIRST_BYTE_KEY + bucketName, percentile, MIN_SAMPLES);
+		if (observed < 0) {
+			return maxDelay;
+		}
+		return Math.max(minDelay, Math.min(maxDelay, observed));
+	}
+
+	/**
+	 * Checks the hedging budget.
+	 *
+	 * @return true, if a hedge is allowed
+	 */
+	private boolean allowHedge() {
+		return hedges.get() < (long) (requests.get() * budgetPercent / 100d) + BUDGET_BURST;
+	}
+
+	/**
+	 * Gets the request count.
+	 *
+	 * @return the request count
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Gets the hedge count.
+	 *
+	 * @return the hedge count
+	 */
+	public long getHedgeCount() {
+		return hedges.get();
+	}
+
+	/**
+	 * Gets the count of hedges which delivered first.
+	 *
+	 * @return the hedge win count
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWins.get();
+	}
+
+	/**
+	 * Stops the hedger.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
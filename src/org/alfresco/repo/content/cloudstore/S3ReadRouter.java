@@ -0,0 +1,227 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.model.S3Bucket;
+
+/**
+ * The Class S3ReadRouter.<br/>
+ * Decides which bucket a read is sent to. The primary bucket and its
+ * replicas are ranked by their measured latency, and a small share of the
+ * reads is sent to the runner-up so its measurement stays current.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ReadRouter {
+
+	/** The share of the reads used to probe the runner-up bucket. */
+	private static final double PROBE_RATIO = 0.02d;
+
+	/** The s3Service. */
+	private final S3Service s3Service;
+
+	/** The primary bucket. */
+	private final S3Bucket primaryBucket;
+
+	/** The primary bucket followed by the replicas. */
+	private final List<S3Bucket> buckets;
+
+	/** The latency tracker. */
+	private final S3LatencyTracker latencyTracker;
+
+	/** The read hedger, null unless hedging is enabled. */
+	private S3ReadHedger readHedger;
+
+	/** The cache of object headers and trailers, null if disabled. */
+	private S3FragmentCache fragmentCache;
+
+	/** The restorer of archived objects, null if disabled. */
+	private S3ArchiveRestorer archiveRestorer;
+
+	/** The access statistics, null unless the lifecycle is enabled. */
+	private S3AccessStatistics accessStatistics;
+
+	/** The random used for probing. */
+	private final Random random = new Random();
+
+	/**
+	 * Instantiates a new router for a single bucket.
+	 *
+	 * @param s3Service the s3 service
+	 * @param bucket the bucket
+	 */
+	public S3ReadRouter(final S3Service s3Service, final S3Bucket bucket) {
+		this(s3Service, bucket, Collections.<S3Bucket> emptyList(), new S3LatencyTracker());
+	}
+
+	/**
+	 * Instantiates a new router.
+	 *
+	 * @param s3Service the s3 service
+	 * @param primaryBucket the primary bucket
+	 * @param replicaBuckets the replica buckets
+	 * @param latencyTracker the latency tracker
+	 */
+	public S3ReadRouter(final S3Service s3Service, final S3Bucket primaryBucket,
+			final List<S3Bucket> replicaBuckets, final S3LatencyTracker latencyTracker) {
+		this.s3Service = s3Service;
+		this.primaryBucket = primaryBucket;
+		this.latencyTracker = latencyTracker;
+		final List<S3Bucket> all = new ArrayList<S3Bucket>();
+		all.add(primaryBucket);
+		all.addAll(replicaBuckets);
+		this.buckets = Collections.unmodifiableList(all);
+	}
+
+	/**
+	 * Gets the buckets in the order the reads should try them.
+	 *
+	 * @return the ordered buckets
+	 */
+	public List<S3Bucket> getOrderedBuckets() {
+		if (buckets.size() == 1) {
+			return buckets;
+		}
+		final List<S3Bucket> ordered = new ArrayList<S3Bucket>(buckets);
+		Collections.sort(ordered, new Comparator<S3Bucket>() {
+			public int compare(final S3Bucket first, final S3Bucket second) {
+				return Double.compare(latencyTracker.getScore(first.getName()),
+						latencyTracker.getScore(second.getName()));
+			}
+		});
+		if (random.nextDouble() < PROBE_RATIO) {
+			Collections.swap(ordered, 0, 1);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Checks if the router has replicas.
+	 *
+	 * @return true, if replicated
+	 */
+	public boolean isReplicated() {
+		return buckets.size() > 1;
+	}
+
+	/**
+	 * Gets the s3 service.
+	 *
+	 * @return the s3 service
+	 */
+	public S3Service getS3Service() {
+		return s3Service;
+	}
+
+	/**
+	 * Gets the primary bucket.
+	 *
+	 * @return the primary bucket
+	 */
+	public S3Bucket getPrimaryBucket() {
+		return primaryBucket;
+	}
+
+	/**
+	 * Gets the read hedger.
+	 *
+	 * @return the read hedger, or null if hedging is disabled
+	 */
+	public S3ReadHedger getReadHedger() {
+		return readHedger;
+	}
+
+	/**
+	 * Sets the read hedger.
+	 *
+	 * @param readHedger the new read hedger
+	 */
+	public void setReadHedger(final S3ReadHedger readHedger) {
+		this.readHedger = readHedger;
+	}
+
+	/**
+	 * Gets the fragment cache.
+	 *
+	 * @return the fragment cache, or null if disabled
+	 */
+	public S3FragmentCache getFragmentCache() {
+		return fragmentCache;
+	}
+
+	/**
+	 * Sets the fragment cache.
+	 *
+	 * @param fragmentCache the new fragment cache
+	 */
+	public void setFragmentCache(final S3FragmentCache fragmentCache) {
+		this.fragmentCache = fragmentCache;
+	}
+
+	/**
+	 * Gets the restorer of archived objects.
+	 *
+	 * @return the archive restorer, or null if disabled
+	 */
+	public S3ArchiveRestorer getArchiveRestorer() {
+		return archiveRestorer;
+	}
+
+	/**
+	 * Sets the restorer of archived objects.
+	 *
+	 * @param archiveRestorer the new archive restorer
+	 */
+	public void setArchiveRestorer(final S3ArchiveRestorer archiveRestorer) {
+		this.archiveRestorer = archiveRestorer;
+	}
+
+	/**
+	 * Gets the access statistics.
+	 *
+	 * @return the access statistics, or null if not recorded
+	 */
+	public S3AccessStatistics getAccessStatistics() {
+		return accessStatistics;
+	}
+
+	/**
+	 * Sets the access statistics updated by the reads.
+	 *
+	 * @param accessStatistics the new access statistics
+	 */
+	public void setAccessStatistics(final S3AccessStatistics accessStatistics) {
+		this.accessStatistics = accessStatistics;
+	}
+
+	/**
+	 * Gets the latency tracker.
+	 *
+	 * @return the latency tracker
+	 */
+	public S3LatencyTracker getLatencyTracker() {
+		return latencyTracker;
+	}
+}
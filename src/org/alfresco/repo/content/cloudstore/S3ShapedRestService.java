@@ -0,0 +1,371 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.ProviderCredentials;
+import org.jets3t.service.utils.RestUtils;
+
+/**
+ * The Class S3ShapedRestService.<br/>
+ * REST S3 service whose requests go through the {@link S3TrafficShaper}:
+ * each request waits for a slot of its traffic class, request bodies wait
+ * for the bandwidth of the class and response bodies are paced at it. The
+ * slot of an object GET is held until its body is read to the end or
+ * closed, as the body holds the pooled connection until then. The
+ * traffic class is the one of the calling thread, or a fixed class for
+ * services dedicated to background work. The service also sends the restore
+ * requests of archived objects and the part copies, which jets3t does not
+ * support.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3ShapedRestService extends RestS3Service {
+
+	/** The sub-resource of the restore requests. */
+	private static final String RESTORE = "restore";
+
+	/** The response header overrides, signed like sub-resources. */
+	private static final String[] RESPONSE_OVERRIDES = {"response-content-type", "response-content-language",
+		"response-expires", "response-cache-control", "response-content-disposition", "response-content-encoding"};
+
+	/** The max size of a single copy. */
+	public static final long MAX_COPY_SIZE = 5L * 1024L * 1024L * 1024L;
+
+	/** The size of the parts of a multipart copy. */
+	private static final long COPY_PART_SIZE = 512L * 1024L * 1024L;
+
+	/** The ETag of a successful part copy. */
+	private static final Pattern COPY_PART_ETAG = Pattern.compile("<CopyPartResult[^>]*>.*<ETag>([^<]+)</ETag>",
+			Pattern.DOTALL);
+
+	/**
+	 * Set on the thread of an object GET, true once its request holds a
+	 * shaper slot which is released by the body stream.
+	 */
+	private static final ThreadLocal<Boolean> OBJECT_GET = new ThreadLocal<Boolean>();
+
+	/** The traffic shaper. */
+	private final S3TrafficShaper shaper = S3TrafficShaper.getInstance();
+
+	/** The fixed traffic class, null to use the class of the calling thread. */
+	private final S3TrafficClass fixedClass;
+
+	/**
+	 * Instantiates a new shaped service using the class of the calling thread.
+	 *
+	 * @param credentials the credentials
+	 * @throws S3ServiceException the s3 service exception
+	 */
+	public S3ShapedRestService(final ProviderCredentials credentials) throws S3ServiceException {
+		this(credentials, null);
+	}
+
+	/**
+	 * Instantiates a new shaped service.
+	 *
+	 * @param credentials the credentials
+	 * @param fixedClass the traffic class of all the requests, or null to use
+	 *        the class of the calling thread
+	 * @throws S3ServiceException the s3 service exception
+	 */
+	public S3ShapedRestService(final ProviderCredentials credentials, final S3TrafficClass fixedClass)
+			throws S3ServiceException {
+		super(credentials);
+		this.fixedClass = fixedClass;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jets3t.service.impl.rest.httpclient.RestStorageService#performRequest(org.apache.commons.httpclient.HttpMethodBase, int[])
+	 */
+	@Override
+	protected void performRequest(final HttpMethodBase httpMethod, final int[] expectedResponseCodes)
+			throws ServiceException {
+		final S3TrafficClass trafficClass = getTrafficClass();
+		try {
+			if (httpMethod instanceof EntityEnclosingMethod) {
+				final RequestEntity entity = ((EntityEnclosingMethod) httpMethod).getRequestEntity();
+				if (entity != null) {
+					shaper.acquireBandwidth(trafficClass, entity.getContentLength());
+				}
+			}
+			shaper.acquire(trafficClass);
+		} catch (InterruptedException intrExcp) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Interrupted while waiting for an S3 connection", intrExcp);
+		}
+		boolean held = false;
+		try {
+			super.performRequest(httpMethod, expectedResponseCodes);
+			if (OBJECT_GET.get() != null) {
+				// The body of an object GET is still to be read on this
+				// connection, the slot is released when its stream ends
+				OBJECT_GET.set(Boolean.TRUE);
+				held = true;
+			}
+		} finally {
+			if (!held) {
+				shaper.release(trafficClass);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jets3t.service.impl.rest.httpclient.RestStorageService#getObjectImpl(java.lang.String, java.lang.String, java.util.Calendar, java.util.Calendar, java.lang.String[], java.lang.String[], java.lang.Long, java.lang.Long, java.lang.String)
+	 */
+	@Override
+	protected StorageObject getObjectImpl(final String bucketName, final String objectKey,
+			final Calendar ifModifiedSince, final Calendar ifUnmodifiedSince, final String[] ifMatchTags,
+			final String[] ifNoneMatchTags, final Long byteRangeStart, final Long byteRangeEnd,
+			final String versionId) throws ServiceException {
+		final S3TrafficClass trafficClass = getTrafficClass();
+		// Marks the request as an object GET, set to true by performRequest
+		// once it keeps the slot for the body
+		OBJECT_GET.set(Boolean.FALSE);
+		boolean handedOver = false;
+		try {
+			final StorageObject object = super.getObjectImpl(bucketName, objectKey, ifModifiedSince,
+					ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags, byteRangeStart, byteRangeEnd, versionId);
+			if (OBJECT_GET.get().booleanValue() && object.getDataInputStream() != null) {
+				object.setDataInputStream(releaseOnEnd(shaper.shape(object.getDataInputStream(), trafficClass),
+						trafficClass));
+				handedOver = true;
+			}
+			return object;
+		} finally {
+			if (!handedOver && OBJECT_GET.get().booleanValue()) {
+				shaper.release(trafficClass);
+			}
+			OBJECT_GET.remove();
+		}
+	}
+
+	/**
+	 * Wraps the body of an object GET so that its shaper slot is released
+	 * once, when the body is read to the end, closed or aborted.
+	 *
+	 * @param inStream the body
+	 * @param trafficClass the traffic class of the slot
+	 * @return the wrapped body
+	 */
+	private InputStream releaseOnEnd(final InputStream inStream, final S3TrafficClass trafficClass) {
+		final AtomicBoolean released = new AtomicBoolean();
+		return new FilterInputStream(inStream) {
+			@Override
+			public int read() throws IOException {
+				final int value = super.read();
+				if (value < 0) {
+					release();
+				}
+				return value;
+			}
+
+			@Override
+			public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+				final int count = super.read(buffer, offset, length);
+				if (count < 0) {
+					release();
+				}
+				return count;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					release();
+				}
+			}
+
+			private void release() {
+				if (released.compareAndSet(false, true)) {
+					shaper.release(trafficClass);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Requests a temporary copy of an archived object, e.g. in the GLACIER
+	 * storage class, to be made readable.
+	 *
+	 * @param bucketName the bucket name
+	 * @param objectKey the object key
+	 * @param days the number of days the restored copy is kept
+	 * @return true if the restore was started, false if the object is
+	 *         already restored
+	 * @throws ServiceException if the request failed, a restore already
+	 *         in progress answers 409
+	 */
+	public boolean restoreObject(final String bucketName, final String objectKey, final int days)
+			throws ServiceException {
+		final Map<String, String> requestParameters = Collections.singletonMap(RESTORE, null);
+		final PostMethod httpMethod = (PostMethod) setupConnection(HTTP_METHOD.POST, bucketName, objectKey,
+				requestParameters);
+		try {
+			httpMethod.setRequestEntity(new StringRequestEntity("<RestoreRequest><Days>" + Math.max(1, days)
+					+ "</Days></RestoreRequest>", "application/xml", "UTF-8"));
+			performRequest(httpMethod, new int[] {200, 202});
+			return httpMethod.getStatusCode() == 202;
+		} catch (UnsupportedEncodingException encExcp) {
+			throw new ServiceException("UTF-8 is not supported", encExcp);
+		} finally {
+			httpMethod.releaseConnection();
+		}
+	}
+
+	/**
+	 * Copies an object over the 5 GB limit of a single copy, as a multipart
+	 * upload of part copies. The upload is aborted if a part fails, so its
+	 * parts are not billed.
+	 *
+	 * @param sourceBucketName the source bucket name
+	 * @param sourceKey the source key
+	 * @param destinationBucketName the destination bucket name
+	 * @param destination the destination object, with its metadata and storage class
+	 * @param size the size of the source object
+	 * @throws ServiceException if the copy failed
+	 */
+	public void copyObjectInParts(final String sourceBucketName, final String sourceKey,
+			final String destinationBucketName, final S3Object destination, final long size)
+			throws ServiceException {
+		final MultipartUpload upload = multipartStartUpload(destinationBucketName, destination);
+		try {
+			final List<MultipartPart> parts = new ArrayList<MultipartPart>();
+			int partNumber = 1;
+			for (long first = 0; first < size; first += COPY_PART_SIZE, partNumber++) {
+				parts.add(copyPart(upload, partNumber, sourceBucketName, sourceKey, first,
+						Math.min(size, first + COPY_PART_SIZE) - 1));
+			}
+			multipartCompleteUpload(upload, parts);
+		} catch (ServiceException excp) {
+			abortQuietly(upload, excp);
+			throw excp;
+		} catch (RuntimeException excp) {
+			abortQuietly(upload, excp);
+			throw excp;
+		}
+	}
+
+	/**
+	 * Aborts a multipart upload after a failure, an abort failure is added
+	 * to it.
+	 *
+	 * @param upload the upload
+	 * @param failure the failure
+	 */
+	private void abortQuietly(final MultipartUpload upload, final Exception failure) {
+		try {
+			multipartAbortUpload(upload);
+		} catch (ServiceException abortExcp) {
+			failure.addSuppressed(abortExcp);
+		}
+	}
+
+	/**
+	 * Copies a byte range of an object as a part of a multipart upload, the
+	 * way objects over the 5 GB limit of a single copy are copied. jets3t
+	 * does not support this request.
+	 *
+	 * @param upload the multipart upload of the destination object
+	 * @param partNumber the part number, from 1
+	 * @param sourceBucketName the source bucket name
+	 * @param sourceKey the source key
+	 * @param firstByte the first byte of the range
+	 * @param lastByte the last byte of the range, inclusive
+	 * @return the copied part
+	 * @throws ServiceException if the copy failed
+	 */
+	public MultipartPart copyPart(final MultipartUpload upload, final int partNumber, final String sourceBucketName,
+			final String sourceKey, final long firstByte, final long lastByte) throws ServiceException {
+		final Map<String, String> requestParameters = new HashMap<String, String>();
+		requestParameters.put("partNumber", String.valueOf(partNumber));
+		requestParameters.put("uploadId", upload.getUploadId());
+		final Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put(getRestHeaderPrefix() + "copy-source", "/" + sourceBucketName + "/"
+				+ RestUtils.encodeUrlPath(sourceKey, "/"));
+		headers.put(getRestHeaderPrefix() + "copy-source-range", "bytes=" + firstByte + "-" + lastByte);
+		final HttpMethodBase httpMethod = performRestPut(upload.getBucketName(), upload.getObjectKey(), headers,
+				requestParameters, null, false).getHttpMethod();
+		try {
+			// A copy can fail after the 200 status, the error is in the body
+			final String body = httpMethod.getResponseBodyAsString();
+			final Matcher etag = COPY_PART_ETAG.matcher(body == null ? "" : body);
+			if (!etag.find()) {
+				throw new ServiceException("Copy of part " + partNumber + " of " + upload.getObjectKey()
+						+ " failed: " + body);
+			}
+			return new MultipartPart(Integer.valueOf(partNumber), new Date(), etag.group(1).replace("&quot;", "")
+					.replace("\"", ""), Long.valueOf(lastByte - firstByte + 1));
+		} catch (IOException ioex) {
+			throw new ServiceException("Failed to read the copy of part " + partNumber, ioex);
+		} finally {
+			httpMethod.releaseConnection();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jets3t.service.impl.rest.httpclient.RestS3Service#getResourceParameterNames()
+	 */
+	@Override
+	public List<String> getResourceParameterNames() {
+		// The restore sub-resource and the response overrides of the signed
+		// urls are part of the signed string
+		final List<String> names = new ArrayList<String>(super.getResourceParameterNames());
+		names.add(RESTORE);
+		names.addAll(Arrays.asList(RESPONSE_OVERRIDES));
+		return names;
+	}
+
+	/**
+	 * Gets the traffic class of a request.
+	 *
+	 * @return the traffic class
+	 */
+	private S3TrafficClass getTrafficClass() {
+		return fixedClass != null ? fixedClass : S3TrafficShaper.getCurrentClass();
+	}
+}
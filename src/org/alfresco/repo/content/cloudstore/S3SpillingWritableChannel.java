@@ -0,0 +1,246 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.util.TempFileProvider;
+
+/**
+ * The Class S3SpillingWritableChannel.<br/>
+ * Holds the written content in pooled memory segments as long as it is not
+ * larger than a threshold, so small contents are uploaded from memory
+ * without a temp file. The first write going beyond the threshold moves the
+ * content to a temp file, which receives all the later writes.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3SpillingWritableChannel implements WritableByteChannel {
+
+	/** The buffer pool. */
+	private final S3BufferPool bufferPool;
+
+	/** The max size held in memory. */
+	private final long threshold;
+
+	/** The prefix of the temp file. */
+	private final String prefix;
+
+	/** The memory segments, all full but the last. */
+	private final List<byte[]> segments = new ArrayList<byte[]>();
+
+	/** The number of bytes written. */
+	private long size;
+
+	/** The temp file, null while the content is in memory. */
+	private File spillFile;
+
+	/** The channel of the temp file. */
+	private WritableByteChannel fileChannel;
+
+	/** The open flag. */
+	private boolean open = true;
+
+	/**
+	 * Instantiates a new spilling channel.
+	 *
+	 * @param bufferPool the buffer pool
+	 * @param threshold the max size held in memory
+	 * @param prefix the prefix of the temp file
+	 */
+	public S3SpillingWritableChannel(final S3BufferPool bufferPool, final long threshold, final String prefix) {
+		this.bufferPool = bufferPool;
+		this.threshold = threshold;
+		this.prefix = prefix;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	public int write(final ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		final int count = src.remaining();
+		if (fileChannel == null && size + count > threshold) {
+			spill();
+		}
+		if (fileChannel != null) {
+			while (src.hasRemaining()) {
+				fileChannel.write(src);
+			}
+		} else {
+			while (src.hasRemaining()) {
+				final int offset = (int) (size % S3BufferPool.SEGMENT_SIZE);
+				if (offset == 0) {
+					segments.add(bufferPool.allocate());
+				}
+				final int length = Math.min(src.remaining(), S3BufferPool.SEGMENT_SIZE - offset);
+				src.get(segments.get(segments.size() - 1), offset, length);
+				size += length;
+			}
+			return count;
+		}
+		size += count;
+		return count;
+	}
+
+	/**
+	 * Moves the content held in memory to a temp file.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void spill() throws IOException {
+		spillFile = TempFileProvider.createTempFile(prefix, ".bin");
+		fileChannel = new FileOutputStream(spillFile).getChannel();
+		long remaining = size;
+		for (final byte[] segment : segments) {
+			final ByteBuffer buffer = ByteBuffer.wrap(segment, 0, (int) Math.min(remaining, segment.length));
+			remaining -= buffer.remaining();
+			while (buffer.hasRemaining()) {
+				fileChannel.write(buffer);
+			}
+		}
+		release();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close() throws IOException {
+		open = false;
+		if (fileChannel != null) {
+			fileChannel.close();
+		}
+	}
+
+	/**
+	 * Checks if the content is held in memory.
+	 *
+	 * @return true, if no temp file was needed
+	 */
+	public boolean isInMemory() {
+		return spillFile == null;
+	}
+
+	/**
+	 * Gets the temp file.
+	 *
+	 * @return the temp file, or null if the content is in memory
+	 */
+	public File getSpillFile() {
+		return spillFile;
+	}
+
+	/**
+	 * Gets the number of bytes written.
+	 *
+	 * @return the size
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Opens a stream over the content held in memory. The stream supports
+	 * mark and reset so a failed upload can be retried.
+	 *
+	 * @return the stream
+	 */
+	public InputStream newInputStream() {
+		return new InputStream() {
+			private long position;
+
+			private long mark;
+
+			@Override
+			public int read() {
+				if (position >= size) {
+					return -1;
+				}
+				final byte value = segments.get((int) (position / S3BufferPool.SEGMENT_SIZE))[
+						(int) (position % S3BufferPool.SEGMENT_SIZE)];
+				position++;
+				return value & 0xff;
+			}
+
+			@Override
+			public int read(final byte[] buffer, final int offset, final int length) {
+				if (length == 0) {
+					return 0;
+				}
+				if (position >= size) {
+					return -1;
+				}
+				final int segmentOffset = (int) (position % S3BufferPool.SEGMENT_SIZE);
+				final int count = (int) Math.min(Math.min(length, S3BufferPool.SEGMENT_SIZE - segmentOffset),
+						size - position);
+				System.arraycopy(segments.get((int) (position / S3BufferPool.SEGMENT_SIZE)), segmentOffset,
+						buffer, offset, count);
+				position += count;
+				return count;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, size - position);
+			}
+
+			@Override
+			public boolean markSupported() {
+				return true;
+			}
+
+			@Override
+			public synchronized void mark(final int readLimit) {
+				mark = position;
+			}
+
+			@Override
+			public synchronized void reset() {
+				position = mark;
+			}
+		};
+	}
+
+	/**
+	 * Gives the memory segments back to the pool, the content held in memory
+	 * is no longer readable.
+	 */
+	public void release() {
+		for (final byte[] segment : segments) {
+			bufferPool.release(segment);
+		}
+		segments.clear();
+	}
+}
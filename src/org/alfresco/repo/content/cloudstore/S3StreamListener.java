@@ -29,6 +29,9 @@ import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
+import org.jets3t.service.utils.ServiceUtils;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
 
 /**
  * The listener interface for receiving s3Stream events.
@@ -74,29 +77,72 @@ public class S3StreamListener implements ContentStreamListener {
 		if(LOG.isDebugEnabled()){
 		  LOG.debug("S3StreamListener.contentStreamClosed(): Retrieving Temp File Stream");
 		}
+		final S3SpillingWritableChannel buffer = writer.getMemoryBuffer();
 		try {
-			final File file = writer.getTempFile();
-			final long size = file.length();
+			final File file = buffer == null ? writer.getTempFile() : null;
+			final long size = buffer == null ? file.length() : buffer.getSize();
 			writer.setSize(size);
+			writer.getWriteSpan().setSize(size).end();
 			final String url = writer.getNodeUrl();
+			final byte[] md5 = writer.getMd5Digest();
+			final S3ContentHeaders headers = writer.getContentHeaders();
+			if (buffer == null && writer.getUploader() != null && md5 != null) {
+				// Part size and parallelism are chosen by the uploader
+				final S3TraceSpan span = S3Tracer.start("UPLOAD").setContentUrl(url)
+						.setBucketName(bucket.getName()).setSize(size);
+				try {
+					writer.getUploader().upload(bucket, url, file, new S3FileDigests(md5, writer.getSha256Digest()),
+							headers);
+					writer.markUploaded();
+				} catch (Exception excp) {
+					span.setError(excp);
+					throw excp;
+				} finally {
+					span.end();
+				}
+				return;
+			}
 			final S3Object object = new S3Object(url);
-			object.setDataInputFile(file);
+			if (buffer == null) {
+				object.setDataInputFile(file);
+			} else {
+				// Small content, uploaded from memory without a temp file
+				object.setDataInputStream(buffer.newInputStream());
+			}
 			object.setContentLength(size);
-			object.setContentType("application/octetstream");
+			headers.applyTo(object);
+			// Digests were computed while the content was written, S3 verifies
+			// the Content-MD5 and the SHA-256 is kept for the readers.
+			if (md5 != null) {
+				object.setMd5Hash(md5);
+				object.addMetadata(CloudStoreConstants.META_SHA256, ServiceUtils.toHex(writer.getSha256Digest()));
+			}
 
+			final S3TraceSpan span = S3Tracer.start("PUT").setContentUrl(url)
+					.setBucketName(bucket.getName()).setSize(size);
 			try {
+				// jets3t compares the ETag with the md5 and fails on a mismatch
 				s3Service.putObject(bucket, object);
+				writer.markUploaded();
 			} catch (S3ServiceException s3ServExcp) {
-				if(LOG.isErrorEnabled()){
-					LOG.error("S3StreamListener Failed to Upload File: "+ s3ServExcp);
-				}
+				span.setError(s3ServExcp);
+				throw s3ServExcp;
 			} finally {
+				span.end();
 				//clean data input stream
 				object.closeDataInputStream();
 			} 
+		} catch (ContentIOException ciex) {
+			throw ciex;
 		} catch (Exception excp) {
 			if(LOG.isErrorEnabled()){
-				LOG.error("S3StreamListener Failed: "+ excp);
+				LOG.error("S3StreamListener Failed to Upload File: "+ excp);
+			}
+			// A failed upload must fail the write, there is no object behind the url
+			throw new ContentIOException("S3StreamListener Failed to upload " + writer.getNodeUrl(), excp);
+		} finally {
+			if (buffer != null) {
+				buffer.release();
 			}
 		}
 	}
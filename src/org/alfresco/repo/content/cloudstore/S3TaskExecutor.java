@@ -0,0 +1,349 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+import com.abhinav.alfresco.publishing.cloudstore.ConfigReader;
+
+/**
+ * The Class S3TaskExecutor.<br/>
+ * Runs blocking S3 operations. The number of concurrent operations is bounded
+ * by a semaphore instead of the size of a thread pool: tasks beyond the limit
+ * wait in a queue, or are rejected when the executor is created as
+ * non-queueing. The tasks run on virtual threads when the JVM supports them
+ * and <code>s3.executor.virtualThreads</code> is enabled, so a high limit
+ * costs no thread stacks, and on pooled daemon threads otherwise. Each task
+ * runs under a traffic class, the one of the executor or else the one of the
+ * thread which submitted it.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3TaskExecutor extends AbstractExecutorService {
+
+	/** The Constant logger. */
+	private static final Log LOG = LogFactory.getLog(S3TaskExecutor.class);
+
+	/** True if the tasks run on virtual threads. */
+	private static final boolean VIRTUAL_THREADS = initVirtualThreads();
+
+	/** The name. */
+	private final String name;
+
+	/** The concurrency limit. */
+	private final int maxConcurrency;
+
+	/** The permits of the running tasks. */
+	private final Semaphore permits;
+
+	/** True to reject the tasks beyond the limit instead of queueing them. */
+	private final boolean rejectWhenSaturated;
+
+	/** The tasks waiting for a permit. */
+	private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+
+	/** The executor running the tasks. */
+	private final ExecutorService backing;
+
+	/** Released once shut down with no task left. */
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+	/** The traffic class of the tasks, null to keep the one of the submitter. */
+	private final S3TrafficClass trafficClass;
+
+	/** The shutdown flag. */
+	private volatile boolean shutdown;
+
+	/**
+	 * Instantiates a new queueing task executor.
+	 *
+	 * @param name the thread name prefix
+	 * @param maxConcurrency the max number of concurrent tasks
+	 */
+	public S3TaskExecutor(final String name, final int maxConcurrency) {
+		this(name, maxConcurrency, false);
+	}
+
+	/**
+	 * Instantiates a new task executor.
+	 *
+	 * @param name the thread name prefix
+	 * @param maxConcurrency the max number of concurrent tasks
+	 * @param rejectWhenSaturated true to reject the tasks beyond the limit
+	 */
+	public S3TaskExecutor(final String name, final int maxConcurrency, final boolean rejectWhenSaturated) {
+		this(name, maxConcurrency, rejectWhenSaturated, null);
+	}
+
+	/**
+	 * Instantiates a new queueing task executor whose tasks run under a
+	 * traffic class.
+	 *
+	 * @param name the thread name prefix
+	 * @param maxConcurrency the max number of concurrent tasks
+	 * @param trafficClass the traffic class of the tasks
+	 */
+	public S3TaskExecutor(final String name, final int maxConcurrency, final S3TrafficClass trafficClass) {
+		this(name, maxConcurrency, false, trafficClass);
+	}
+
+	/**
+	 * Instantiates a new task executor.
+	 *
+	 * @param name the thread name prefix
+	 * @param maxConcurrency the max number of concurrent tasks
+	 * @param rejectWhenSaturated true to reject the tasks beyond the limit
+	 * @param trafficClass the traffic class of the tasks, null to keep the
+	 *        one of the submitting thread
+	 */
+	public S3TaskExecutor(final String name, final int maxConcurrency, final boolean rejectWhenSaturated,
+			final S3TrafficClass trafficClass) {
+		this.trafficClass = trafficClass;
+		this.name = name;
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		this.permits = new Semaphore(this.maxConcurrency);
+		this.rejectWhenSaturated = rejectWhenSaturated;
+		this.backing = newBackingExecutor(name);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute(final Runnable command) {
+		if (shutdown) {
+			throw new RejectedExecutionException(name + " is shut down");
+		}
+		final Runnable task = withTrafficClass(command);
+		if (rejectWhenSaturated) {
+			if (!permits.tryAcquire()) {
+				throw new RejectedExecutionException(name + " is saturated");
+			}
+			dispatch(task);
+			return;
+		}
+		waiting.add(task);
+		drain();
+	}
+
+	/**
+	 * Wraps a task so it runs under the traffic class of the executor, or of
+	 * the submitting thread.
+	 *
+	 * @param command the task
+	 * @return the wrapped task
+	 */
+	private Runnable withTrafficClass(final Runnable command) {
+		final S3TrafficClass taskClass = trafficClass != null ? trafficClass : S3TrafficShaper.getCurrentClass();
+		return new Runnable() {
+			public void run() {
+				final S3TrafficClass previous = S3TrafficShaper.setCurrentClass(taskClass);
+				try {
+					command.run();
+				} finally {
+					S3TrafficShaper.setCurrentClass(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Starts waiting tasks while permits are available.
+	 */
+	private void drain() {
+		while (!waiting.isEmpty() && permits.tryAcquire()) {
+			final Runnable task = waiting.poll();
+			if (task == null) {
+				permits.release();
+			} else {
+				dispatch(task);
+			}
+		}
+		tryTerminate();
+	}
+
+	/**
+	 * Runs a task holding a permit, the permit is released at its end.
+	 *
+	 * @param task the task
+	 */
+	private void dispatch(final Runnable task) {
+		try {
+			backing.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						permits.release();
+						drain();
+					}
+				}
+			});
+		} catch (RejectedExecutionException rejExcp) {
+			permits.release();
+			throw rejExcp;
+		}
+	}
+
+	/**
+	 * Terminates the backing executor once shut down and idle.
+	 */
+	private void tryTerminate() {
+		if (shutdown && waiting.isEmpty() && permits.availablePermits() == maxConcurrency
+				&& terminated.getCount() > 0) {
+			backing.shutdown();
+			terminated.countDown();
+		}
+	}
+
+	/**
+	 * Gets the number of running tasks.
+	 *
+	 * @return the active count
+	 */
+	public int getActiveCount() {
+		return maxConcurrency - permits.availablePermits();
+	}
+
+	/**
+	 * Gets the number of tasks waiting for a permit.
+	 *
+	 * @return the waiting count
+	 */
+	public int getWaitingCount() {
+		return waiting.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#shutdown()
+	 */
+	public void shutdown() {
+		shutdown = true;
+		tryTerminate();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#shutdownNow()
+	 */
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		final List<Runnable> dropped = new ArrayList<Runnable>();
+		Runnable task;
+		while ((task = waiting.poll()) != null) {
+			dropped.add(task);
+		}
+		backing.shutdownNow();
+		terminated.countDown();
+		return dropped;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#isShutdown()
+	 */
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#isTerminated()
+	 */
+	public boolean isTerminated() {
+		return terminated.getCount() == 0 && backing.isTerminated();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (!terminated.await(timeout, unit)) {
+			return false;
+		}
+		return backing.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Checks if the tasks run on virtual threads.
+	 *
+	 * @return true, if virtual threads are used
+	 */
+	public static boolean isUsingVirtualThreads() {
+		return VIRTUAL_THREADS;
+	}
+
+	/**
+	 * Creates the executor running the tasks, one virtual thread per task
+	 * when enabled and supported, pooled daemon threads otherwise. Virtual
+	 * threads are looked up through reflection since the module is compiled
+	 * for older JVMs.
+	 *
+	 * @param name the thread name prefix
+	 * @return the executor
+	 */
+	private static ExecutorService newBackingExecutor(final String name) {
+		if (VIRTUAL_THREADS) {
+			try {
+				final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+				final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+				return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+						.invoke(null, factory);
+			} catch (Exception excp) {
+				if (LOG.isWarnEnabled()) {
+					LOG.warn("S3TaskExecutor Failed to create virtual threads for " + name + ": " + excp);
+				}
+			}
+		}
+		return Executors.newCachedThreadPool(S3LocalContentTier.newThreadFactory(name));
+	}
+
+	/**
+	 * Checks if virtual threads are enabled and supported by the JVM.
+	 *
+	 * @return true, if virtual threads are used
+	 */
+	private static boolean initVirtualThreads() {
+		if (!ConfigReader.getInstance().getBooleanProperty(CloudStoreConstants.EXECUTOR_VIRTUAL_THREADS, true)) {
+			return false;
+		}
+		try {
+			Thread.class.getMethod("ofVirtual");
+		} catch (NoSuchMethodException nsmExcp) {
+			return false;
+		}
+		if (LOG.isInfoEnabled()) {
+			LOG.info("S3TaskExecutor Running S3 operations on virtual threads");
+		}
+		return true;
+	}
+}
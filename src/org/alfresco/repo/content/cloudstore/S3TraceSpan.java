@@ -0,0 +1,208 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The Class S3TraceSpan.<br/>
+ * One timed stage of the content path, e.g. the HEAD of a reader or the PUT
+ * of a writer, tagged with the content url, bucket, size and retry count.
+ * Spans which are not sampled are the shared {@link #NOOP} span, whose
+ * methods do nothing.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3TraceSpan {
+
+	/** The span of the operations which are not sampled. */
+	public static final S3TraceSpan NOOP = new S3TraceSpan(null, null);
+
+	/** The tracer, null for the no-op span. */
+	private final S3Tracer tracer;
+
+	/** The operation. */
+	private final String operation;
+
+	/** The start time, for the dump. */
+	private final long startMillis;
+
+	/** The start time, for the duration. */
+	private final long startNanos;
+
+	/** The thread name. */
+	private final String threadName;
+
+	/** The content url. */
+	private String contentUrl;
+
+	/** The bucket name. */
+	private String bucketName;
+
+	/** The size, -1 if unknown. */
+	private long size = -1L;
+
+	/** The retry count. */
+	private int retries;
+
+	/** The error, null if the operation succeeded. */
+	private String error;
+
+	/** The duration in nanos, -1 until ended. */
+	private volatile long durationNanos = -1L;
+
+	/**
+	 * Instantiates a new span.
+	 *
+	 * @param tracer the tracer
+	 * @param operation the operation
+	 */
+	S3TraceSpan(final S3Tracer tracer, final String operation) {
+		this.tracer = tracer;
+		this.operation = operation;
+		this.startMillis = tracer == null ? 0L : System.currentTimeMillis();
+		this.startNanos = tracer == null ? 0L : System.nanoTime();
+		this.threadName = tracer == null ? null : Thread.currentThread().getName();
+	}
+
+	/**
+	 * Sets the content url.
+	 *
+	 * @param contentUrl the new content url
+	 * @return the span
+	 */
+	public S3TraceSpan setContentUrl(final String contentUrl) {
+		if (tracer != null) {
+			this.contentUrl = contentUrl;
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the bucket name.
+	 *
+	 * @param bucketName the new bucket name
+	 * @return the span
+	 */
+	public S3TraceSpan setBucketName(final String bucketName) {
+		if (tracer != null) {
+			this.bucketName = bucketName;
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the size.
+	 *
+	 * @param size the new size
+	 * @return the span
+	 */
+	public S3TraceSpan setSize(final long size) {
+		if (tracer != null) {
+			this.size = size;
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the retry count.
+	 *
+	 * @param retries the new retry count
+	 * @return the span
+	 */
+	public S3TraceSpan setRetries(final int retries) {
+		if (tracer != null) {
+			this.retries = retries;
+		}
+		return this;
+	}
+
+	/**
+	 * Marks the operation as failed.
+	 *
+	 * @param excp the failure
+	 * @return the span
+	 */
+	public S3TraceSpan setError(final Throwable excp) {
+		if (tracer != null) {
+			this.error = String.valueOf(excp);
+		}
+		return this;
+	}
+
+	/**
+	 * Ends the span and hands it to the tracer, later calls are ignored.
+	 */
+	public void end() {
+		if (tracer != null && durationNanos < 0) {
+			durationNanos = Math.max(0L, System.nanoTime() - startNanos);
+			tracer.record(this);
+		}
+	}
+
+	/**
+	 * Checks if the span is recorded.
+	 *
+	 * @return true, if sampled
+	 */
+	public boolean isSampled() {
+		return tracer != null;
+	}
+
+	/**
+	 * Gets the operation.
+	 *
+	 * @return the operation
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * Gets the duration.
+	 *
+	 * @return the duration in nanos, -1 until ended
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder text = new StringBuilder(160);
+		text.append(durationNanos / 1000000L).append(" ms ").append(operation);
+		text.append(" start=").append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(startMillis)));
+		text.append(" url=").append(contentUrl);
+		if (bucketName != null) {
+			text.append(" bucket=").append(bucketName);
+		}
+		if (size >= 0) {
+			text.append(" size=").append(size);
+		}
+		text.append(" retries=").append(retries);
+		text.append(" thread=").append(threadName);
+		if (error != null) {
+			text.append(" error=").append(error);
+		}
+		return text.toString();
+	}
+}
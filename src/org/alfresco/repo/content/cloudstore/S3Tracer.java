@@ -0,0 +1,168 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+import com.abhinav.alfresco.publishing.cloudstore.ConfigReader;
+
+/**
+ * The Class S3Tracer.<br/>
+ * Traces a sample of the operations of the content path and keeps the
+ * slowest of them in memory, for a dump over JMX. An operation which is not
+ * sampled gets the no-op span, so tracing costs a random draw per operation
+ * when enabled and a field read when disabled.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public final class S3Tracer implements S3TracerMBean {
+
+	/** Orders the spans from the fastest to the slowest. */
+	private static final Comparator<S3TraceSpan> BY_DURATION = new Comparator<S3TraceSpan>() {
+		public int compare(final S3TraceSpan first, final S3TraceSpan second) {
+			return Long.compare(first.getDurationNanos(), second.getDurationNanos());
+		}
+	};
+
+	/** The instance, shared by all the stores of the node. */
+	private static final S3Tracer INSTANCE = new S3Tracer();
+
+	/** The number of spans kept. */
+	private final int capacity;
+
+	/** The slowest spans, the fastest of them at the head. */
+	private final PriorityQueue<S3TraceSpan> slowest;
+
+	/** The duration a span must exceed to be kept, once the queue is full. */
+	private volatile long floorNanos = -1L;
+
+	/** The sample rate. */
+	private volatile double sampleRate;
+
+	/** The traced count. */
+	private final AtomicLong traced = new AtomicLong();
+
+	/**
+	 * Instantiates the tracer from alfresco-global.properties.
+	 */
+	private S3Tracer() {
+		final ConfigReader config = ConfigReader.getInstance();
+		this.capacity = Math.max(1, config.getIntProperty(CloudStoreConstants.TRACING_SLOWEST_COUNT, 100));
+		this.slowest = new PriorityQueue<S3TraceSpan>(capacity + 1, BY_DURATION);
+		setSampleRate(Double.parseDouble(config.getProperty(CloudStoreConstants.TRACING_SAMPLE_RATE, "0")));
+	}
+
+	/**
+	 * Gets the instance.
+	 *
+	 * @return the tracer
+	 */
+	public static S3Tracer getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts a span if the operation is sampled.
+	 *
+	 * @param operation the operation
+	 * @return the span, or the no-op span if not sampled
+	 */
+	public static S3TraceSpan start(final String operation) {
+		final double rate = INSTANCE.sampleRate;
+		if (rate <= 0d || (rate < 1d && ThreadLocalRandom.current().nextDouble() >= rate)) {
+			return S3TraceSpan.NOOP;
+		}
+		return new S3TraceSpan(INSTANCE, operation);
+	}
+
+	/**
+	 * Records an ended span.
+	 *
+	 * @param span the span
+	 */
+	void record(final S3TraceSpan span) {
+		traced.incrementAndGet();
+		if (span.getDurationNanos() <= floorNanos) {
+			return;
+		}
+		synchronized (slowest) {
+			slowest.add(span);
+			if (slowest.size() > capacity) {
+				slowest.poll();
+			}
+			if (slowest.size() >= capacity) {
+				floorNanos = slowest.peek().getDurationNanos();
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3TracerMBean#getSampleRate()
+	 */
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3TracerMBean#setSampleRate(double)
+	 */
+	public void setSampleRate(final double sampleRate) {
+		this.sampleRate = Math.max(0d, Math.min(1d, sampleRate));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3TracerMBean#getTracedCount()
+	 */
+	public long getTracedCount() {
+		return traced.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3TracerMBean#getSlowestOperations()
+	 */
+	public String[] getSlowestOperations() {
+		final List<S3TraceSpan> spans;
+		synchronized (slowest) {
+			spans = new ArrayList<S3TraceSpan>(slowest);
+		}
+		Collections.sort(spans, Collections.reverseOrder(BY_DURATION));
+		final String[] lines = new String[spans.size()];
+		for (int index = 0; index < lines.length; index++) {
+			lines[index] = spans.get(index).toString();
+		}
+		return lines;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3TracerMBean#reset()
+	 */
+	public void reset() {
+		synchronized (slowest) {
+			slowest.clear();
+			floorNanos = -1L;
+		}
+		traced.set(0L);
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+/**
+ * The Interface S3TracerMBean.<br/>
+ * Management view of the {@link S3Tracer}.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public interface S3TracerMBean {
+
+	/**
+	 * Gets the share of the operations which are traced.
+	 *
+	 * @return the sample rate, between 0 and 1
+	 */
+	double getSampleRate();
+
+	/**
+	 * Sets the share of the operations which are traced, 0 turns tracing off.
+	 *
+	 * @param sampleRate the new sample rate, between 0 and 1
+	 */
+	void setSampleRate(double sampleRate);
+
+	/**
+	 * Gets the number of traced operations.
+	 *
+	 * @return the traced count
+	 */
+	long getTracedCount();
+
+	/**
+	 * Gets the slowest traced operations, slowest first.
+	 *
+	 * @return the operations, one per line
+	 */
+	String[] getSlowestOperations();
+
+	/**
+	 * Forgets the traced operations.
+	 */
+	void reset();
+}
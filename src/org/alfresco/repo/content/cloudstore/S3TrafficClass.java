@@ -0,0 +1,37 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+/**
+ * The Enum S3TrafficClass.<br/>
+ * Class of an S3 request, in descending order of priority. Requests of a
+ * class only start when no request of a higher class is waiting.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public enum S3TrafficClass {
+
+	/** Requests a user is waiting for, e.g. content reads and writes. */
+	INTERACTIVE,
+
+	/** Work of the store in the background, e.g. replication, prefetch, tiering, publishing. */
+	BACKGROUND,
+
+	/** Bulk jobs, e.g. migrations and consistency checks. */
+	BULK
+}
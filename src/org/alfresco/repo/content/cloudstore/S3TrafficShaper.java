@@ -0,0 +1,263 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import com.abhinav.alfresco.publishing.cloudstore.CloudStoreConstants;
+import com.abhinav.alfresco.publishing.cloudstore.ConfigReader;
+
+/**
+ * The Class S3TrafficShaper.<br/>
+ * Shares the S3 connections between the {@link S3TrafficClass}es. Each class
+ * has a concurrency limit and a token bucket bandwidth limit. A request
+ * starts only when no request of a higher class is waiting, and the lower
+ * classes leave a reserve of connections to the interactive requests, so
+ * background work yields to the users. The class of a request is the class
+ * of the calling thread, INTERACTIVE unless set otherwise.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public final class S3TrafficShaper {
+
+	/** The class of the current thread. */
+	private static final ThreadLocal<S3TrafficClass> CURRENT_CLASS = new ThreadLocal<S3TrafficClass>() {
+		@Override
+		protected S3TrafficClass initialValue() {
+			return S3TrafficClass.INTERACTIVE;
+		}
+	};
+
+	/** The instance, shared by all the S3 services of the node. */
+	private static final S3TrafficShaper INSTANCE = new S3TrafficShaper();
+
+	/** The enabled flag. */
+	private final boolean enabled;
+
+	/** The max number of concurrent requests. */
+	private final int capacity;
+
+	/** The connections the lower classes leave to the interactive requests. */
+	private final int interactiveReserve;
+
+	/** The concurrency limit per class. */
+	private final int[] limits;
+
+	/** The rate limiter per class. */
+	private final S3RateLimiter[] rateLimiters;
+
+	/** The running requests per class. */
+	private final int[] active;
+
+	/** The waiting requests per class. */
+	private final int[] waiting;
+
+	/** The running requests. */
+	private int totalActive;
+
+	/**
+	 * Instantiates the traffic shaper from alfresco-global.properties.
+	 */
+	private S3TrafficShaper() {
+		final ConfigReader config = ConfigReader.getInstance();
+		final S3TrafficClass[] classes = S3TrafficClass.values();
+		this.enabled = config.getBooleanProperty(CloudStoreConstants.TRAFFIC_ENABLED, true);
+		this.capacity = Math.max(1, config.getIntProperty(CloudStoreConstants.TRAFFIC_MAX_CONNECTIONS, 200));
+		this.interactiveReserve = Math.min(capacity - 1,
+				Math.max(0, config.getIntProperty(CloudStoreConstants.TRAFFIC_INTERACTIVE_RESERVE, 20)));
+		this.limits = new int[classes.length];
+		this.rateLimiters = new S3RateLimiter[classes.length];
+		this.active = new int[classes.length];
+		this.waiting = new int[classes.length];
+		for (final S3TrafficClass trafficClass : classes) {
+			final String prefix = CloudStoreConstants.TRAFFIC_PREFIX + trafficClass.name().toLowerCase(Locale.ENGLISH);
+			limits[trafficClass.ordinal()] = Math.max(1,
+					config.getIntProperty(prefix + CloudStoreConstants.TRAFFIC_MAX_CONCURRENCY_SUFFIX, capacity));
+			rateLimiters[trafficClass.ordinal()] = new S3RateLimiter(
+					config.getLongProperty(prefix + CloudStoreConstants.TRAFFIC_MAX_MB_PER_SECOND_SUFFIX, 0L)
+							* 1024L * 1024L);
+		}
+	}
+
+	/**
+	 * Gets the instance.
+	 *
+	 * @return the traffic shaper
+	 */
+	public static S3TrafficShaper getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Gets the class of the current thread.
+	 *
+	 * @return the traffic class
+	 */
+	public static S3TrafficClass getCurrentClass() {
+		return CURRENT_CLASS.get();
+	}
+
+	/**
+	 * Sets the class of the current thread.
+	 *
+	 * @param trafficClass the traffic class
+	 * @return the previous class, to be restored
+	 */
+	public static S3TrafficClass setCurrentClass(final S3TrafficClass trafficClass) {
+		final S3TrafficClass previous = CURRENT_CLASS.get();
+		CURRENT_CLASS.set(trafficClass);
+		return previous;
+	}
+
+	/**
+	 * Waits until a request of the class may start.
+	 *
+	 * @param trafficClass the traffic class
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquire(final S3TrafficClass trafficClass) throws InterruptedException {
+		if (!enabled) {
+			return;
+		}
+		final int index = trafficClass.ordinal();
+		synchronized (this) {
+			waiting[index]++;
+			try {
+				while (!isAdmissible(index)) {
+					wait();
+				}
+			} finally {
+				waiting[index]--;
+				// Lower classes may have been held back by this request
+				notifyAll();
+			}
+			active[index]++;
+			totalActive++;
+		}
+	}
+
+	/**
+	 * Ends a request.
+	 *
+	 * @param trafficClass the traffic class
+	 */
+	public void release(final S3TrafficClass trafficClass) {
+		if (!enabled) {
+			return;
+		}
+		synchronized (this) {
+			active[trafficClass.ordinal()]--;
+			totalActive--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Checks if a request of a class may start, the lock is held.
+	 *
+	 * @param index the class ordinal
+	 * @return true, if admissible
+	 */
+	private boolean isAdmissible(final int index) {
+		for (int higher = 0; higher < index; higher++) {
+			if (waiting[higher] > 0) {
+				return false;
+			}
+		}
+		final int available = index == 0 ? capacity : capacity - interactiveReserve;
+		return active[index] < limits[index] && totalActive < available;
+	}
+
+	/**
+	 * Waits until the bandwidth of the class allows sending the bytes.
+	 *
+	 * @param trafficClass the traffic class
+	 * @param bytes the bytes
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquireBandwidth(final S3TrafficClass trafficClass, final long bytes) throws InterruptedException {
+		if (enabled && bytes > 0) {
+			rateLimiters[trafficClass.ordinal()].acquire(bytes);
+		}
+	}
+
+	/**
+	 * Paces a response stream at the bandwidth of the class.
+	 *
+	 * @param inStream the stream
+	 * @param trafficClass the traffic class
+	 * @return the paced stream, or the stream if the class is not limited
+	 */
+	public InputStream shape(final InputStream inStream, final S3TrafficClass trafficClass) {
+		final S3RateLimiter rateLimiter = rateLimiters[trafficClass.ordinal()];
+		if (!enabled || inStream == null || rateLimiter.getBytesPerSecond() <= 0) {
+			return inStream;
+		}
+		return new FilterInputStream(inStream) {
+			@Override
+			public int read() throws IOException {
+				final int value = super.read();
+				if (value >= 0) {
+					pace(1);
+				}
+				return value;
+			}
+
+			@Override
+			public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+				final int count = super.read(buffer, offset, length);
+				if (count > 0) {
+					pace(count);
+				}
+				return count;
+			}
+
+			private void pace(final int bytes) throws IOException {
+				try {
+					rateLimiter.acquire(bytes);
+				} catch (InterruptedException intrExcp) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while reading from S3");
+				}
+			}
+		};
+	}
+
+	/**
+	 * Gets the number of running requests of a class.
+	 *
+	 * @param trafficClass the traffic class
+	 * @return the active count
+	 */
+	public synchronized int getActiveCount(final S3TrafficClass trafficClass) {
+		return active[trafficClass.ordinal()];
+	}
+
+	/**
+	 * Gets the number of waiting requests of a class.
+	 *
+	 * @param trafficClass the traffic class
+	 * @return the waiting count
+	 */
+	public synchronized int getWaitingCount(final S3TrafficClass trafficClass) {
+		return waiting[trafficClass.ordinal()];
+	}
+}
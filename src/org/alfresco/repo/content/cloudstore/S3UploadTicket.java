@@ -0,0 +1,228 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The Class S3UploadTicket.<br/>
+ * A direct upload to S3, issued for a new content url. The client sends the
+ * content to the signed url, or each part to the url signed for the md5 of
+ * that part, with the given headers, and then completes the upload by the
+ * id of the ticket. The issued tickets are kept by the
+ * {@link S3DirectUploader}, a ticket given back by a client is never trusted.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public final class S3UploadTicket implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The opaque id of the ticket. */
+	private final String id;
+
+	/** The content url. */
+	private final String contentUrl;
+
+	/** The declared size. */
+	private final long size;
+
+	/** The declared md5 in hex, null if not declared. */
+	private final String md5Hex;
+
+	/** The mimetype. */
+	private final String mimetype;
+
+	/** The encoding. */
+	private final String encoding;
+
+	/** The multipart upload id, null for a single PUT. */
+	private final String uploadId;
+
+	/** The part size, 0 for a single PUT. */
+	private final long partSize;
+
+	/** The number of parts, 0 for a single PUT. */
+	private final int partCount;
+
+	/** The signed url of a single PUT, null for a multipart upload. */
+	private final String url;
+
+	/** The headers the client sends with each request. */
+	private final Map<String, String> headers;
+
+	/** The expiry of the urls, in millis. */
+	private final long expiry;
+
+	/**
+	 * Instantiates a new upload ticket.
+	 *
+	 * @param id the opaque id of the ticket
+	 * @param contentUrl the content url
+	 * @param size the declared size
+	 * @param md5Hex the declared md5 in hex, or null
+	 * @param mimetype the mimetype
+	 * @param encoding the encoding
+	 * @param uploadId the multipart upload id, or null for a single PUT
+	 * @param partSize the part size, 0 for a single PUT
+	 * @param partCount the number of parts, 0 for a single PUT
+	 * @param url the signed url of a single PUT, or null
+	 * @param headers the headers the client sends with each request
+	 * @param expiry the expiry of the urls in millis
+	 */
+	S3UploadTicket(final String id, final String contentUrl, final long size, final String md5Hex,
+			final String mimetype, final String encoding, final String uploadId, final long partSize,
+			final int partCount, final String url, final Map<String, String> headers, final long expiry) {
+		this.id = id;
+		this.contentUrl = contentUrl;
+		this.size = size;
+		this.md5Hex = md5Hex;
+		this.mimetype = mimetype;
+		this.encoding = encoding;
+		this.uploadId = uploadId;
+		this.partSize = partSize;
+		this.partCount = partCount;
+		this.url = url;
+		this.headers = Collections.unmodifiableMap(headers);
+		this.expiry = expiry;
+	}
+
+	/**
+	 * Gets the opaque id of the ticket, used to sign the parts and to
+	 * complete or abort the upload.
+	 *
+	 * @return the id
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the content url the content is bound to.
+	 *
+	 * @return the content url
+	 */
+	public String getContentUrl() {
+		return contentUrl;
+	}
+
+	/**
+	 * Gets the declared size.
+	 *
+	 * @return the size
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the declared md5 of a single PUT, the parts of a multipart upload
+	 * declare their own md5.
+	 *
+	 * @return the md5 in hex, or null if not declared
+	 */
+	public String getMd5Hex() {
+		return md5Hex;
+	}
+
+	/**
+	 * Gets the mimetype.
+	 *
+	 * @return the mimetype
+	 */
+	public String getMimetype() {
+		return mimetype;
+	}
+
+	/**
+	 * Gets the encoding.
+	 *
+	 * @return the encoding
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Checks if the content is uploaded in parts.
+	 *
+	 * @return true, if multipart
+	 */
+	public boolean isMultipart() {
+		return uploadId != null;
+	}
+
+	/**
+	 * Gets the multipart upload id.
+	 *
+	 * @return the upload id, or null for a single PUT
+	 */
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	/**
+	 * Gets the part size, every part but the last one has this size.
+	 *
+	 * @return the part size, 0 for a single PUT
+	 */
+	public long getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Gets the number of parts.
+	 *
+	 * @return the part count, 0 for a single PUT
+	 */
+	public int getPartCount() {
+		return partCount;
+	}
+
+	/**
+	 * Gets the signed url of a single PUT. The url of each part of a multipart
+	 * upload is signed once the md5 of the part is known.
+	 *
+	 * @return the url, or null for a multipart upload
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Gets the headers the client sends with a single PUT, its signature
+	 * covers the Content-Type and the Content-MD5.
+	 *
+	 * @return the headers
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Gets the expiry of the urls.
+	 *
+	 * @return the expiry in millis since the epoch
+	 */
+	public long getExpiry() {
+		return expiry;
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import org.jets3t.service.ServiceException;
+
+/**
+ * The Class S3UploadTuner.<br/>
+ * Chooses the part size and the parallelism of each upload from its size and
+ * from the live measurements of the previous uploads:
+ * <ul>
+ * <li>the part size targets a few seconds per part at the measured single
+ * request throughput, within the S3 limits (5 MB, 10000 parts);</li>
+ * <li>the parallelism follows an additive increase, multiplicative decrease
+ * rule: it grows by one while the goodput of the uploads keeps up, shrinks
+ * by one when adding streams stopped paying off, and is halved when S3
+ * throttles or requests fail.</li>
+ * </ul>
+ * Uploads below the multipart threshold are single PUTs.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3UploadTuner implements S3UploadTunerMBean {
+
+	/** The min part size allowed by S3. */
+	private static final long MIN_PART_SIZE = 5L * 1024L * 1024L;
+
+	/** The max part size chosen. */
+	private static final long MAX_PART_SIZE = 512L * 1024L * 1024L;
+
+	/** The max number of parts allowed by S3. */
+	private static final long MAX_PARTS = 10000L;
+
+	/** The targeted duration of a part upload, in seconds. */
+	private static final double TARGET_PART_SECONDS = 4d;
+
+	/** The weight of a new measurement. */
+	private static final double ALPHA = 0.2d;
+
+	/** The goodput ratio below which the parallelism stops growing. */
+	private static final double GOODPUT_TOLERANCE = 0.95d;
+
+	/** Parts smaller than this are not used to measure the throughput. */
+	private static final long MIN_MEASURED_BYTES = 1024L * 1024L;
+
+	/** The multipart threshold. */
+	private final long multipartThreshold;
+
+	/** The max parallelism. */
+	private final int maxParallelism;
+
+	/** The single request throughput, in bytes per second. */
+	private double streamThroughput = 8d * 1024d * 1024d;
+
+	/** The goodput of the multipart uploads, in bytes per second, -1 until measured. */
+	private double goodput = -1d;
+
+	/** The parallelism. */
+	private int parallelism;
+
+	/** The upload count. */
+	private long uploads;
+
+	/** The error count. */
+	private long errors;
+
+	/** The throttle count. */
+	private long throttles;
+
+	/**
+	 * Instantiates a new upload tuner.
+	 *
+	 * @param multipartThreshold the size from which multipart is used
+	 * @param initialParallelism the initial parallelism
+	 * @param maxParallelism the max parallelism
+	 */
+	public S3UploadTuner(final long multipartThreshold, final int initialParallelism, final int maxParallelism) {
+		this.multipartThreshold = Math.max(MIN_PART_SIZE, multipartThreshold);
+		this.maxParallelism = Math.max(1, maxParallelism);
+		this.parallelism = Math.max(1, Math.min(this.maxParallelism, initialParallelism));
+	}
+
+	/**
+	 * Plans an upload.
+	 *
+	 * @param size the size of the content
+	 * @return the plan
+	 */
+	public synchronized Plan plan(final long size) {
+		if (size < multipartThreshold) {
+			return new Plan(false, size, 1);
+		}
+		long partSize = basePartSize();
+		if (size / partSize < parallelism) {
+			// Split smaller so every stream gets a part
+			partSize = Math.max(MIN_PART_SIZE, roundToMB(size / parallelism));
+		}
+		partSize = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+		final long parts = (size + partSize - 1) / partSize;
+		return new Plan(true, partSize, (int) Math.min(parallelism, parts));
+	}
+
+	/**
+	 * Gets the part size which takes the targeted duration at the measured
+	 * throughput.
+	 *
+	 * @return the part size
+	 */
+	private long basePartSize() {
+		final long partSize = roundToMB((long) (streamThroughput * TARGET_PART_SECONDS));
+		return Math.max(MIN_PART_SIZE, Math.min(MAX_PART_SIZE, partSize));
+	}
+
+	/**
+	 * Records a successful request.
+	 *
+	 * @param bytes the bytes sent
+	 * @param millis the duration
+	 */
+	public synchronized void recordRequest(final long bytes, final long millis) {
+		if (bytes < MIN_MEASURED_BYTES || millis <= 0) {
+			return;
+		}
+		streamThroughput = (ALPHA * bytes * 1000d / millis) + ((1 - ALPHA) * streamThroughput);
+	}
+
+	/**
+	 * Records a failed request. Throttling and errors halve the parallelism.
+	 *
+	 * @param cause the cause
+	 */
+	public synchronized void recordFailure(final Throwable cause) {
+		errors++;
+		if (isThrottle(cause)) {
+			throttles++;
+		}
+		parallelism = Math.max(1, parallelism / 2);
+	}
+
+	/**
+	 * Records a completed multipart upload and adapts the parallelism.
+	 *
+	 * @param bytes the size of the content
+	 * @param millis the duration
+	 * @param usedParallelism the parallelism of the upload
+	 */
+	public synchronized void recordUpload(final long bytes, final long millis, final int usedParallelism) {
+		uploads++;
+		if (millis <= 0 || usedParallelism < parallelism) {
+			// Too small to use all the streams, it says nothing about them
+			return;
+		}
+		final double observed = bytes * 1000d / millis;
+		if (goodput < 0 || observed >= goodput * GOODPUT_TOLERANCE) {
+			parallelism = Math.min(maxParallelism, parallelism + 1);
+		} else {
+			parallelism = Math.max(1, parallelism - 1);
+		}
+		goodput = goodput < 0 ? observed : (ALPHA * observed) + ((1 - ALPHA) * goodput);
+	}
+
+	/**
+	 * Records a completed single PUT.
+	 */
+	public synchronized void recordSingleUpload() {
+		uploads++;
+	}
+
+	/**
+	 * Checks if a failure is S3 asking to slow down.
+	 *
+	 * @param cause the cause
+	 * @return true, if throttled
+	 */
+	private static boolean isThrottle(final Throwable cause) {
+		if (!(cause instanceof ServiceException)) {
+			return false;
+		}
+		final ServiceException servExcp = (ServiceException) cause;
+		return servExcp.getResponseCode() == 503 || "SlowDown".equals(servExcp.getErrorCode());
+	}
+
+	/**
+	 * Rounds a size up to whole megabytes.
+	 *
+	 * @param size the size
+	 * @return the rounded size
+	 */
+	private static long roundToMB(final long size) {
+		final long megabyte = 1024L * 1024L;
+		return ((size + megabyte - 1) / megabyte) * megabyte;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3UploadTunerMBean#getPartSize()
+	 */
+	public synchronized long getPartSize() {
+		return basePartSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3UploadTunerMBean#getParallelism()
+	 */
+	public synchronized int getParallelism() {
+		return parallelism;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3UploadTunerMBean#getStreamThroughput()
+	 */
+	public synchronized long getStreamThroughput() {
+		return (long) streamThroughput;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3UploadTunerMBean#getGoodput()
+	 */
+	public synchronized long getGoodput() {
+		return (long) Math.max(0d, goodput);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3UploadTunerMBean#getUploadCount()
+	 */
+	public synchronized long getUploadCount() {
+		return uploads;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3UploadTunerMBean#getErrorCount()
+	 */
+	public synchronized long getErrorCount() {
+		return errors;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alfresco.repo.content.cloudstore.S3UploadTunerMBean#getThrottleCount()
+	 */
+	public synchronized long getThrottleCount() {
+		return throttles;
+	}
+
+	/**
+	 * The parameters of one upload.
+	 */
+	public static final class Plan {
+
+		/** The multipart flag. */
+		private final boolean multipart;
+
+		/** The part size. */
+		private final long partSize;
+
+		/** The parallelism. */
+		private final int parallelism;
+
+		/**
+		 * Instantiates a new plan.
+		 *
+		 * @param multipart the multipart flag
+		 * @param partSize the part size
+		 * @param parallelism the parallelism
+		 */
+		private Plan(final boolean multipart, final long partSize, final int parallelism) {
+			this.multipart = multipart;
+			this.partSize = partSize;
+			this.parallelism = parallelism;
+		}
+
+		/**
+		 * Checks if the upload is a multipart upload.
+		 *
+		 * @return true, if multipart
+		 */
+		public boolean isMultipart() {
+			return multipart;
+		}
+
+		/**
+		 * Gets the part size.
+		 *
+		 * @return the part size
+		 */
+		public long getPartSize() {
+			return partSize;
+		}
+
+		/**
+		 * Gets the number of parts sent concurrently.
+		 *
+		 * @return the parallelism
+		 */
+		public int getParallelism() {
+			return parallelism;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+/**
+ * The Interface S3UploadTunerMBean.<br/>
+ * Management view of the {@link S3UploadTuner}.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public interface S3UploadTunerMBean {
+
+	/**
+	 * Gets the part size the next large upload will use.
+	 *
+	 * @return the part size in bytes
+	 */
+	long getPartSize();
+
+	/**
+	 * Gets the number of parts sent concurrently per upload.
+	 *
+	 * @return the parallelism
+	 */
+	int getParallelism();
+
+	/**
+	 * Gets the measured throughput of a single request.
+	 *
+	 * @return the bytes per second
+	 */
+	long getStreamThroughput();
+
+	/**
+	 * Gets the measured throughput of the multipart uploads.
+	 *
+	 * @return the bytes per second
+	 */
+	long getGoodput();
+
+	/**
+	 * Gets the number of completed uploads.
+	 *
+	 * @return the upload count
+	 */
+	long getUploadCount();
+
+	/**
+	 * Gets the number of failed requests.
+	 *
+	 * @return the error count
+	 */
+	long getErrorCount();
+
+	/**
+	 * Gets the number of requests throttled by S3.
+	 *
+	 * @return the throttle count
+	 */
+	long getThrottleCount();
+}
@@ -0,0 +1,102 @@
+/*
+ * Created By: Abhinav Kumar Mishra
+ * Copyright &copy; 2014. Abhinav Kumar Mishra.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.repo.content.cloudstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * The Class S3VerifyingReadableChannel.<br/>
+ * Computes the SHA-256 digest of the bytes as they are read and checks it
+ * against the digest stored with the object when the end of the stream is
+ * reached. Partial reads are not verified.
+ *
+ * @author Abhinav Kumar Mishra
+ */
+public class S3VerifyingReadableChannel implements ReadableByteChannel {
+
+	/** The delegate. */
+	private final ReadableByteChannel delegate;
+
+	/** The content url. */
+	private final String contentUrl;
+
+	/** The expected sha256, hex encoded. */
+	private final String expectedSha256;
+
+	/** The sha256. */
+	private final MessageDigest sha256;
+
+	/** The verified flag. */
+	private boolean verified;
+
+	/**
+	 * Instantiates a new verifying channel.
+	 *
+	 * @param delegate the delegate
+	 * @param contentUrl the content url
+	 * @param expectedSha256 the expected sha256, hex encoded
+	 * @throws NoSuchAlgorithmException if SHA-256 is not supported
+	 */
+	public S3VerifyingReadableChannel(final ReadableByteChannel delegate, final String contentUrl,
+			final String expectedSha256) throws NoSuchAlgorithmException {
+		this.delegate = delegate;
+		this.contentUrl = contentUrl;
+		this.expectedSha256 = expectedSha256;
+		this.sha256 = MessageDigest.getInstance("SHA-256");
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	public int read(final ByteBuffer dst) throws IOException {
+		final ByteBuffer read = dst.duplicate();
+		final int count = delegate.read(dst);
+		if (count > 0) {
+			read.limit(read.position() + count);
+			sha256.update(read);
+		} else if (count == -1 && !verified) {
+			verified = true;
+			final String actualSha256 = ServiceUtils.toHex(sha256.digest());
+			if (!actualSha256.equalsIgnoreCase(expectedSha256)) {
+				throw new IOException("Checksum mismatch for " + contentUrl + ": expected sha256="
+						+ expectedSha256 + " actual=" + actualSha256);
+			}
+		}
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen() {
+		return delegate.isOpen();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close() throws IOException {
+		delegate.close();
+	}
+}